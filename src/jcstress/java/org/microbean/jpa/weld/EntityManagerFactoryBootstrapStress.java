@@ -0,0 +1,177 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+
+import org.openjdk.jcstress.infra.results.II_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE_INTERESTING;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Stress tests for the creation, sharing and closing of {@link
+ * EntityManagerFactory} instances by {@link JpaInjectionServices}.
+ *
+ * <p>Each test state uses its own {@link JpaInjectionServices} and
+ * its own {@linkplain StubPersistence#newPersistenceUnitInfo()
+ * persistence unit}, and drives it the way Weld drives the {@link
+ * ResourceReference}s it obtains for {@link
+ * javax.persistence.PersistenceUnit}-annotated injection points.</p>
+ */
+public final class EntityManagerFactoryBootstrapStress {
+
+  private EntityManagerFactoryBootstrapStress() {
+    super();
+  }
+
+  @JCStressTest
+  @Description("Two injection points for the same persistence unit bootstrapping it at once")
+  @Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "One EntityManagerFactory created and shared")
+  @Outcome(expect = FORBIDDEN, desc = "Duplicate bootstrap, or different EntityManagerFactory instances handed out")
+  @State
+  public static class ConcurrentBootstrap {
+
+    private final PersistenceUnitInfo persistenceUnitInfo = StubPersistence.newPersistenceUnitInfo();
+
+    private final JpaInjectionServices services = new JpaInjectionServices();
+
+    private final ResourceReference<EntityManagerFactory> reference1 =
+      this.services.createEntityManagerFactoryReference(this.persistenceUnitInfo);
+
+    private final ResourceReference<EntityManagerFactory> reference2 =
+      this.services.createEntityManagerFactoryReference(this.persistenceUnitInfo);
+
+    private volatile EntityManagerFactory emf1;
+
+    private volatile EntityManagerFactory emf2;
+
+    @Actor
+    public void getInstance1() {
+      this.emf1 = this.reference1.getInstance();
+    }
+
+    @Actor
+    public void getInstance2() {
+      this.emf2 = this.reference2.getInstance();
+    }
+
+    @Arbiter
+    public void arbiter(final II_Result r) {
+      final List<EntityManagerFactory> created = StubPersistence.removeCreated(this.persistenceUnitInfo.getPersistenceUnitName());
+      r.r1 = created.size();
+      r.r2 = this.emf1 != null && this.emf1 == this.emf2 ? 1 : 0;
+      this.reference1.release();
+      this.reference2.release();
+    }
+
+  }
+
+  @JCStressTest
+  @Description("One injection point released while another is bootstrapping the same persistence unit")
+  @Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "EntityManagerFactory obtained; nothing leaked")
+  @Outcome(id = "0, 0", expect = ACCEPTABLE_INTERESTING, desc = "Bootstrap cancelled by the release; nothing leaked")
+  @Outcome(expect = FORBIDDEN, desc = "An EntityManagerFactory was left open")
+  @State
+  public static class ReleaseDuringBootstrap {
+
+    private final PersistenceUnitInfo persistenceUnitInfo = StubPersistence.newPersistenceUnitInfo();
+
+    private final JpaInjectionServices services = new JpaInjectionServices();
+
+    private final ResourceReference<EntityManagerFactory> bootstrapping =
+      this.services.createEntityManagerFactoryReference(this.persistenceUnitInfo);
+
+    private final ResourceReference<EntityManagerFactory> releasing =
+      this.services.createEntityManagerFactoryReference(this.persistenceUnitInfo);
+
+    @Actor
+    public void getInstance(final II_Result r) {
+      try {
+        r.r1 = this.bootstrapping.getInstance().isOpen() ? 1 : -1;
+      } catch (final EntityManagerFactoryUnavailableException cancelled) {
+        r.r1 = 0;
+      }
+    }
+
+    @Actor
+    public void release() {
+      this.releasing.release();
+    }
+
+    @Arbiter
+    public void arbiter(final II_Result r) {
+      this.bootstrapping.release();
+      r.r2 = StubPersistence.countOpen(StubPersistence.removeCreated(this.persistenceUnitInfo.getPersistenceUnitName()));
+    }
+
+  }
+
+  @JCStressTest
+  @Description("The container shutting down while an injection point is bootstrapping a persistence unit")
+  @Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "EntityManagerFactory obtained before shutdown; nothing leaked")
+  @Outcome(id = "0, 0", expect = ACCEPTABLE_INTERESTING, desc = "Bootstrap refused or cancelled by shutdown; nothing leaked")
+  @Outcome(expect = FORBIDDEN, desc = "An EntityManagerFactory outlived cleanup()")
+  @State
+  public static class CleanupVersusGetInstance {
+
+    private final PersistenceUnitInfo persistenceUnitInfo = StubPersistence.newPersistenceUnitInfo();
+
+    private final JpaInjectionServices services = new JpaInjectionServices();
+
+    private final ResourceReference<EntityManagerFactory> reference =
+      this.services.createEntityManagerFactoryReference(this.persistenceUnitInfo);
+
+    @Actor
+    public void getInstance(final II_Result r) {
+      try {
+        r.r1 = this.reference.getInstance() == null ? -1 : 1;
+      } catch (final EntityManagerFactoryUnavailableException | IllegalStateException refused) {
+        r.r1 = 0;
+      }
+    }
+
+    @Actor
+    public void cleanup() {
+      this.services.cleanup();
+    }
+
+    @Arbiter
+    public void arbiter(final II_Result r) {
+      // Deliberately not releasing the reference first: cleanup()
+      // alone must close whatever was created.
+      r.r2 = StubPersistence.countOpen(StubPersistence.removeCreated(this.persistenceUnitInfo.getPersistenceUnitName()));
+      this.reference.release();
+    }
+
+  }
+
+}
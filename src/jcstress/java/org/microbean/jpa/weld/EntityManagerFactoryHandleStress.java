@@ -0,0 +1,124 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+import org.openjdk.jcstress.infra.results.ZZZ_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Stress tests for the lease counting performed by {@link
+ * EntityManagerFactoryHandle}, on which the safe closing of evicted
+ * and replaced {@link javax.persistence.EntityManagerFactory}
+ * instances depends.
+ *
+ * <p>In every test, exactly one party must end up responsible for
+ * closing a retired {@link EntityManagerFactoryHandle}, and a lease
+ * must never be granted on one that has been closed.</p>
+ */
+public final class EntityManagerFactoryHandleStress {
+
+  private EntityManagerFactoryHandleStress() {
+    super();
+  }
+
+  @JCStressTest
+  @Description("acquire() racing with retire()")
+  @Outcome(id = "true, false, true", expect = ACCEPTABLE, desc = "Lease granted first; closed on its release")
+  @Outcome(id = "false, true, false", expect = ACCEPTABLE, desc = "Retired first; closed by the retirer")
+  @Outcome(expect = FORBIDDEN, desc = "Lease granted on a closable handle, or closed twice, or not at all")
+  @State
+  public static class AcquireVersusRetire {
+
+    private final EntityManagerFactoryHandle handle = new EntityManagerFactoryHandle(StubPersistence.newEntityManagerFactory());
+
+    @Actor
+    public void acquire(final ZZZ_Result r) {
+      r.r1 = this.handle.acquire();
+    }
+
+    @Actor
+    public void retire(final ZZZ_Result r) {
+      r.r2 = this.handle.retire();
+    }
+
+    @Arbiter
+    public void arbiter(final ZZZ_Result r) {
+      r.r3 = r.r1 && this.handle.release();
+    }
+
+  }
+
+  @JCStressTest
+  @Description("release() of the last lease racing with retire()")
+  @Outcome(id = "true, false", expect = ACCEPTABLE, desc = "Retired first; closed by the releaser")
+  @Outcome(id = "false, true", expect = ACCEPTABLE, desc = "Released first; closed by the retirer")
+  @Outcome(expect = FORBIDDEN, desc = "Closed twice, or not at all")
+  @State
+  public static class ReleaseVersusRetire {
+
+    private final EntityManagerFactoryHandle handle = new EntityManagerFactoryHandle(StubPersistence.newEntityManagerFactory());
+
+    public ReleaseVersusRetire() {
+      super();
+      this.handle.acquire();
+    }
+
+    @Actor
+    public void release(final ZZ_Result r) {
+      r.r1 = this.handle.release();
+    }
+
+    @Actor
+    public void retire(final ZZ_Result r) {
+      r.r2 = this.handle.retire();
+    }
+
+  }
+
+  @JCStressTest
+  @Description("acquire() racing with retireIfIdle(), as during eviction")
+  @Outcome(id = "true, false", expect = ACCEPTABLE, desc = "Lease granted; eviction declined")
+  @Outcome(id = "false, true", expect = ACCEPTABLE, desc = "Evicted; lease refused")
+  @Outcome(expect = FORBIDDEN, desc = "Lease granted on an evicted handle, or neither happened")
+  @State
+  public static class AcquireVersusEviction {
+
+    private final EntityManagerFactoryHandle handle = new EntityManagerFactoryHandle(StubPersistence.newEntityManagerFactory());
+
+    @Actor
+    public void acquire(final ZZ_Result r) {
+      r.r1 = this.handle.acquire();
+    }
+
+    @Actor
+    public void evict(final ZZ_Result r) {
+      r.r2 = this.handle.retireIfIdle(System.nanoTime(), 0L);
+    }
+
+  }
+
+}
@@ -0,0 +1,118 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Stress tests for {@link EntityManagerPool}.
+ *
+ * <p>A pooled {@link EntityManager} must never be handed to two
+ * callers at once, and the pool's size must never drift from the
+ * number of {@link EntityManager}s it actually holds.</p>
+ */
+public final class EntityManagerPoolStress {
+
+  private EntityManagerPoolStress() {
+    super();
+  }
+
+  @JCStressTest
+  @Description("Two poll() calls racing for one pooled EntityManager")
+  @Outcome(id = "true, false", expect = ACCEPTABLE, desc = "First poller won")
+  @Outcome(id = "false, true", expect = ACCEPTABLE, desc = "Second poller won")
+  @Outcome(expect = FORBIDDEN, desc = "EntityManager handed out twice, or lost")
+  @State
+  public static class PollVersusPoll {
+
+    private final EntityManagerFactory emf = StubPersistence.newEntityManagerFactory();
+
+    private final EntityManagerPool pool = new EntityManagerPool(4, 0L, TimeUnit.MILLISECONDS);
+
+    public PollVersusPoll() {
+      super();
+      this.pool.offer(this.emf, StubPersistence.newEntityManager(), null);
+    }
+
+    @Actor
+    public void poll1(final ZZ_Result r) {
+      r.r1 = this.pool.poll(this.emf) != null;
+    }
+
+    @Actor
+    public void poll2(final ZZ_Result r) {
+      r.r2 = this.pool.poll(this.emf) != null;
+    }
+
+  }
+
+  @JCStressTest
+  @Description("offer() racing with poll() and clear(EntityManagerFactory) on a pool with room for one")
+  @Outcome(id = "0, 0", expect = ACCEPTABLE, desc = "Pool empty and its size agrees")
+  @Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "One EntityManager pooled and its size agrees")
+  @Outcome(expect = FORBIDDEN, desc = "Size drifted from contents")
+  @State
+  public static class OfferVersusPollVersusClear {
+
+    private final EntityManagerFactory emf = StubPersistence.newEntityManagerFactory();
+
+    private final EntityManagerPool pool = new EntityManagerPool(1, 0L, TimeUnit.MILLISECONDS);
+
+    @Actor
+    public void offer() {
+      this.pool.offer(this.emf, StubPersistence.newEntityManager(), null);
+    }
+
+    @Actor
+    public void poll() {
+      this.pool.poll(this.emf);
+    }
+
+    @Actor
+    public void clear() {
+      this.pool.clear(this.emf);
+    }
+
+    @Arbiter
+    public void arbiter(final II_Result r) {
+      r.r1 = this.pool.size();
+      int contents = 0;
+      while (this.pool.poll(this.emf) != null) {
+        contents++;
+      }
+      r.r2 = contents;
+    }
+
+  }
+
+}
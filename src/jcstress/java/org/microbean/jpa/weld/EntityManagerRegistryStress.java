@@ -0,0 +1,82 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/**
+ * Stress tests for {@link EntityManagerRegistry}.
+ */
+public final class EntityManagerRegistryStress {
+
+  private EntityManagerRegistryStress() {
+    super();
+  }
+
+  @JCStressTest
+  @Description("register() racing with unregister() of another EntityManager")
+  @Outcome(id = "true, true", expect = ACCEPTABLE, desc = "Newly registered EntityManager retained")
+  @Outcome(expect = FORBIDDEN, desc = "Newly registered EntityManager lost, or unregistered one retained")
+  @State
+  public static class RegisterVersusUnregister {
+
+    private final EntityManagerRegistry registry = new EntityManagerRegistry();
+
+    private final EntityManager registered = StubPersistence.newEntityManager();
+
+    private final EntityManager unregistered = StubPersistence.newEntityManager();
+
+    private final EntityManagerRegistry.Registration unregisteredRegistration;
+
+    private volatile EntityManagerRegistry.Registration registeredRegistration;
+
+    public RegisterVersusUnregister() {
+      super();
+      this.unregisteredRegistration = this.registry.register(this.unregistered);
+    }
+
+    @Actor
+    public void register() {
+      this.registeredRegistration = this.registry.register(this.registered);
+    }
+
+    @Actor
+    public void unregister() {
+      this.registry.unregister(this.unregisteredRegistration);
+    }
+
+    @Arbiter
+    public void arbiter(final ZZ_Result r) {
+      r.r1 = this.registeredRegistration.get() == this.registered;
+      r.r2 = this.registry.size() == 1 && this.unregisteredRegistration.get() == null;
+    }
+
+  }
+
+}
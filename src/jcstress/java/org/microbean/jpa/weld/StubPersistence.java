@@ -0,0 +1,210 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceProviderResolver;
+import javax.persistence.spi.PersistenceProviderResolverHolder;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+/**
+ * Minimal, in-memory stand-ins for the JPA objects the stress tests
+ * in this package need, so that they can exercise {@link
+ * JpaInjectionServices} without a CDI container, a database or a
+ * real persistence provider.
+ *
+ * <p>Every {@link EntityManagerFactory} created by way of {@link
+ * javax.persistence.Persistence} is recorded, by persistence unit
+ * name, so that tests can tell how many were created and whether
+ * they were closed.</p>
+ */
+final class StubPersistence {
+
+  private static final AtomicLong UNIT_NAMES = new AtomicLong();
+
+  private static final ConcurrentMap<String, List<EntityManagerFactory>> CREATED = new ConcurrentHashMap<>();
+
+  static {
+    final PersistenceProvider provider = (PersistenceProvider)Proxy.newProxyInstance(PersistenceProvider.class.getClassLoader(),
+                                                                                     new Class<?>[] { PersistenceProvider.class },
+                                                                                     (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "createEntityManagerFactory":
+          final EntityManagerFactory emf = newEntityManagerFactory();
+          CREATED.computeIfAbsent((String)args[0], n -> new CopyOnWriteArrayList<>()).add(emf);
+          return emf;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+    PersistenceProviderResolverHolder.setPersistenceProviderResolver(new PersistenceProviderResolver() {
+        @Override
+        public final List<PersistenceProvider> getPersistenceProviders() {
+          return Collections.singletonList(provider);
+        }
+
+        @Override
+        public final void clearCachedProviders() {
+
+        }
+      });
+  }
+
+  private StubPersistence() {
+    super();
+  }
+
+  /**
+   * Returns a {@link PersistenceUnitInfo} describing a new {@code
+   * RESOURCE_LOCAL} persistence unit whose name has never been
+   * returned before.
+   */
+  static final PersistenceUnitInfo newPersistenceUnitInfo() {
+    final String name = "stress" + UNIT_NAMES.incrementAndGet();
+    final Properties properties = new Properties();
+    return (PersistenceUnitInfo)Proxy.newProxyInstance(PersistenceUnitInfo.class.getClassLoader(),
+                                                       new Class<?>[] { PersistenceUnitInfo.class },
+                                                       (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "getPersistenceUnitName":
+          return name;
+        case "getTransactionType":
+          return PersistenceUnitTransactionType.RESOURCE_LOCAL;
+        case "getProperties":
+          return properties;
+        case "excludeUnlistedClasses":
+          return Boolean.TRUE;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Returns, and forgets, the {@link EntityManagerFactory} instances
+   * created so far for the named persistence unit.
+   */
+  static final List<EntityManagerFactory> removeCreated(final String persistenceUnitName) {
+    final List<EntityManagerFactory> returnValue = CREATED.remove(persistenceUnitName);
+    return returnValue == null ? Collections.emptyList() : returnValue;
+  }
+
+  /**
+   * Returns the number of the supplied {@link EntityManagerFactory}
+   * instances that are still open.
+   */
+  static final int countOpen(final List<? extends EntityManagerFactory> emfs) {
+    int returnValue = 0;
+    for (final EntityManagerFactory emf : emfs) {
+      if (emf.isOpen()) {
+        returnValue++;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a new, open {@link EntityManagerFactory} whose {@link
+   * EntityManager}s do nothing.
+   */
+  static final EntityManagerFactory newEntityManagerFactory() {
+    final AtomicBoolean open = new AtomicBoolean(true);
+    return (EntityManagerFactory)Proxy.newProxyInstance(EntityManagerFactory.class.getClassLoader(),
+                                                        new Class<?>[] { EntityManagerFactory.class },
+                                                        (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "isOpen":
+          return open.get();
+        case "close":
+          if (!open.compareAndSet(true, false)) {
+            throw new IllegalStateException("already closed");
+          }
+          return null;
+        case "createEntityManager":
+          return newEntityManager();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Returns a new, open, {@code RESOURCE_LOCAL} {@link EntityManager}
+   * that does nothing.
+   */
+  static final EntityManager newEntityManager() {
+    final AtomicBoolean open = new AtomicBoolean(true);
+    final EntityTransaction transaction =
+      (EntityTransaction)Proxy.newProxyInstance(EntityTransaction.class.getClassLoader(),
+                                                new Class<?>[] { EntityTransaction.class },
+                                                (proxy, method, args) -> "isActive".equals(method.getName()) ? Boolean.FALSE : null);
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "isOpen":
+          return open.get();
+        case "close":
+          open.set(false);
+          return null;
+        case "getTransaction":
+          return transaction;
+        case "getFlushMode":
+          return FlushModeType.AUTO;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+}
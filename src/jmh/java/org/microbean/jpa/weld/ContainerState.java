@@ -0,0 +1,102 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.enterprise.inject.spi.AnnotatedField;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A JMH {@link State} that boots a Weld SE container, configured by
+ * the test resources, that includes the in-memory H2-backed {@code
+ * test} persistence unit.
+ */
+@State(Scope.Benchmark)
+public class ContainerState {
+
+  SeContainer container;
+
+  JpaInjectionServices services;
+
+  InjectionPoint persistenceContextInjectionPoint;
+
+  InjectionPoint persistenceUnitInjectionPoint;
+
+  public ContainerState() {
+    super();
+  }
+
+  @Setup
+  public void startContainer() {
+    this.container = SeContainerInitializer.newInstance().initialize();
+    this.services = this.container.select(JpaInjectionServices.class).get();
+    assert this.services != null;
+    final BeanManager beanManager = this.container.getBeanManager();
+    this.persistenceContextInjectionPoint = createInjectionPoint(beanManager, "em");
+    this.persistenceUnitInjectionPoint = createInjectionPoint(beanManager, "emf");
+  }
+
+  @TearDown
+  public void stopContainer() {
+    this.services = null;
+    if (this.container != null) {
+      this.container.close();
+      this.container = null;
+    }
+  }
+
+  private static final InjectionPoint createInjectionPoint(final BeanManager beanManager, final String fieldName) {
+    for (final AnnotatedField<? super Injectee> field : beanManager.createAnnotatedType(Injectee.class).getFields()) {
+      if (field.getJavaMember().getName().equals(fieldName)) {
+        return beanManager.createInjectionPoint(field);
+      }
+    }
+    throw new IllegalArgumentException(fieldName);
+  }
+
+  /**
+   * A class, deliberately not a bean, that houses the persistence
+   * injection points exercised by the benchmarks.
+   */
+  private static final class Injectee {
+
+    @PersistenceContext(unitName = "test")
+    private EntityManager em;
+
+    @PersistenceUnit(unitName = "test")
+    private EntityManagerFactory emf;
+
+    private Injectee() {
+      super();
+    }
+
+  }
+
+}
@@ -0,0 +1,89 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contended throughput of {@link ResourceReference#getInstance()}
+ * on a single {@link EntityManager}-producing {@link
+ * ResourceReference} shared by several threads.
+ *
+ * <p>The {@link #synchronizedGetInstance()} benchmark
+ * reproduces the former behavior, in which every call acquired the
+ * reference's monitor, and serves as the baseline against which
+ * {@link #getInstance()} should be compared.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+@State(Scope.Benchmark)
+public class EntityManagerAcquisitionBenchmark {
+
+  private ResourceReference<EntityManager> reference;
+
+  public EntityManagerAcquisitionBenchmark() {
+    super();
+  }
+
+  @Setup
+  public void setUp(final ContainerState state) {
+    this.reference = state.services.registerPersistenceContextInjectionPoint(state.persistenceContextInjectionPoint).createResource();
+    this.reference.getInstance();
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (this.reference != null) {
+      this.reference.release();
+      this.reference = null;
+    }
+  }
+
+  @Benchmark
+  public EntityManager getInstance() {
+    return this.reference.getInstance();
+  }
+
+  @Benchmark
+  public EntityManager synchronizedGetInstance() {
+    synchronized (this.reference) {
+      return this.reference.getInstance();
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Comparator;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.stream.Stream;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken to start a Weld SE container whose {@code
+ * test} persistence unit's {@link
+ * javax.persistence.EntityManagerFactory} is created eagerly at
+ * startup, with and without the {@linkplain
+ * JpaInjectionServices#METADATA_CACHE_DIRECTORY_PROPERTY_NAME
+ * metadata cache}.
+ *
+ * <p>The warmup iteration populates the cache, so every measured
+ * iteration with {@link #metadataCache} set to {@code true} reads
+ * it.</p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class EntityManagerFactoryBootstrapBenchmark {
+
+  @Param({ "false", "true" })
+  public boolean metadataCache;
+
+  private Path cacheDirectory;
+
+  public EntityManagerFactoryBootstrapBenchmark() {
+    super();
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    System.setProperty(JpaInjectionServices.EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME, "true");
+    if (this.metadataCache) {
+      this.cacheDirectory = Files.createTempDirectory("metadataCache");
+      System.setProperty(JpaInjectionServices.METADATA_CACHE_DIRECTORY_PROPERTY_NAME, this.cacheDirectory.toString());
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    System.clearProperty(JpaInjectionServices.METADATA_CACHE_DIRECTORY_PROPERTY_NAME);
+    System.clearProperty(JpaInjectionServices.EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME);
+    if (this.cacheDirectory != null) {
+      try (final Stream<Path> paths = Files.walk(this.cacheDirectory)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+      this.cacheDirectory = null;
+    }
+  }
+
+  @Benchmark
+  public void startContainer() {
+    final SeContainer container = SeContainerInitializer.newInstance().initialize();
+    container.close();
+  }
+
+}
@@ -0,0 +1,160 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.transaction.TransactionManager;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+import org.jboss.weld.injection.spi.ResourceReferenceFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Regression benchmarks for the operations {@link
+ * JpaInjectionServices} performs on behalf of Weld, measured against
+ * a Weld SE container booted with the in-memory H2-backed {@code
+ * test} persistence unit.
+ *
+ * <p>Each benchmark runs with a single thread by default; use JMH's
+ * {@code -t} option (for example, {@code
+ * -Djmh.args="JpaInjectionServicesBenchmark -t 8"}) to measure
+ * contended behavior.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JpaInjectionServicesBenchmark {
+
+  public JpaInjectionServicesBenchmark() {
+    super();
+  }
+
+  @Benchmark
+  public ResourceReferenceFactory<EntityManager> registerPersistenceContextInjectionPoint(final ContainerState state) {
+    return state.services.registerPersistenceContextInjectionPoint(state.persistenceContextInjectionPoint);
+  }
+
+  @Benchmark
+  public ResourceReferenceFactory<EntityManagerFactory> registerPersistenceUnitInjectionPoint(final ContainerState state) {
+    return state.services.registerPersistenceUnitInjectionPoint(state.persistenceUnitInjectionPoint);
+  }
+
+  @Benchmark
+  public void createResource(final Factories factories) {
+    factories.persistenceContext.createResource().release();
+  }
+
+  @Benchmark
+  public EntityManager getInstanceReleaseCycle(final Factories factories) {
+    final ResourceReference<EntityManager> reference = factories.persistenceContext.createResource();
+    try {
+      return reference.getInstance();
+    } finally {
+      reference.release();
+    }
+  }
+
+  @Benchmark
+  public void jtaTransactionBegun(final LiveReferences liveReferences) throws Exception {
+    liveReferences.tm.begin();
+    liveReferences.tm.rollback();
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  @State(Scope.Benchmark)
+  public static class Factories {
+
+    ResourceReferenceFactory<EntityManager> persistenceContext;
+
+    public Factories() {
+      super();
+    }
+
+    @Setup
+    public void setUp(final ContainerState state) {
+      this.persistenceContext = state.services.registerPersistenceContextInjectionPoint(state.persistenceContextInjectionPoint);
+    }
+
+  }
+
+  /**
+   * A per-thread collection of live {@link EntityManager}-producing
+   * {@link ResourceReference}s, each of which has had its {@link
+   * ResourceReference#getInstance()} method called on the benchmark
+   * thread.
+   */
+  @State(Scope.Thread)
+  public static class LiveReferences {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int injectionPoints;
+
+    private final List<ResourceReference<EntityManager>> references;
+
+    TransactionManager tm;
+
+    public LiveReferences() {
+      super();
+      this.references = new ArrayList<>();
+    }
+
+    @Setup
+    public void setUp(final ContainerState state) {
+      this.tm = state.container.select(TransactionManager.class).get();
+      for (int i = 0; i < this.injectionPoints; i++) {
+        final ResourceReference<EntityManager> reference =
+          state.services.registerPersistenceContextInjectionPoint(state.persistenceContextInjectionPoint).createResource();
+        reference.getInstance();
+        this.references.add(reference);
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      this.references.forEach(ResourceReference::release);
+      this.references.clear();
+    }
+
+  }
+
+}
@@ -0,0 +1,206 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of beginning a JTA transaction, by way of {@link
+ * JpaInjectionServices#jtaTransactionBegun()}, and of using a few
+ * container-managed {@link EntityManager}s in it, as the number of
+ * live, container-managed {@link EntityManager}s in the JVM grows.
+ *
+ * <p>The {@link EntityManager}s are {@linkplain
+ * EnlistingEntityManagerHandler enlisting proxies}, so the work
+ * measured includes enlisting each of those used on first use.
+ * Neither depends on the other registered {@link EntityManager}s, so
+ * the time taken per transaction should stay flat across all values
+ * of {@link #liveEntityManagers}.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class JtaTransactionBegunBenchmark {
+
+  @Param({ "10", "100", "1000", "10000" })
+  public int liveEntityManagers;
+
+  @Param({ "1", "4" })
+  public int entityManagersPerTransaction;
+
+  private JpaInjectionServices services;
+
+  private BenchmarkTransactionSynchronizationRegistry tsr;
+
+  // The registry only weakly references what it tracks.
+  private List<EntityManager> registered;
+
+  private EntityManager[] used;
+
+  public JtaTransactionBegunBenchmark() {
+    super();
+  }
+
+  @Setup
+  public void setUp() {
+    this.services = new JpaInjectionServices();
+    this.tsr = new BenchmarkTransactionSynchronizationRegistry();
+    this.registered = new ArrayList<>();
+    for (int i = 0; i < this.liveEntityManagers; i++) {
+      final EntityManager em = EnlistingEntityManagerHandler.newProxy(newNoOpEntityManager(), "benchmark", () -> this.tsr, null);
+      this.registered.add(em);
+      this.services.ems.register(em);
+    }
+    this.used = new EntityManager[Math.min(this.entityManagersPerTransaction, this.liveEntityManagers)];
+    for (int i = 0; i < this.used.length; i++) {
+      this.used[i] = this.registered.get(i * (this.liveEntityManagers / this.used.length));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.services.ems.clear();
+    this.services.cleanup();
+    this.registered = null;
+    this.used = null;
+  }
+
+  @Benchmark
+  public void jtaTransactionBegun() {
+    this.tsr.begin();
+    try {
+      this.services.jtaTransactionBegun();
+      for (final EntityManager em : this.used) {
+        em.flush();
+      }
+    } finally {
+      this.tsr.end();
+    }
+  }
+
+  static final EntityManager newNoOpEntityManager() {
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 (proxy, method, args) -> {
+                                                   switch (method.getName()) {
+                                                   case "equals":
+                                                     return proxy == args[0];
+                                                   case "hashCode":
+                                                     return System.identityHashCode(proxy);
+                                                   case "isOpen":
+                                                     return Boolean.TRUE;
+                                                   case "isJoinedToTransaction":
+                                                     return Boolean.FALSE;
+                                                   default:
+                                                     return null;
+                                                   }
+                                                 });
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class BenchmarkTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+    private final Map<Object, Object> resources;
+
+    private boolean active;
+
+    private BenchmarkTransactionSynchronizationRegistry() {
+      super();
+      this.resources = new HashMap<>();
+    }
+
+    private final void begin() {
+      this.active = true;
+    }
+
+    private final void end() {
+      this.active = false;
+      this.resources.clear();
+    }
+
+    @Override
+    public final Object getTransactionKey() {
+      return this.active ? this : null;
+    }
+
+    @Override
+    public final void putResource(final Object key, final Object value) {
+      this.resources.put(key, value);
+    }
+
+    @Override
+    public final Object getResource(final Object key) {
+      return this.resources.get(key);
+    }
+
+    @Override
+    public final void registerInterposedSynchronization(final Synchronization synchronization) {
+
+    }
+
+    @Override
+    public final int getTransactionStatus() {
+      return this.active ? Status.STATUS_ACTIVE : Status.STATUS_NO_TRANSACTION;
+    }
+
+    @Override
+    public final void setRollbackOnly() {
+
+    }
+
+    @Override
+    public final boolean getRollbackOnly() {
+      return false;
+    }
+
+  }
+
+}
@@ -0,0 +1,206 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Objects;
+
+import javax.persistence.EntityManager;
+
+/**
+ * An {@link InvocationHandler} for {@link EntityManager} proxies
+ * that represent bulk-ingestion persistence contexts.
+ *
+ * <p>Such a proxy counts the entities passed to {@link
+ * EntityManager#persist(Object)}, {@link
+ * EntityManager#merge(Object)} and {@link
+ * EntityManager#remove(Object)}.  Every time the count reaches the
+ * proxy's flush interval, and the underlying {@link EntityManager}
+ * is joined to a transaction, the proxy {@linkplain
+ * EntityManager#flush() flushes} and then {@linkplain
+ * EntityManager#clear() clears} the persistence context, so that the
+ * number of managed entities, and hence the memory they occupy,
+ * never exceeds the flush interval no matter how many entities are
+ * written in one transaction.  The count starts again whenever the
+ * caller flushes or clears the persistence context itself.</p>
+ *
+ * <p>Once a persistence context has been cleared, every entity it
+ * managed is detached, including any returned earlier by {@link
+ * EntityManager#merge(Object)}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#FLUSH_INTERVAL_PROPERTY_NAME
+ */
+final class BulkEntityManagerHandler implements InvocationHandler {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManager delegate;
+
+  private final int flushInterval;
+
+  private final String persistenceUnitName;
+
+  private final JpaInjectionServicesMetrics metrics;
+
+  // EntityManagers are not safe for use by multiple threads, so
+  // neither are these.
+
+  private int writes;
+
+  private long windowStart;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private BulkEntityManagerHandler(final EntityManager delegate,
+                                   final int flushInterval,
+                                   final String persistenceUnitName,
+                                   final JpaInjectionServicesMetrics metrics) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    if (flushInterval <= 0) {
+      throw new IllegalArgumentException("flushInterval <= 0: " + flushInterval);
+    }
+    this.flushInterval = flushInterval;
+    this.persistenceUnitName = Objects.requireNonNull(persistenceUnitName);
+    this.metrics = metrics;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+    final Object returnValue;
+    switch (method.getName()) {
+    case "equals":
+      returnValue = proxy == arguments[0];
+      break;
+    case "hashCode":
+      returnValue = System.identityHashCode(proxy);
+      break;
+    case "toString":
+      returnValue = "Bulk-ingestion EntityManager proxy for " + this.delegate;
+      break;
+    case "persist":
+    case "merge":
+    case "remove":
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      this.written();
+      break;
+    case "flush":
+    case "clear":
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      this.writes = 0;
+      break;
+    default:
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      break;
+    }
+    return returnValue;
+  }
+
+  private final void written() {
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    if (this.writes++ == 0 && metrics != null) {
+      this.windowStart = System.nanoTime();
+    }
+    if (this.writes >= this.flushInterval) {
+      final int writes = this.writes;
+      this.writes = 0;
+      // Outside a transaction there is nothing to flush to, and
+      // clearing would silently discard the pending writes.
+      if (this.delegate.isJoinedToTransaction()) {
+        this.delegate.flush();
+        this.delegate.clear();
+        if (metrics != null) {
+          metrics.entitiesFlushed(this.persistenceUnitName, writes, System.nanoTime() - this.windowStart);
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new bulk-ingestion {@link EntityManager} proxy for the
+   * supplied {@link EntityManager}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param delegate the {@link EntityManager} to which the proxy will
+   * delegate; must not be {@code null}
+   *
+   * @param flushInterval the number of entities written after which
+   * the persistence context is flushed and cleared; must be positive
+   *
+   * @param persistenceUnitName the name of the persistence unit, for
+   * reporting purposes; must not be {@code null}
+   *
+   * @param metrics the {@link JpaInjectionServicesMetrics} to which
+   * flushes will be reported; may be {@code null}
+   *
+   * @return a new, non-{@code null} {@link EntityManager} proxy
+   *
+   * @exception NullPointerException if {@code delegate} or {@code
+   * persistenceUnitName} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code flushInterval} is
+   * not positive
+   */
+  static final EntityManager newProxy(final EntityManager delegate,
+                                      final int flushInterval,
+                                      final String persistenceUnitName,
+                                      final JpaInjectionServicesMetrics metrics) {
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 new BulkEntityManagerHandler(delegate,
+                                                                              flushInterval,
+                                                                              persistenceUnitName,
+                                                                              metrics));
+  }
+
+  private static final Object invokeDelegate(final Object target, final Method method, final Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,219 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Objects;
+
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.SynchronizationType;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * An {@link InvocationHandler} for {@link EntityManager} proxies
+ * that join a {@link SynchronizationType#SYNCHRONIZED synchronized}
+ * {@link EntityManager} to a JTA transaction the first time it is
+ * actually used inside that transaction, rather than when the
+ * transaction begins.
+ *
+ * <p>Whether the underlying {@link EntityManager} has already been
+ * enlisted is recorded in the current transaction itself, as a
+ * {@linkplain TransactionSynchronizationRegistry#putResource(Object,
+ * Object) resource} keyed by the handler, and not in the handler.
+ * Consequently it does not matter which thread acquired the {@link
+ * EntityManager}: a bean created at startup, or on some other
+ * thread, has its {@link EntityManager} enlisted in whatever
+ * transaction is active on the thread that uses it.  The first
+ * invocation of any method on the proxy in a given transaction,
+ * other than {@link Object} methods, {@link EntityManager#close()}
+ * and the methods that merely describe the {@link EntityManager},
+ * such as {@link EntityManager#isOpen()}, {@link
+ * EntityManager#isJoinedToTransaction()}, {@link
+ * EntityManager#getProperties()} and {@link
+ * EntityManager#getFlushMode()}, calls {@link
+ * EntityManager#joinTransaction()} on the underlying {@link
+ * EntityManager} first.  An explicit call to {@link
+ * EntityManager#joinTransaction()} is recorded in the same way, so
+ * that it is not followed by another.  An {@link EntityManager} that a
+ * transaction never touches is therefore never synchronized with
+ * it, and does not add to the cost of its commit.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see EntityManagerRegistry
+ */
+final class EnlistingEntityManagerHandler implements InvocationHandler {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManager delegate;
+
+  private final String persistenceUnitName;
+
+  private final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier;
+
+  private final JpaInjectionServicesMetrics metrics;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private EnlistingEntityManagerHandler(final EntityManager delegate,
+                                        final String persistenceUnitName,
+                                        final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier,
+                                        final JpaInjectionServicesMetrics metrics) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    this.persistenceUnitName = Objects.requireNonNull(persistenceUnitName);
+    this.tsrSupplier = Objects.requireNonNull(tsrSupplier);
+    this.metrics = metrics;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+    switch (method.getName()) {
+    case "equals":
+      return proxy == arguments[0];
+    case "hashCode":
+      return System.identityHashCode(proxy);
+    case "toString":
+      return "Enlisting EntityManager proxy for " + this.delegate;
+    case "isOpen":
+    case "close":
+    case "isJoinedToTransaction":
+    case "getEntityManagerFactory":
+    case "getProperties":
+    case "getFlushMode":
+    case "getMetamodel":
+    case "getCriteriaBuilder":
+      // Introspection alone does not warrant enlistment.
+      break;
+    case "joinTransaction":
+      this.delegate.joinTransaction();
+      final TransactionSynchronizationRegistry tsr = this.getActiveTransactionSynchronizationRegistry();
+      if (tsr != null) {
+        tsr.putResource(this, Boolean.TRUE);
+      }
+      return null;
+    default:
+      this.enlist();
+      break;
+    }
+    try {
+      return method.invoke(this.delegate, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
+    }
+  }
+
+  private final void enlist() {
+    final TransactionSynchronizationRegistry tsr = this.getActiveTransactionSynchronizationRegistry();
+    if (tsr == null || tsr.getResource(this) != null) {
+      // There is no active transaction, or this EntityManager has
+      // already been enlisted in (or explicitly joined to) it.
+      return;
+    }
+    if (this.delegate.isOpen() && !this.delegate.isJoinedToTransaction()) {
+      final JpaInjectionServicesMetrics metrics = this.metrics;
+      if (metrics == null) {
+        this.delegate.joinTransaction();
+      } else {
+        final long start = System.nanoTime();
+        this.delegate.joinTransaction();
+        metrics.entityManagerEnlisted(this.persistenceUnitName, System.nanoTime() - start);
+      }
+    }
+    tsr.putResource(this, Boolean.TRUE);
+  }
+
+  private final TransactionSynchronizationRegistry getActiveTransactionSynchronizationRegistry() {
+    final TransactionSynchronizationRegistry tsr = this.tsrSupplier.get();
+    if (tsr != null) {
+      final int status = tsr.getTransactionStatus();
+      if (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK) {
+        return tsr;
+      }
+    }
+    return null;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new {@link EntityManager} proxy that delegates to the
+   * supplied {@link EntityManager} and joins it to each JTA
+   * transaction in which it is used, on first use.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param delegate the {@link EntityManager} to which the proxy will
+   * delegate; must not be {@code null}; should have been created
+   * with {@link SynchronizationType#SYNCHRONIZED}
+   *
+   * @param persistenceUnitName the name of the persistence unit, for
+   * reporting purposes; must not be {@code null}
+   *
+   * @param tsrSupplier a {@link Supplier} of the {@link
+   * TransactionSynchronizationRegistry} in effect, which may return
+   * {@code null}; must not be {@code null}
+   *
+   * @param metrics the {@link JpaInjectionServicesMetrics} to which
+   * enlistments will be reported; may be {@code null}
+   *
+   * @return a new, non-{@code null} {@link EntityManager} proxy
+   *
+   * @exception NullPointerException if {@code delegate}, {@code
+   * persistenceUnitName} or {@code tsrSupplier} is {@code null}
+   */
+  static final EntityManager newProxy(final EntityManager delegate,
+                                      final String persistenceUnitName,
+                                      final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier,
+                                      final JpaInjectionServicesMetrics metrics) {
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 new EnlistingEntityManagerHandler(delegate,
+                                                                                   persistenceUnitName,
+                                                                                   tsrSupplier,
+                                                                                   metrics));
+  }
+
+}
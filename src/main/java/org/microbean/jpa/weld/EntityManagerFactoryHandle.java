@@ -0,0 +1,270 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * An {@link EntityManagerFactory} together with a count of the
+ * leases currently held on it.
+ *
+ * <p>A lease is held for as long as an {@link
+ * javax.persistence.EntityManager} created by the {@link
+ * EntityManagerFactory} is live, or for as long as the {@link
+ * EntityManagerFactory} itself has been handed out to application
+ * code.  An {@link EntityManagerFactoryHandle} may be {@linkplain
+ * #retire() retired}, after which no new leases may be {@linkplain
+ * #acquire() acquired}; its {@link EntityManagerFactory} may be
+ * closed once its last lease has been {@linkplain #release()
+ * released}.  This lets {@link JpaInjectionServices} close an {@link
+ * EntityManagerFactory} it no longer wants without disturbing any
+ * {@link javax.persistence.EntityManager}s still using it.</p>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME
+ *
+ * @see JpaInjectionServices#ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME
+ */
+final class EntityManagerFactoryHandle {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  // Set in this.state once this EntityManagerFactoryHandle has been
+  // retired; the remaining bits hold the number of leases.
+  private static final int RETIRED = Integer.MIN_VALUE;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManagerFactory emf;
+
+  private final AtomicInteger state;
+
+  private volatile long idleSince;
+
+  private volatile boolean leased;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link EntityManagerFactoryHandle} with no leases.
+   *
+   * @param emf the {@link EntityManagerFactory} to manage; must not
+   * be {@code null}
+   *
+   * @exception NullPointerException if {@code emf} is {@code null}
+   */
+  EntityManagerFactoryHandle(final EntityManagerFactory emf) {
+    super();
+    this.emf = Objects.requireNonNull(emf);
+    this.state = new AtomicInteger();
+    this.idleSince = System.nanoTime();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link EntityManagerFactory} managed by this {@link
+   * EntityManagerFactoryHandle}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   */
+  final EntityManagerFactory get() {
+    return this.emf;
+  }
+
+  /**
+   * Attempts to acquire a lease on this {@link
+   * EntityManagerFactoryHandle}, returning {@code true} if it
+   * succeeded.
+   *
+   * <p>A lease cannot be acquired once this {@link
+   * EntityManagerFactoryHandle} has been {@linkplain #retire()
+   * retired}.  Every successful invocation of this method must be
+   * balanced by an invocation of the {@link #release()} method.</p>
+   *
+   * @return {@code true} if a lease was acquired
+   */
+  final boolean acquire() {
+    int state;
+    do {
+      state = this.state.get();
+      if ((state & RETIRED) != 0) {
+        return false;
+      }
+    } while (!this.state.compareAndSet(state, state + 1));
+    return true;
+  }
+
+  /**
+   * Releases a lease previously {@linkplain #acquire() acquired} on
+   * this {@link EntityManagerFactoryHandle}, returning {@code true}
+   * if it was the last lease on a {@linkplain #retire() retired}
+   * {@link EntityManagerFactoryHandle}, in which case the caller is
+   * responsible for {@linkplain #close() closing} it.
+   *
+   * @return {@code true} if the caller must now {@linkplain #close()
+   * close} this {@link EntityManagerFactoryHandle}
+   */
+  final boolean release() {
+    final int state = this.state.decrementAndGet();
+    assert (state & ~RETIRED) >= 0;
+    if (state == 0) {
+      this.idleSince = System.nanoTime();
+      this.leased = true;
+    }
+    return state == RETIRED;
+  }
+
+  /**
+   * Retires this {@link EntityManagerFactoryHandle}, so that no new
+   * leases may be acquired on it, returning {@code true} if it has
+   * no outstanding leases and was not already retired, in which case
+   * the caller is responsible for {@linkplain #close() closing} it.
+   *
+   * <p>Otherwise, the {@link #release()} invocation that releases
+   * the last outstanding lease will return {@code true}.</p>
+   *
+   * @return {@code true} if the caller must now {@linkplain #close()
+   * close} this {@link EntityManagerFactoryHandle}
+   */
+  final boolean retire() {
+    int state;
+    do {
+      state = this.state.get();
+      if ((state & RETIRED) != 0) {
+        return false;
+      }
+    } while (!this.state.compareAndSet(state, state | RETIRED));
+    return state == 0;
+  }
+
+  /**
+   * Retires this {@link EntityManagerFactoryHandle} if and only if
+   * it has no outstanding leases and has had none for at least the
+   * supplied number of nanoseconds, returning {@code true} if it did
+   * so, in which case the caller is responsible for {@linkplain
+   * #close() closing} it.
+   *
+   * @param now the current value of {@link System#nanoTime()}
+   *
+   * @param idleNanos the minimum number of nanoseconds this {@link
+   * EntityManagerFactoryHandle} must have been idle for; may be
+   * {@code 0L}
+   *
+   * @return {@code true} if the caller must now {@linkplain #close()
+   * close} this {@link EntityManagerFactoryHandle}
+   */
+  final boolean retireIfIdle(final long now, final long idleNanos) {
+    return now - this.idleSince >= idleNanos && this.state.compareAndSet(0, RETIRED);
+  }
+
+  /**
+   * Returns {@code true} if this {@link EntityManagerFactoryHandle}
+   * has no outstanding leases and has not been {@linkplain #retire()
+   * retired}.
+   *
+   * @return {@code true} if this {@link EntityManagerFactoryHandle}
+   * is idle
+   */
+  final boolean isIdle() {
+    return this.state.get() == 0;
+  }
+
+  /**
+   * Returns {@code true} if a lease on this {@link
+   * EntityManagerFactoryHandle} has ever been acquired and released.
+   *
+   * @return {@code true} if this {@link EntityManagerFactoryHandle}
+   * has ever been leased
+   */
+  final boolean hasBeenLeased() {
+    return this.leased;
+  }
+
+  /**
+   * Returns the value of {@link System#nanoTime()} at the moment the
+   * last outstanding lease on this {@link EntityManagerFactoryHandle}
+   * was released, or at which it was created if no lease has ever
+   * been released.
+   *
+   * @return the time this {@link EntityManagerFactoryHandle} last
+   * became idle
+   */
+  final long getIdleSince() {
+    return this.idleSince;
+  }
+
+  /**
+   * Returns {@code true} if this {@link EntityManagerFactoryHandle}
+   * has been {@linkplain #retire() retired}.
+   *
+   * @return {@code true} if this {@link EntityManagerFactoryHandle}
+   * has been retired
+   */
+  final boolean isRetired() {
+    return (this.state.get() & RETIRED) != 0;
+  }
+
+  /**
+   * Returns the number of leases currently held on this {@link
+   * EntityManagerFactoryHandle}.
+   *
+   * @return the number of leases; never negative
+   */
+  final int leases() {
+    return this.state.get() & ~RETIRED;
+  }
+
+  /**
+   * Retires this {@link EntityManagerFactoryHandle}, if it has not
+   * been retired already, and closes its {@link
+   * EntityManagerFactory} regardless of any outstanding leases.
+   */
+  final void close() {
+    this.state.getAndUpdate(state -> state | RETIRED);
+    if (this.emf.isOpen()) {
+      this.emf.close();
+    }
+  }
+
+}
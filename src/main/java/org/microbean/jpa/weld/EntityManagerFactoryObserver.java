@@ -0,0 +1,78 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.annotation.Priority;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+
+import javax.enterprise.event.Observes;
+
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+
+import javax.persistence.EntityManagerFactory;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import static javax.interceptor.Interceptor.Priority.PLATFORM_BEFORE;
+
+/**
+ * A bean housing an observer method that causes a {@link
+ * JpaInjectionServices} instance to begin creating {@link
+ * EntityManagerFactory} instances at startup: for all persistence
+ * units if so configured, or otherwise for those persistence units
+ * recorded in {@link PersistenceInjectionPointIndex} instances.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME
+ *
+ * @see JpaInjectionServicesExtension#getIndexedPersistenceUnitNames()
+ */
+@ApplicationScoped
+final class EntityManagerFactoryObserver {
+
+  private EntityManagerFactoryObserver() {
+    super();
+  }
+
+  private static final void createEntityManagerFactories(@Observes
+                                                         @Initialized(ApplicationScoped.class)
+                                                         @Priority(PLATFORM_BEFORE)
+                                                         final Object event,
+                                                         @Any
+                                                         final Instance<PersistenceUnitInfo> persistenceUnitInfos,
+                                                         final JpaInjectionServices services,
+                                                         final JpaInjectionServicesExtension extension) {
+    if (services != null) {
+      if (Boolean.getBoolean(JpaInjectionServices.EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME)) {
+        if (persistenceUnitInfos != null) {
+          // Every persistence unit, whether described by a
+          // META-INF/persistence.xml resource or not, is represented
+          // in CDI by a PersistenceUnitInfo bean.
+          services.createEntityManagerFactories(persistenceUnitInfos);
+        }
+      } else if (extension != null) {
+        services.scheduleEntityManagerFactories(extension.getIndexedPersistenceUnitNames());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+/**
+ * A {@link PersistenceException} indicating that the {@link
+ * EntityManagerFactory} for a persistence unit could not be made
+ * available, either because its creation failed, because its creation
+ * did not finish in time, or because its creation failed recently
+ * enough that it has not yet been retried.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME
+ *
+ * @see JpaInjectionServices#ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME
+ */
+public class EntityManagerFactoryUnavailableException extends PersistenceException {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final long serialVersionUID = 1L;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String persistenceUnitName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link EntityManagerFactoryUnavailableException}.
+   *
+   * @param persistenceUnitName the name of the persistence unit
+   * whose {@link EntityManagerFactory} is unavailable; may be {@code
+   * null}
+   *
+   * @param message a detail message; may be {@code null}
+   *
+   * @param cause the cause of this {@link
+   * EntityManagerFactoryUnavailableException}; may be {@code null}
+   */
+  public EntityManagerFactoryUnavailableException(final String persistenceUnitName,
+                                                  final String message,
+                                                  final Throwable cause) {
+    super(message, cause);
+    this.persistenceUnitName = persistenceUnitName;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit whose {@link
+   * EntityManagerFactory} is unavailable.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the name of the persistence unit, or {@code null}
+   */
+  public final String getPersistenceUnitName() {
+    return this.persistenceUnitName;
+  }
+
+}
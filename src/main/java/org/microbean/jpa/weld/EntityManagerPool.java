@@ -0,0 +1,309 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Deque;
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+
+/**
+ * A bounded pool of idle, application-managed {@link EntityManager}s
+ * belonging to a single {@code RESOURCE_LOCAL} persistence unit.
+ *
+ * <p>An {@link EntityManager} is accepted by the {@link
+ * #offer(EntityManagerFactory, EntityManager, FlushModeType)} method
+ * only if it is open and has no active {@linkplain
+ * EntityManager#getTransaction() resource-local transaction}.  It is
+ * then {@linkplain EntityManager#clear() cleared}, so that it holds
+ * no managed entities, and its {@linkplain
+ * EntityManager#getFlushMode() flush mode} is restored, before it is
+ * made available for reuse.</p>
+ *
+ * <p>{@link EntityManager}s that have been idle for longer than the
+ * pool's idle timeout are closed lazily, whenever an {@link
+ * EntityManager} is offered to or polled from the pool; no
+ * background thread is used.</p>
+ *
+ * <p>A pool whose maximum size is {@code 0} is {@linkplain
+ * #isEnabled() disabled} and never holds any {@link
+ * EntityManager}s.</p>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME
+ */
+final class EntityManagerPool {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final int maximumSize;
+
+  private final long idleTimeoutNanos;
+
+  // Most recently returned entries are at the head; the
+  // longest-idle ones are at the tail.
+  private final Deque<Entry> idle;
+
+  private final AtomicInteger size;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link EntityManagerPool}.
+   *
+   * @param maximumSize the maximum number of idle {@link
+   * EntityManager}s the pool will hold; if not positive, the pool
+   * will be {@linkplain #isEnabled() disabled}
+   *
+   * @param idleTimeout the length of time an {@link EntityManager}
+   * may sit idle in the pool before being closed; if not positive,
+   * idle {@link EntityManager}s are never closed for being idle
+   *
+   * @param unit the {@link TimeUnit} in which {@code idleTimeout} is
+   * expressed; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   */
+  EntityManagerPool(final int maximumSize, final long idleTimeout, final TimeUnit unit) {
+    super();
+    this.maximumSize = Math.max(0, maximumSize);
+    this.idleTimeoutNanos = idleTimeout > 0L ? unit.toNanos(idleTimeout) : Long.MAX_VALUE;
+    this.idle = new ConcurrentLinkedDeque<>();
+    this.size = new AtomicInteger();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@code true} if this {@link EntityManagerPool} may hold
+   * {@link EntityManager}s at all.
+   *
+   * @return {@code true} if this {@link EntityManagerPool} is enabled
+   */
+  final boolean isEnabled() {
+    return this.maximumSize > 0;
+  }
+
+  /**
+   * Removes and returns an idle {@link EntityManager} created by the
+   * supplied {@link EntityManagerFactory}, or returns {@code null} if
+   * there is none.
+   *
+   * <p>Idle {@link EntityManager}s created by any other {@link
+   * EntityManagerFactory}, or that have been closed in the meantime,
+   * are closed and discarded.</p>
+   *
+   * @param emf the {@link EntityManagerFactory} the caller would
+   * otherwise use to create a new {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @return an open, cleared {@link EntityManager} with no active
+   * transaction, or {@code null}
+   *
+   * @exception NullPointerException if {@code emf} is {@code null}
+   */
+  final EntityManager poll(final EntityManagerFactory emf) {
+    Objects.requireNonNull(emf);
+    if (!this.isEnabled()) {
+      return null;
+    }
+    this.evictIdle();
+    Entry entry;
+    while ((entry = this.idle.pollFirst()) != null) {
+      this.size.decrementAndGet();
+      if (entry.emf == emf && emf.isOpen() && entry.em.isOpen()) {
+        return entry.em;
+      }
+      close(entry.em);
+    }
+    return null;
+  }
+
+  /**
+   * Offers the supplied {@link EntityManager} to this {@link
+   * EntityManagerPool} for later reuse, returning {@code true} if it
+   * was accepted, in which case the caller must no longer use it.
+   *
+   * <p>If this method returns {@code false}, the caller remains
+   * responsible for closing the {@link EntityManager}.</p>
+   *
+   * @param emf the {@link EntityManagerFactory} that created the
+   * {@link EntityManager}; must not be {@code null}
+   *
+   * @param em the {@link EntityManager} to offer; must not be {@code
+   * null}
+   *
+   * @param flushMode the {@link FlushModeType} the {@link
+   * EntityManager} had when it was first acquired, which it will be
+   * reset to; may be {@code null} in which case its flush mode will
+   * be left as it is
+   *
+   * @return {@code true} if the {@link EntityManager} was accepted
+   *
+   * @exception NullPointerException if {@code emf} or {@code em} is
+   * {@code null}
+   */
+  final boolean offer(final EntityManagerFactory emf, final EntityManager em, final FlushModeType flushMode) {
+    Objects.requireNonNull(emf);
+    Objects.requireNonNull(em);
+    if (!this.isEnabled() || !emf.isOpen() || !em.isOpen()) {
+      return false;
+    }
+    try {
+      if (em.getTransaction().isActive()) {
+        return false;
+      }
+      em.clear();
+      if (flushMode != null && !flushMode.equals(em.getFlushMode())) {
+        em.setFlushMode(flushMode);
+      }
+    } catch (final IllegalStateException | PersistenceException exception) {
+      // The EntityManager is not a resource-local one, or is in a
+      // state we cannot reason about; don't reuse it.
+      return false;
+    }
+    this.evictIdle();
+    if (this.size.incrementAndGet() > this.maximumSize) {
+      this.size.decrementAndGet();
+      return false;
+    }
+    this.idle.offerFirst(new Entry(emf, em));
+    return true;
+  }
+
+  /**
+   * Closes and removes every idle {@link EntityManager} in this
+   * {@link EntityManagerPool}.
+   *
+   * <p>The pool remains usable afterwards.</p>
+   */
+  final void clear() {
+    Entry entry;
+    while ((entry = this.idle.pollLast()) != null) {
+      this.size.decrementAndGet();
+      close(entry.em);
+    }
+  }
+
+  /**
+   * Closes and removes every idle {@link EntityManager} in this
+   * {@link EntityManagerPool} that was created by the supplied {@link
+   * EntityManagerFactory}.
+   *
+   * <p>This method should be called before the supplied {@link
+   * EntityManagerFactory} is closed.</p>
+   *
+   * @param emf the {@link EntityManagerFactory} in question; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code emf} is {@code null}
+   */
+  final void clear(final EntityManagerFactory emf) {
+    Objects.requireNonNull(emf);
+    for (final Entry entry : this.idle) {
+      if (entry.emf == emf && this.idle.removeFirstOccurrence(entry)) {
+        this.size.decrementAndGet();
+        close(entry.em);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of idle {@link EntityManager}s currently held
+   * by this {@link EntityManagerPool}.
+   *
+   * @return the number of idle {@link EntityManager}s; never
+   * negative
+   */
+  final int size() {
+    return Math.max(0, this.size.get());
+  }
+
+  private final void evictIdle() {
+    if (this.idleTimeoutNanos == Long.MAX_VALUE) {
+      return;
+    }
+    final long now = System.nanoTime();
+    Entry entry;
+    while ((entry = this.idle.peekLast()) != null && now - entry.idleSince > this.idleTimeoutNanos) {
+      if (this.idle.removeLastOccurrence(entry)) {
+        this.size.decrementAndGet();
+        close(entry.em);
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final void close(final EntityManager em) {
+    if (em.isOpen()) {
+      em.close();
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class Entry {
+
+    private final EntityManagerFactory emf;
+
+    private final EntityManager em;
+
+    private final long idleSince;
+
+    private Entry(final EntityManagerFactory emf, final EntityManager em) {
+      super();
+      this.emf = emf;
+      this.em = em;
+      this.idleSince = System.nanoTime();
+    }
+
+  }
+
+}
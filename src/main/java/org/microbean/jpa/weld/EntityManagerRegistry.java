@@ -0,0 +1,333 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+/**
+ * A registry of live container-managed {@link EntityManager}s.
+ *
+ * <p>An {@link EntityManager} is not tied to the {@link Thread} that
+ * acquired it: a bean with a wider scope than a request may acquire
+ * one on one thread and use it in JTA transactions begun on others.
+ * Enlistment in those transactions is therefore not driven from here
+ * but happens on first use; see {@link
+ * EnlistingEntityManagerHandler}.  This registry exists to count live
+ * {@link EntityManager}s and to detect those that leak.</p>
+ *
+ * <p>{@link EntityManager}s are only {@linkplain WeakReference weakly}
+ * referenced.  An {@link EntityManager} that becomes unreachable
+ * without having been {@linkplain #unregister(Registration)
+ * unregistered} has leaked: whatever acquired it never released it.
+ * The next time this registry is used, such an {@link EntityManager}
+ * is forgotten, the leak is logged together with the origin supplied
+ * when the {@link EntityManager} was {@linkplain
+ * #register(EntityManager, String, Runnable) registered}, and the
+ * action supplied at the same time is run.  A leaked {@link
+ * EntityManager}, its persistence context and the entities it
+ * manages are therefore retained no longer than any other
+ * garbage.</p>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see EnlistingEntityManagerHandler
+ */
+final class EntityManagerRegistry {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final Logger logger = Logger.getLogger(EntityManagerRegistry.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final Set<Registration> registrations;
+
+  private final ReferenceQueue<EntityManager> queue;
+
+  private final AtomicInteger size;
+
+  private final AtomicLong leaked;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new, empty {@link EntityManagerRegistry}.
+   */
+  EntityManagerRegistry() {
+    super();
+    this.registrations = ConcurrentHashMap.newKeySet();
+    this.queue = new ReferenceQueue<>();
+    this.size = new AtomicInteger();
+    this.leaked = new AtomicLong();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Records the supplied {@link EntityManager} as live.
+   *
+   * <p>This method calls the {@link #register(EntityManager, String,
+   * Runnable)} method with {@code null} as the values of its last two
+   * parameters.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param em the {@link EntityManager} to register; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link Registration} to be supplied
+   * to the {@link #unregister(Registration)} method
+   *
+   * @exception NullPointerException if {@code em} is {@code null}
+   *
+   * @see #register(EntityManager, String, Runnable)
+   */
+  final Registration register(final EntityManager em) {
+    return this.register(em, null, null);
+  }
+
+  /**
+   * Records the supplied {@link EntityManager} as live.
+   *
+   * <p>The supplied {@code leakAction}, if any, must not refer,
+   * directly or indirectly, to the supplied {@link EntityManager}, or
+   * the {@link EntityManager} will never become unreachable.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param em the {@link EntityManager} to register; must not be
+   * {@code null}
+   *
+   * @param origin a description of what acquired the {@link
+   * EntityManager}, such as an injection point, to be logged if it
+   * leaks; may be {@code null}
+   *
+   * @param leakAction a {@link Runnable} to run if the {@link
+   * EntityManager} leaks, typically to release resources acquired on
+   * its behalf; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Registration} to be supplied
+   * to the {@link #unregister(Registration)} method
+   *
+   * @exception NullPointerException if {@code em} is {@code null}
+   *
+   * @see #unregister(Registration)
+   */
+  final Registration register(final EntityManager em, final String origin, final Runnable leakAction) {
+    Objects.requireNonNull(em);
+    this.expunge();
+    final Registration registration = new Registration(em, this.queue, Thread.currentThread().getName(), origin, leakAction);
+    this.size.incrementAndGet();
+    this.registrations.add(registration);
+    return registration;
+  }
+
+  /**
+   * Removes the {@link EntityManager} represented by the supplied
+   * {@link Registration} from this registry.
+   *
+   * <p>This method may be called by any thread, not just by the one
+   * that registered the {@link EntityManager}.  Calling it more than
+   * once with the same {@link Registration} has no further
+   * effect.</p>
+   *
+   * @param registration the {@link Registration} returned by the
+   * {@link #register(EntityManager, String, Runnable)} method; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code registration} is
+   * {@code null}
+   *
+   * @see #register(EntityManager, String, Runnable)
+   */
+  final void unregister(final Registration registration) {
+    Objects.requireNonNull(registration);
+    // A cleared reference is never enqueued, and so is never mistaken
+    // for a leak.
+    registration.clear();
+    this.remove(registration);
+    this.expunge();
+  }
+
+  /**
+   * Returns the total number of {@link EntityManager}s registered
+   * with this {@link EntityManagerRegistry} that have not been
+   * unregistered and are not known to have leaked.
+   *
+   * @return the number of registered {@link EntityManager}s; never
+   * negative
+   */
+  final int size() {
+    this.expunge();
+    return this.size.get();
+  }
+
+  /**
+   * Returns {@code true} if there are no {@link EntityManager}s
+   * registered with this {@link EntityManagerRegistry}.
+   *
+   * @return {@code true} if this {@link EntityManagerRegistry} is
+   * empty
+   *
+   * @see #size()
+   */
+  final boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  /**
+   * Returns the number of {@link EntityManager}s registered with this
+   * {@link EntityManagerRegistry} that became unreachable without
+   * having been unregistered.
+   *
+   * @return the number of leaked {@link EntityManager}s; never
+   * negative
+   */
+  final long leaked() {
+    this.expunge();
+    return this.leaked.get();
+  }
+
+  /**
+   * Removes all {@link EntityManager}s from this {@link
+   * EntityManagerRegistry} without otherwise affecting them, and
+   * without treating any of them as leaked.
+   */
+  final void clear() {
+    for (final Registration registration : this.registrations) {
+      registration.clear();
+      this.remove(registration);
+    }
+    this.expunge();
+  }
+
+  private final boolean remove(final Registration registration) {
+    if (registration.removed.compareAndSet(false, true)) {
+      this.registrations.remove(registration);
+      this.size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private final void expunge() {
+    Registration registration;
+    while ((registration = (Registration)this.queue.poll()) != null) {
+      if (this.remove(registration)) {
+        this.leaked.incrementAndGet();
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.logp(Level.WARNING,
+                      EntityManagerRegistry.class.getName(),
+                      "expunge",
+                      "A container-managed EntityManager acquired on thread {0} for {1} was never released",
+                      new Object[] { registration.ownerName,
+                                     registration.origin == null ? "an unknown origin" : registration.origin });
+        }
+        if (registration.leakAction != null) {
+          try {
+            registration.leakAction.run();
+          } catch (final RuntimeException runtimeException) {
+            if (logger.isLoggable(Level.WARNING)) {
+              logger.logp(Level.WARNING,
+                          EntityManagerRegistry.class.getName(),
+                          "expunge",
+                          "The action to be run for a leaked container-managed EntityManager failed",
+                          runtimeException);
+            }
+          }
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link WeakReference} to a registered {@link EntityManager}
+   * that carries what is needed to report it if it leaks.
+   *
+   * <p>Instances of this class are returned by the {@link
+   * EntityManagerRegistry#register(EntityManager, String, Runnable)}
+   * method and serve only as tokens to be supplied to the {@link
+   * EntityManagerRegistry#unregister(Registration)} method.</p>
+   */
+  static final class Registration extends WeakReference<EntityManager> {
+
+    // Only the name is retained: a reference to the Thread itself
+    // would keep it, and everything reachable from it, from being
+    // collected for as long as the EntityManager stays registered.
+    private final String ownerName;
+
+    private final String origin;
+
+    private final Runnable leakAction;
+
+    private final AtomicBoolean removed;
+
+    private Registration(final EntityManager em,
+                         final ReferenceQueue<? super EntityManager> queue,
+                         final String ownerName,
+                         final String origin,
+                         final Runnable leakAction) {
+      super(em, queue);
+      this.ownerName = ownerName;
+      this.origin = origin;
+      this.leakAction = leakAction;
+      this.removed = new AtomicBoolean();
+    }
+
+  }
+
+}
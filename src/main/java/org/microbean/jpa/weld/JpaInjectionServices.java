@@ -16,22 +16,68 @@
  */
 package org.microbean.jpa.weld;
 
+import java.io.IOException;
+
 import java.lang.annotation.Annotation;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.ServiceLoader;
 import java.util.Set;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.util.function.Function;
 import java.util.function.Supplier;
 
+import java.util.stream.Stream;
+
+import javax.enterprise.context.spi.CreationalContext;
+
+import javax.enterprise.inject.Instance;
+
 import javax.enterprise.inject.literal.NamedLiteral;
 
 import javax.enterprise.inject.spi.Annotated;
@@ -43,15 +89,31 @@ import javax.enterprise.inject.spi.InjectionPoint;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
 import javax.persistence.Persistence;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
 import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceProperty;
 import javax.persistence.PersistenceUnit;
+import javax.persistence.Query;
 import javax.persistence.SynchronizationType;
+import javax.persistence.TransactionRequiredException;
 
 import javax.persistence.spi.PersistenceProvider;
 import javax.persistence.spi.PersistenceUnitInfo;
 
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
 import org.jboss.weld.manager.api.ExecutorServices;
 import org.jboss.weld.manager.api.WeldManager;
 
@@ -67,6 +129,19 @@ import static javax.persistence.spi.PersistenceUnitTransactionType.RESOURCE_LOCA
  * implementation that integrates JPA functionality into Weld-based
  * CDI environments.
  *
+ * <p>Weld may create several instances of this class for a single
+ * container, but uses only the one registered in that container's
+ * {@linkplain WeldManager#getServices() service registry}; see <a
+ * href="https://issues.jboss.org/browse/WELD-2563"
+ * target="_parent">WELD-2563</a>.  That instance is the one made
+ * available as a bean by the {@link JpaInjectionServicesExtension}
+ * class.  Each container has its own instance, with its own {@link
+ * EntityManagerFactory} and {@link EntityManager} state, so several
+ * containers may run in the same JVM at once.  Under EclipseLink,
+ * whose session registry is JVM-wide, each {@link
+ * EntityManagerFactory} is also given a session name unique within
+ * the JVM.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -81,30 +156,411 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    */
 
 
-  /*
-   * Weld instantiates this class three times during normal execution
-   * (see https://issues.jboss.org/browse/WELD-2563 for details).
-   * Only one of those instances (the first) is actually used to
-   * produce EntityManagers and EntityManagerFactories; the other two
-   * are discarded.  The static INSTANCE and UNDERWAY fields ensure
-   * that truly only one instance processes all incoming calls, and
-   * that it is the one that is actually tracked and stored by Weld
-   * itself in the return value of the WeldManager#getServices()
-   * method.
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} that, when set to {@code true}, causes {@link
+   * PersistenceContextType#TRANSACTION transaction-scoped}
+   * persistence contexts backed by JTA persistence units to be
+   * injected as shared proxies.
+   *
+   * <p>Such a proxy delegates to one {@link EntityManager} per
+   * active JTA transaction per persistence unit and {@link
+   * SynchronizationType}, which is shared by every injection point
+   * taking part in that transaction and closed when the transaction
+   * completes.</p>
    *
-   * See the underway() method as well.
+   * @see #registerPersistenceContextInjectionPoint(InjectionPoint)
    */
+  public static final String TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME =
+    "org.microbean.jpa.weld.transactionScopedPersistenceContexts";
 
   /**
-   * The single officially sanctioned instance of this class.
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} that, when set to {@code true}, causes an {@link
+   * EntityManagerFactory} to be created for every persistence unit
+   * at container startup, in parallel, before any observer of the
+   * {@link javax.enterprise.context.Initialized
+   * Initialized(ApplicationScoped.class)} event with a lower priority
+   * is notified.
    *
-   * <p>This field may be {@code null}.</p>
+   * @see #EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME
    */
-  @Issue(id = "WELD_2563", uri = "https://issues.jboss.org/browse/WELD-2563")
-  static volatile JpaInjectionServices INSTANCE;
+  public static final String EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME =
+    "org.microbean.jpa.weld.eagerEntityManagerFactories";
 
-  @Issue(id = "WELD_2563", uri = "https://issues.jboss.org/browse/WELD-2563")
-  private static volatile boolean UNDERWAY;
+  /**
+   * The name of the {@linkplain Integer#getInteger(String) system
+   * property} whose value is the maximum number of {@link
+   * EntityManagerFactory} instances that will be created
+   * concurrently at container startup when the {@value
+   * #EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME} system property is
+   * {@code true}.
+   *
+   * <p>If unset, the number of available processors is used.</p>
+   *
+   * @see #EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME
+   */
+  public static final String EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME =
+    "org.microbean.jpa.weld.eagerEntityManagerFactories.parallelism";
+
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} that selects the {@link Executor} on which {@link
+   * EntityManagerFactory} instances are created in the background.
+   *
+   * <p>Recognized values are:</p>
+   *
+   * <dl>
+   *
+   * <dt>{@code weld}</dt>
+   *
+   * <dd>Weld's task executor (the default)</dd>
+   *
+   * <dt>{@code common}</dt>
+   *
+   * <dd>The {@linkplain ForkJoinPool#commonPool() common
+   * <code>ForkJoinPool</code>}</dd>
+   *
+   * <dt>{@code virtual}</dt>
+   *
+   * <dd>An {@link ExecutorService} that starts a new virtual thread
+   * for each task; requires a Java runtime that supports virtual
+   * threads</dd>
+   *
+   * </dl>
+   *
+   * <p>Any other value is treated as the fully-qualified name of a
+   * class implementing {@link Executor} that has a zero-argument
+   * constructor.  If such an {@link Executor} is also an {@link
+   * ExecutorService}, it will be {@linkplain ExecutorService#shutdown()
+   * shut down} by {@link #cleanup()}.</p>
+   *
+   * <p>A value that does not describe an {@link Executor} that can be
+   * created is reported as a deployment problem when the container
+   * starts.</p>
+   */
+  public static final String ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactoryExecutor";
+
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} whose value is the number of threads that run the units
+   * of work submitted to the {@link
+   * PersistenceUnitExecutor#executeAsync(String, Function)} method.
+   *
+   * <p>If it is unset, the number of {@linkplain
+   * Runtime#availableProcessors() available processors} is used.</p>
+   *
+   * @see #ASYNC_QUEUE_SIZE_PROPERTY_NAME
+   */
+  public static final String ASYNC_THREADS_PROPERTY_NAME = "org.microbean.jpa.weld.async.threads";
+
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} whose value is the number of units of work submitted to
+   * the {@link PersistenceUnitExecutor#executeAsync(String, Function)}
+   * method that may wait for a thread to run them.
+   *
+   * <p>A unit of work submitted when all threads are busy and this
+   * many are already waiting is rejected.  If the property is unset,
+   * {@code 64} is used.  {@code 0} means that a unit of work is
+   * rejected unless a thread is free to run it at once.</p>
+   *
+   * @see #ASYNC_THREADS_PROPERTY_NAME
+   */
+  public static final String ASYNC_QUEUE_SIZE_PROPERTY_NAME = "org.microbean.jpa.weld.async.queueSize";
+
+  /**
+   * The name of the property whose value is the maximum number of
+   * milliseconds a thread acquiring an {@link EntityManager} or
+   * {@link EntityManagerFactory} will wait for a persistence unit's
+   * {@link EntityManagerFactory} to be created before an {@link
+   * EntityManagerFactoryUnavailableException} is thrown.
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property},
+   * which applies to that persistence unit only, or as a {@linkplain
+   * System#getProperty(String) system property}, which applies to all
+   * persistence units that do not set it themselves.  If it is unset,
+   * or its value is not positive, threads wait indefinitely.</p>
+   *
+   * <p>A timed-out wait does not cancel the creation of the {@link
+   * EntityManagerFactory}, which other threads may still be waiting
+   * for.</p>
+   */
+  public static final String ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactoryTimeout";
+
+  /**
+   * The name of the property whose value is the number of
+   * milliseconds for which the failure to create a persistence unit's
+   * {@link EntityManagerFactory} is remembered before its creation is
+   * attempted again.
+   *
+   * <p>While a failure is remembered, attempts to acquire an {@link
+   * EntityManager} or {@link EntityManagerFactory} for the persistence
+   * unit fail immediately with an {@link
+   * EntityManagerFactoryUnavailableException} whose {@linkplain
+   * Throwable#getCause() cause} is the original failure.  The period
+   * doubles with each consecutive failure, up to the value of the
+   * {@value #ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_MAX_PROPERTY_NAME}
+   * property.</p>
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  If
+   * it is unset, {@code 1000} is used.  A value of {@code 0} causes
+   * failures not to be remembered at all.</p>
+   *
+   * @see #ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_MAX_PROPERTY_NAME
+   */
+  public static final String ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactoryRetryBackoff";
+
+  /**
+   * The name of the property whose value is the maximum number of
+   * milliseconds for which the failure to create a persistence unit's
+   * {@link EntityManagerFactory} is remembered.
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  If
+   * it is unset, {@code 60000} is used.</p>
+   *
+   * @see #ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME
+   */
+  public static final String ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_MAX_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactoryRetryBackoff.max";
+
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} whose value is the maximum number of {@link
+   * EntityManagerFactory} instances that will be kept open at once.
+   *
+   * <p>When a new {@link EntityManagerFactory} is created and the
+   * maximum is exceeded, idle {@link EntityManagerFactory} instances
+   * are closed, longest-idle first, until it no longer is.  An {@link
+   * EntityManagerFactory} is idle when no {@link EntityManager}s
+   * created by this class from it are live and it is not held by any
+   * {@link PersistenceUnit}-annotated injection point.  An {@link
+   * EntityManagerFactory} that is not idle is never closed, so the
+   * maximum may be exceeded temporarily.  A closed {@link
+   * EntityManagerFactory} is created again when it is next
+   * needed.</p>
+   *
+   * <p>If the property is unset, or its value is not positive, there
+   * is no maximum.</p>
+   *
+   * @see #ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME
+   *
+   * @see JpaInjectionServicesMetrics#entityManagerFactoryEvicted(String)
+   */
+  public static final String ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactories.maximumSize";
+
+  /**
+   * The name of the property whose value is the number of
+   * milliseconds a persistence unit's {@link EntityManagerFactory}
+   * may remain idle before it is closed.
+   *
+   * <p>Idle {@link EntityManagerFactory} instances are closed lazily,
+   * at most once a second, as {@link EntityManager}s are released; no
+   * background thread is used.  A closed {@link EntityManagerFactory}
+   * is created again when it is next needed.  See {@link
+   * #ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME} for when an
+   * {@link EntityManagerFactory} is considered to be idle.</p>
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  If
+   * it is unset, or its value is not positive, idle {@link
+   * EntityManagerFactory} instances are never closed for being
+   * idle.</p>
+   *
+   * @see #ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME
+   *
+   * @see JpaInjectionServicesMetrics#entityManagerFactoryEvicted(String)
+   */
+  public static final String ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerFactories.idleTimeout";
+
+  /**
+   * The name of the property whose value is the path of a directory
+   * in which the metadata EclipseLink derives from a persistence
+   * unit's entity classes and mapping files is cached between
+   * container starts.
+   *
+   * <p>The cached metadata is stored in a file named after a digest
+   * of the persistence unit's classes, mapping files and properties,
+   * and is read using memory-mapped I/O; see {@link
+   * MappedProjectCache}.  A change to any of those results in a new
+   * file, so stale metadata is never used.</p>
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  It
+   * is ignored for persistence units whose persistence provider is
+   * not EclipseLink, or that already set the {@code
+   * eclipselink.project-cache} property.  If it is unset, no metadata
+   * is cached.</p>
+   */
+  public static final String METADATA_CACHE_DIRECTORY_PROPERTY_NAME =
+    "org.microbean.jpa.weld.metadataCache.directory";
+
+  /**
+   * The name of a {@link PersistenceProperty} that, when set to
+   * {@code true} in the {@link PersistenceContext#properties()
+   * properties} of a {@link PersistenceContext} annotation, causes
+   * the annotated injection point to receive a read-only persistence
+   * context.
+   *
+   * <p>A read-only persistence context is never joined to a
+   * transaction, uses {@link FlushModeType#COMMIT}, requests that the
+   * persistence provider not track changes to the entities it reads,
+   * and rejects every operation that could write to the database
+   * with an {@link IllegalStateException}.</p>
+   *
+   * <p>This property is not passed on to the persistence
+   * provider.</p>
+   */
+  public static final String READ_ONLY_PROPERTY_NAME = "org.microbean.jpa.weld.readOnly";
+
+  /**
+   * The name of a {@link PersistenceProperty} that, when set to a
+   * positive integer in the {@link PersistenceContext#properties()
+   * properties} of a {@link PersistenceContext} annotation, causes
+   * the annotated injection point to receive a bulk-ingestion
+   * persistence context.
+   *
+   * <p>A bulk-ingestion persistence context {@linkplain
+   * EntityManager#flush() flushes} and then {@linkplain
+   * EntityManager#clear() clears} itself, within the transaction in
+   * which it is joined, every time the number of entities passed to
+   * its {@code persist}, {@code merge} and {@code remove} methods
+   * reaches the property's value.  The memory it occupies therefore
+   * stays flat however many entities are written in one
+   * transaction.  Each such flush is reported to the {@link
+   * JpaInjectionServicesMetrics#entitiesFlushed(String, int, long)}
+   * method.</p>
+   *
+   * <p>This property is not passed on to the persistence provider,
+   * and is ignored for read-only persistence contexts.</p>
+   *
+   * @see #READ_ONLY_PROPERTY_NAME
+   */
+  public static final String FLUSH_INTERVAL_PROPERTY_NAME = "org.microbean.jpa.weld.flushInterval";
+
+  /**
+   * The name of a {@link PersistenceProperty} that, when set to a
+   * positive integer in the {@link PersistenceContext#properties()
+   * properties} of a {@link PersistenceContext} annotation, causes
+   * the annotated injection point to receive a streaming persistence
+   * context.
+   *
+   * <p>The {@link javax.persistence.Query#getResultStream()} method
+   * of every query created by a streaming persistence context returns
+   * a {@link java.util.stream.Stream} backed by a database cursor
+   * that fetches the property's value in rows at a time.  Each entity
+   * the {@link java.util.stream.Stream} returns is {@linkplain
+   * EntityManager#detach(Object) detached} once the next one is
+   * requested, so that results may be processed in constant memory.
+   * The {@link java.util.stream.Stream} is closed when the JTA
+   * transaction, if any, in which it was obtained completes.</p>
+   *
+   * <p>This property is not passed on to the persistence
+   * provider.</p>
+   *
+   * @see StreamingEntityManagerHandler
+   */
+  public static final String STREAM_FETCH_SIZE_PROPERTY_NAME = "org.microbean.jpa.weld.streamFetchSize";
+
+  /**
+   * The name of the property whose value is the maximum number of
+   * released {@link EntityManager}s belonging to a {@code
+   * RESOURCE_LOCAL} persistence unit that will be kept for reuse.
+   *
+   * <p>A released {@link EntityManager} is kept only if it is open
+   * and has no active transaction.  It is {@linkplain
+   * EntityManager#clear() cleared} and its {@linkplain
+   * EntityManager#getFlushMode() flush mode} is restored before it is
+   * handed out again.</p>
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  If
+   * it is unset, or its value is not positive, released {@link
+   * EntityManager}s are closed rather than reused.</p>
+   *
+   * @see #ENTITY_MANAGER_POOL_IDLE_TIMEOUT_PROPERTY_NAME
+   */
+  public static final String ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerPool.maximumSize";
+
+  /**
+   * The name of the property whose value is the number of
+   * milliseconds a released {@code RESOURCE_LOCAL} {@link
+   * EntityManager} kept for reuse may remain unused before it is
+   * closed.
+   *
+   * <p>The property may be set as a {@linkplain
+   * PersistenceUnitInfo#getProperties() persistence unit property} or
+   * as a {@linkplain System#getProperty(String) system property}.  If
+   * it is unset, {@code 60000} is used.  A value that is not positive
+   * disables idle eviction.</p>
+   *
+   * @see #ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME
+   */
+  public static final String ENTITY_MANAGER_POOL_IDLE_TIMEOUT_PROPERTY_NAME =
+    "org.microbean.jpa.weld.entityManagerPool.idleTimeout";
+
+  /**
+   * The name of the {@linkplain System#getProperty(String) system
+   * property} that, when set to {@code false}, causes any indices of
+   * persistence injection points written at build time by the {@link
+   * PersistenceInjectionPointProcessor} to be ignored.
+   *
+   * <p>Otherwise, such indices are read before bean discovery, the
+   * persistence unit names recorded in them are checked after
+   * deployment, and {@link EntityManagerFactory} instances for them
+   * are created in the background as soon as the container has
+   * started.  A recorded name for which there is no persistence unit
+   * is a deployment problem if the injection point belongs to a
+   * managed bean, and is otherwise logged as a warning and
+   * ignored.</p>
+   *
+   * @see PersistenceInjectionPointProcessor
+   */
+  public static final String PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME =
+    "org.microbean.jpa.weld.persistenceInjectionPointIndex";
+
+  /*
+   * The minimum number of nanoseconds between two sweeps of the emfs
+   * map for idle EntityManagerFactory instances; see
+   * evictEntityManagerFactories(boolean).
+   */
+  private static final long EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+  /*
+   * The number of seconds createEntityManagerFactories(Iterable)
+   * waits, once it has finished, for the threads of its pool to
+   * finish any creation tasks still running before interrupting them.
+   */
+  private static final long EAGER_ENTITY_MANAGER_FACTORIES_TERMINATION_TIMEOUT_SECONDS = 30L;
+
+  /*
+   * The name of the EclipseLink property that names the session
+   * backing an EntityManagerFactory; see
+   * configureSessionName(PersistenceUnitMetadata, Map).
+   */
+  private static final String ECLIPSELINK_SESSION_NAME_PROPERTY_NAME = "eclipselink.session-name";
+
+  /*
+   * Supplies the suffixes that make the session names of
+   * EclipseLink persistence units unique within the JVM, since
+   * EclipseLink's session registry is itself JVM-wide and shared by
+   * every container running in it.
+   */
+  private static final AtomicLong sessionGenerations = new AtomicLong();
 
 
   /*
@@ -112,10 +568,91 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    */
 
 
-  private final Set<EntityManager> ems;
+  /*
+   * Package-private for benchmarking purposes only.
+   */
+  final EntityManagerRegistry ems;
+
+  /*
+   * A map of persistence unit names to CompletableFutures that are
+   * or will be completed with an EntityManagerFactoryHandle for the
+   * corresponding EntityManagerFactory.  EntityManagerFactory
+   * creation happens outside of any of this map's locks; see the
+   * getEntityManagerFactoryFuture(PersistenceUnitMetadata, Supplier)
+   * method.  Entries for idle EntityManagerFactory instances may be
+   * removed by evictEntityManagerFactories(boolean).
+   */
+  private final ConcurrentMap<String, CompletableFuture<EntityManagerFactoryHandle>> emfs;
+
+  /*
+   * The maximum number of entries in emfs, or 0 if there is no
+   * maximum.
+   */
+  private final int maximumEntityManagerFactories;
+
+  // The System#nanoTime() value before which
+  // evictEntityManagerFactories(boolean) will not sweep emfs unless
+  // forced to.
+  private final AtomicLong nextEvictionNanos;
+
+  /*
+   * A map of persistence unit names to PersistenceUnitMetadata
+   * instances, which cache the results of resolving the
+   * PersistenceUnitInfo and PersistenceProvider for a given
+   * persistence unit.  Entries are added when injection points are
+   * registered and removed by cleanup().
+   */
+  private final ConcurrentMap<String, PersistenceUnitMetadata> persistenceUnitMetadata;
+
+  /*
+   * The properties, shared by every JTA persistence unit, that are
+   * supplied to PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map).  Computed once by getBootstrapProperties().
+   */
+  // @GuardedBy("this")
+  private Map<String, Object> bootstrapProperties;
+
+  // @GuardedBy("this")
+  private CreationalContext<?> validatorFactoryCreationalContext;
+
+  /*
+   * The JpaInjectionServicesMetrics to report to, or null if there
+   * is none, or if it has not been loaded yet, in which case no
+   * measurements are taken.  Written only while holding this object's
+   * monitor, and only once; see loadMetrics().
+   */
+  private volatile JpaInjectionServicesMetrics metrics;
+
+  // @GuardedBy("this")
+  private boolean metricsLoaded;
+
+  // @GuardedBy("this")
+  private boolean metricsBound;
+
+  // Written only while holding this object's monitor.
+  private volatile Executor entityManagerFactoryExecutor;
 
   // @GuardedBy("this")
-  private volatile Map<String, EntityManagerFactory> emfs;
+  private boolean ownsEntityManagerFactoryExecutor;
+
+  private final boolean transactionScopedPersistenceContexts;
+
+  private volatile TransactionSynchronizationRegistry tsr;
+
+  private volatile TransactionManager tm;
+
+  // Written only while holding this object's monitor.
+  private volatile ExecutorService asyncExecutor;
+
+  /*
+   * The BeanManager of the container that owns this
+   * JpaInjectionServices, or null if it has not been set yet; see
+   * setBeanManager(BeanManager).
+   */
+  private volatile BeanManager beanManager;
+
+  // Set once cleanup() has been called.
+  private volatile boolean closed;
 
 
   /*
@@ -128,23 +665,96 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    */
   public JpaInjectionServices() {
     super();
-    synchronized (JpaInjectionServices.class) {
-      // See https://issues.jboss.org/browse/WELD-2563.  Make sure
-      // only the first instance is "kept" as it's the one tracked by
-      // WeldManager's ServiceRegistry.  The others are discarded.
-      if (INSTANCE == null) {
-        assert !UNDERWAY;
-        INSTANCE = this;
-      } else if (UNDERWAY) {
-        throw new IllegalStateException();
-      }
-    }
-    this.ems = ConcurrentHashMap.newKeySet();
+    this.ems = new EntityManagerRegistry();
+    this.emfs = new ConcurrentHashMap<>();
+    this.maximumEntityManagerFactories = Math.max(0, Integer.getInteger(ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME, 0));
+    this.nextEvictionNanos = new AtomicLong(System.nanoTime());
+    this.persistenceUnitMetadata = new ConcurrentHashMap<>();
+    this.transactionScopedPersistenceContexts = Boolean.getBoolean(TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME);
   }
 
+  /**
+   * Associates this {@link JpaInjectionServices} with the {@link
+   * BeanManager} of the container that owns it.
+   *
+   * <p>This method is called by the {@link
+   * JpaInjectionServicesExtension} class on the instance registered
+   * in the container's {@linkplain WeldManager#getServices() service
+   * registry}.  Until it has been called, beans are looked up in the
+   * container {@linkplain CDI#current() associated with the current
+   * thread}.</p>
+   *
+   * <p>Weld creates and discards other instances of this class, so it
+   * is only here, on the instance that will actually be put to use,
+   * that the {@link JpaInjectionServicesMetrics}, if any, is loaded
+   * and {@linkplain JpaInjectionServicesMetrics#bind(java.util.function.IntSupplier)
+   * bound}.</p>
+   *
+   * @param beanManager the {@link BeanManager}; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code beanManager} is {@code
+   * null}
+   */
   @Issue(id = "WELD_2563", uri = "https://issues.jboss.org/browse/WELD-2563")
-  private static synchronized final void underway() {
-    UNDERWAY = true;
+  final void setBeanManager(final BeanManager beanManager) {
+    this.beanManager = Objects.requireNonNull(beanManager);
+    this.loadMetrics();
+  }
+
+  /**
+   * Returns the {@link BeanManager} of the container that owns this
+   * {@link JpaInjectionServices}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link BeanManager}
+   *
+   * @exception IllegalStateException if no {@link BeanManager} has
+   * been {@linkplain #setBeanManager(BeanManager) set} and there is no
+   * container associated with the current thread
+   */
+  private final BeanManager getBeanManager() {
+    final BeanManager returnValue = this.beanManager;
+    return returnValue == null ? CDI.current().getBeanManager() : returnValue;
+  }
+
+  /**
+   * Returns an {@link Instance} through which beans in the container
+   * that owns this {@link JpaInjectionServices} may be looked up.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Instance}
+   *
+   * @exception IllegalStateException if no {@link BeanManager} has
+   * been {@linkplain #setBeanManager(BeanManager) set} and there is no
+   * container associated with the current thread
+   */
+  private final Instance<Object> instance() {
+    final BeanManager beanManager = this.beanManager;
+    return beanManager == null ? CDI.current() : beanManager.createInstance();
+  }
+
+  /**
+   * Loads, using the {@link ServiceLoader} mechanism, and binds this
+   * {@link JpaInjectionServices}' {@link
+   * JpaInjectionServicesMetrics}, if there is one and this has not
+   * already been done.
+   *
+   * @see JpaInjectionServicesMetrics#bind(java.util.function.IntSupplier)
+   */
+  private synchronized final void loadMetrics() {
+    if (!this.metricsLoaded && !this.closed) {
+      this.metricsLoaded = true;
+      final Iterator<JpaInjectionServicesMetrics> metricsIterator = ServiceLoader.load(JpaInjectionServicesMetrics.class).iterator();
+      if (metricsIterator.hasNext()) {
+        final JpaInjectionServicesMetrics metrics = metricsIterator.next();
+        metrics.bind(this.ems::size);
+        this.metricsBound = true;
+        this.metrics = metrics;
+      }
+    }
   }
 
   /**
@@ -156,93 +766,442 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    * will fire such events.  These events serve as an indication that
    * a call to {@link TransactionManager#begin()} has been made.</p>
    *
-   * <p>{@link EntityManager}s created by this class will have their
-   * {@link EntityManager#joinTransaction()} methods called if the
-   * supplied object is non-{@code null}.</p>
+   * <p>{@link SynchronizationType#SYNCHRONIZED Synchronized} {@link
+   * EntityManager}s created by this class are not joined to the
+   * transaction here, and none of them is visited.  Instead, each
+   * {@linkplain EntityManager#joinTransaction() joins} the
+   * transaction the first time it is actually used in it, whichever
+   * thread acquired it; see {@link EnlistingEntityManagerHandler}.
+   * The cost of this method is therefore independent of the number of
+   * live {@link EntityManager}s.  {@link
+   * SynchronizationType#UNSYNCHRONIZED Unsynchronized} {@link
+   * EntityManager}s are left for the application to join
+   * explicitly.</p>
+   *
+   * @see EnlistingEntityManagerHandler
    */
   final void jtaTransactionBegun() {
-    assert this == INSTANCE;
-    this.ems.forEach(em -> em.joinTransaction());
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.jtaTransactionBegun();
+    }
   }
 
   /**
-   * Returns a {@link ResourceReferenceFactory} whose {@link
-   * ResourceReferenceFactory#createResource()} method will be invoked
-   * appropriately by Weld later.
+   * Creates, in parallel, an {@link EntityManagerFactory} for each of
+   * the supplied {@link PersistenceUnitInfo}s that does not already
+   * have one, and blocks until all of them have been created.
    *
-   * <p>This method never returns {@code null}.</p>
+   * <p>At most {@link
+   * #EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME} {@link
+   * EntityManagerFactory} instances are created at once.</p>
    *
-   * @param injectionPoint the {@link InjectionPoint} annotated with
-   * {@link PersistenceContext}; must not be {@code null}
+   * <p>If any of them cannot be created, those this method began
+   * creating that are not yet finished are cancelled and forgotten,
+   * so that a later attempt to use their persistence units starts
+   * afresh.  In every case this method lets creations already under
+   * way finish, for a bounded time, before returning.</p>
    *
-   * @return a non-{@code null} {@link ResourceReferenceFactory} whose
-   * {@link ResourceReferenceFactory#createResource()} method will
-   * create {@link EntityManager} instances
+   * @param persistenceUnitInfos the {@link PersistenceUnitInfo}s
+   * describing the persistence units in question; may be {@code null}
+   * in which case no action will be taken
    *
-   * @exception NullPointerException if {@code injectionPoint} is
-   * {@code null}
+   * @exception PersistenceException if any {@link
+   * EntityManagerFactory} could not be created
    *
-   * @see ResourceReferenceFactory#createResource()
+   * @see #EAGER_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME
    */
-  @Override
-  public final ResourceReferenceFactory<EntityManager> registerPersistenceContextInjectionPoint(final InjectionPoint injectionPoint) {
-    underway();
-    assert this == INSTANCE;
-    final ResourceReferenceFactory<EntityManager> returnValue;
-    Objects.requireNonNull(injectionPoint);
-    final Annotated annotatedMember = injectionPoint.getAnnotated();
-    assert annotatedMember != null;
-    final PersistenceContext persistenceContextAnnotation = annotatedMember.getAnnotation(PersistenceContext.class);
-    if (persistenceContextAnnotation == null) {
-      throw new IllegalArgumentException("injectionPoint.getAnnotated().getAnnotation(PersistenceContext.class) == null");
+  final void createEntityManagerFactories(final Iterable<? extends PersistenceUnitInfo> persistenceUnitInfos) {
+    if (persistenceUnitInfos == null) {
+      return;
     }
-    final String name;
-    final String n = persistenceContextAnnotation.unitName();
-    if (n.isEmpty()) {
-      if (annotatedMember instanceof AnnotatedField) {
-        name = ((AnnotatedField<?>)annotatedMember).getJavaMember().getName();
-      } else {
-        name = n;
-      }
-    } else {
-      name = n;
+    final List<PersistenceUnitInfo> infos = new ArrayList<>();
+    persistenceUnitInfos.forEach(infos::add);
+    if (infos.isEmpty()) {
+      return;
     }
-    final SynchronizationType synchronizationType = persistenceContextAnnotation.synchronization();
-    assert synchronizationType != null;
-    synchronized (this) {
-      if (this.emfs == null) {
-        this.emfs = new ConcurrentHashMap<>();
+    final int parallelism =
+      Math.max(1, Math.min(infos.size(),
+                           Integer.getInteger(EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME,
+                                              Runtime.getRuntime().availableProcessors())));
+    final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+    final Map<String, CompletableFuture<EntityManagerFactoryHandle>> futures = new LinkedHashMap<>();
+    // The names of the persistence units whose creation tasks were
+    // submitted to executorService, as opposed to being already
+    // under way elsewhere.
+    final Set<String> submitted = new HashSet<>();
+    boolean success = false;
+    try {
+      for (final PersistenceUnitInfo info : infos) {
+        assert info != null;
+        final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(info.getPersistenceUnitName());
+        metadata.setPersistenceUnitInfo(info);
+        final String name = metadata.getName();
+        futures.put(name, this.getEntityManagerFactoryFuture(metadata, () -> {
+              submitted.add(name);
+              return executorService;
+            }));
+      }
+      for (final Future<EntityManagerFactoryHandle> future : futures.values()) {
+        future.get();
+      }
+      success = true;
+    } catch (final ExecutionException executionException) {
+      final Throwable cause = executionException.getCause();
+      throw new PersistenceException(cause == null ? executionException.getMessage() : cause.getMessage(),
+                                     cause == null ? executionException : cause);
+    } catch (final CancellationException cancellationException) {
+      throw new PersistenceException(cancellationException.getMessage(), cancellationException);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(interruptedException.getMessage(), interruptedException);
+    } finally {
+      if (!success) {
+        // Startup is going to fail.  Forget, and cancel, every
+        // creation task submitted here that has not completed
+        // successfully, so that none of them is left in this.emfs
+        // for a later caller to wait on.  A cancelled task that has
+        // not yet started does nothing; one that is running closes
+        // the EntityManagerFactory it creates.
+        for (final Map.Entry<String, CompletableFuture<EntityManagerFactoryHandle>> entry : futures.entrySet()) {
+          final String name = entry.getKey();
+          final CompletableFuture<EntityManagerFactoryHandle> future = entry.getValue();
+          if (submitted.contains(name) && (!future.isDone() || future.isCompletedExceptionally())) {
+            this.emfs.remove(name, future);
+            future.cancel(false);
+          }
+        }
+      }
+      // Let tasks already running finish, rather than interrupting
+      // them in the middle of a persistence provider's bootstrap.
+      executorService.shutdown();
+      try {
+        if (!executorService.awaitTermination(EAGER_ENTITY_MANAGER_FACTORIES_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          executorService.shutdownNow();
+        }
+      } catch (final InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
       }
     }
-    returnValue = () -> new EntityManagerResourceReference(name, synchronizationType);
-    return returnValue;
   }
 
   /**
-   * Returns a {@link ResourceReferenceFactory} whose {@link
-   * ResourceReferenceFactory#createResource()} method will be invoked
-   * appropriately by Weld later.
+   * Begins creating, in the background, an {@link
+   * EntityManagerFactory} for each of the named persistence units
+   * that does not already have one, and returns without waiting for
+   * any of them.
    *
-   * <p>This method never returns {@code null}.</p>
+   * @param persistenceUnitNames the names of the persistence units
+   * in question; may be {@code null} in which case no action will be
+   * taken
    *
-   * @param injectionPoint the {@link InjectionPoint} annotated with
-   * {@link PersistenceUnit}; must not be {@code null}
+   * @see #PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME
+   */
+  final void scheduleEntityManagerFactories(final Iterable<? extends String> persistenceUnitNames) {
+    if (persistenceUnitNames != null) {
+      for (final String name : persistenceUnitNames) {
+        this.getEntityManagerFactoryFuture(this.getPersistenceUnitMetadata(name));
+      }
+    }
+  }
+
+  /**
+   * Returns the number of container-managed {@link EntityManager}s
+   * currently tracked by this {@link JpaInjectionServices}.
    *
-   * @return a non-{@code null} {@link ResourceReferenceFactory} whose
-   * {@link ResourceReferenceFactory#createResource()} method will
-   * create {@link EntityManagerFactory} instances
+   * <p>An {@link EntityManager} is tracked from the time it is
+   * acquired on behalf of an injection point until it is released,
+   * or until it is found to have {@linkplain
+   * #getLeakedEntityManagerCount() leaked}.</p>
    *
-   * @exception NullPointerException if {@code injectionPoint} is
-   * {@code null}
+   * @return the number of live container-managed {@link
+   * EntityManager}s; never negative
    *
-   * @see ResourceReferenceFactory#createResource()
+   * @see #getLeakedEntityManagerCount()
    */
-  @Override
-  public final ResourceReferenceFactory<EntityManagerFactory> registerPersistenceUnitInjectionPoint(final InjectionPoint injectionPoint) {
-    underway();
-    assert this == INSTANCE;
-    final ResourceReferenceFactory<EntityManagerFactory> returnValue;
-    Objects.requireNonNull(injectionPoint);
+  public final int getLiveEntityManagerCount() {
+    return this.ems.size();
+  }
+
+  /**
+   * Returns the number of container-managed {@link EntityManager}s
+   * that have been garbage collected without ever having been
+   * released by whatever acquired them.
+   *
+   * <p>Each such leak is logged, as a warning, together with the
+   * injection point for which the {@link EntityManager} was
+   * acquired, and is reported to the {@link
+   * JpaInjectionServicesMetrics#entityManagerLeaked(String, String)}
+   * method.</p>
+   *
+   * @return the number of leaked container-managed {@link
+   * EntityManager}s; never negative
+   *
+   * @see #getLiveEntityManagerCount()
+   */
+  public final long getLeakedEntityManagerCount() {
+    return this.ems.leaked();
+  }
+
+  /**
+   * Creates a new {@link EntityManagerFactory} for the named
+   * persistence unit in the background and, once it has been
+   * created, atomically replaces the persistence unit's current
+   * {@link EntityManagerFactory} with it.
+   *
+   * <p>Every {@link EntityManager} acquired after the replacement is
+   * created by the new {@link EntityManagerFactory}.  {@link
+   * EntityManager}s acquired before it carry on using the old one,
+   * which is closed only once the last of them has been released.
+   * An {@link EntityManagerFactory} already injected into a {@link
+   * PersistenceUnit}-annotated injection point is likewise unaffected
+   * until that injection point is released.  No caller ever waits
+   * for the new {@link EntityManagerFactory} to be created.</p>
+   *
+   * <p>The new {@link EntityManagerFactory} is created on the same
+   * {@link Executor} used for all other background creation; see
+   * {@link #ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME}.  It is
+   * created from the persistence unit's {@link PersistenceUnitInfo}
+   * as it stands at the time, so changes made to its {@linkplain
+   * PersistenceUnitInfo#getProperties() properties}, or to relevant
+   * system properties, take effect.</p>
+   *
+   * <p>EclipseLink shares one session, and hence one deployment,
+   * among all {@link EntityManagerFactory} instances created under
+   * the same session name, so closing the old {@link
+   * EntityManagerFactory} would otherwise tear down the new one too.
+   * Every {@link EntityManagerFactory} created for an EclipseLink
+   * persistence unit after its first is therefore given a session
+   * name of its own: the {@code eclipselink.session-name} property,
+   * or the persistence unit name if that is not set, followed by a
+   * hyphen and a number unique within the JVM.</p>
+   *
+   * <p>If the new {@link EntityManagerFactory} cannot be created,
+   * the current one, if any, remains in place.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitName the name of the persistence unit whose
+   * {@link EntityManagerFactory} should be replaced; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that completes
+   * once the replacement has taken place, or completes exceptionally
+   * with an {@link EntityManagerFactoryUnavailableException} if the
+   * new {@link EntityManagerFactory} could not be created
+   *
+   * @exception NullPointerException if {@code persistenceUnitName} is
+   * {@code null}
+   *
+   * @exception IllegalStateException if this {@link
+   * JpaInjectionServices} is not in service
+   */
+  public final CompletionStage<Void> replaceEntityManagerFactory(final String persistenceUnitName) {
+    Objects.requireNonNull(persistenceUnitName);
+    if (this.closed) {
+      throw new IllegalStateException("cleanup() has been called");
+    }
+    final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(persistenceUnitName);
+    final CompletableFuture<Void> returnValue = new CompletableFuture<>();
+    try {
+      this.getEntityManagerFactoryExecutor().execute(() -> this.replaceEntityManagerFactory(metadata, returnValue));
+    } catch (final RejectedExecutionException | IllegalStateException exception) {
+      returnValue.completeExceptionally(exception);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Runs the supplied unit of work asynchronously, in a new
+   * transaction, with a new {@link EntityManager} for the named
+   * persistence unit, and returns a {@link CompletionStage}
+   * representing its result.
+   *
+   * <p>Applications reach this method through an injected {@link
+   * PersistenceUnitExecutor}, whose {@link
+   * PersistenceUnitExecutor#executeAsync(String, Function)} method
+   * documents its behavior.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the unit of work's result
+   *
+   * @param persistenceUnitName the name of the persistence unit; must
+   * not be {@code null}
+   *
+   * @param work the unit of work; must not be {@code null}; may
+   * return {@code null}
+   *
+   * @return a non-{@code null} {@link CompletionStage}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalStateException if this {@link
+   * JpaInjectionServices} is not in service
+   *
+   * @see PersistenceUnitExecutor#executeAsync(String, Function)
+   */
+  final <T> CompletionStage<T> executeAsync(final String persistenceUnitName,
+                                            final Function<? super EntityManager, ? extends T> work) {
+    Objects.requireNonNull(persistenceUnitName);
+    Objects.requireNonNull(work);
+    if (this.closed) {
+      throw new IllegalStateException("cleanup() has been called");
+    }
+    final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(persistenceUnitName);
+    final CompletableFuture<T> returnValue = new CompletableFuture<>();
+    try {
+      this.getAsyncExecutor().execute(() -> {
+          try {
+            returnValue.complete(this.execute(metadata, work));
+          } catch (final Exception | Error throwable) {
+            returnValue.completeExceptionally(throwable);
+          }
+        });
+    } catch (final RejectedExecutionException rejectedExecutionException) {
+      // The pool is saturated or has been shut down.
+      returnValue.completeExceptionally(rejectedExecutionException);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link ResourceReferenceFactory} whose {@link
+   * ResourceReferenceFactory#createResource()} method will be invoked
+   * appropriately by Weld later.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>If the {@value #TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME}
+   * system property is set to {@code true}, then the {@link
+   * EntityManager} produced for a {@linkplain
+   * PersistenceContextType#TRANSACTION transaction-scoped} persistence
+   * context backed by a JTA persistence unit will be a shared proxy
+   * that resolves to one {@link EntityManager} per active JTA
+   * transaction.</p>
+   *
+   * <p>The {@linkplain PersistenceContext#properties() properties} of
+   * the {@link PersistenceContext} annotation are supplied to the
+   * persistence provider whenever an {@link EntityManager} is created
+   * for the injection point, except for the {@value
+   * #READ_ONLY_PROPERTY_NAME} property, which selects a read-only
+   * persistence context, the {@value #FLUSH_INTERVAL_PROPERTY_NAME}
+   * property, which selects a bulk-ingestion persistence context, and
+   * the {@value #STREAM_FETCH_SIZE_PROPERTY_NAME} property, which
+   * selects a streaming persistence context.</p>
+   *
+   * @param injectionPoint the {@link InjectionPoint} annotated with
+   * {@link PersistenceContext}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link ResourceReferenceFactory} whose
+   * {@link ResourceReferenceFactory#createResource()} method will
+   * create {@link EntityManager} instances
+   *
+   * @exception NullPointerException if {@code injectionPoint} is
+   * {@code null}
+   *
+   * @see ResourceReferenceFactory#createResource()
+   */
+  @Override
+  public final ResourceReferenceFactory<EntityManager> registerPersistenceContextInjectionPoint(final InjectionPoint injectionPoint) {
+    final ResourceReferenceFactory<EntityManager> returnValue;
+    Objects.requireNonNull(injectionPoint);
+    final Annotated annotatedMember = injectionPoint.getAnnotated();
+    assert annotatedMember != null;
+    final PersistenceContext persistenceContextAnnotation = annotatedMember.getAnnotation(PersistenceContext.class);
+    if (persistenceContextAnnotation == null) {
+      throw new IllegalArgumentException("injectionPoint.getAnnotated().getAnnotation(PersistenceContext.class) == null");
+    }
+    final String name;
+    final String n = persistenceContextAnnotation.unitName();
+    if (n.isEmpty()) {
+      if (annotatedMember instanceof AnnotatedField) {
+        name = ((AnnotatedField<?>)annotatedMember).getJavaMember().getName();
+      } else {
+        name = n;
+      }
+    } else {
+      name = n;
+    }
+    final SynchronizationType synchronizationType = persistenceContextAnnotation.synchronization();
+    assert synchronizationType != null;
+    final Map<String, Object> properties = new HashMap<>();
+    for (final PersistenceProperty property : persistenceContextAnnotation.properties()) {
+      properties.put(property.name(), property.value());
+    }
+    final boolean readOnly = Boolean.parseBoolean((String)properties.remove(READ_ONLY_PROPERTY_NAME));
+    final int flushInterval = removeIntProperty(properties, FLUSH_INTERVAL_PROPERTY_NAME, injectionPoint);
+    final int streamFetchSize = removeIntProperty(properties, STREAM_FETCH_SIZE_PROPERTY_NAME, injectionPoint);
+    final Member member = injectionPoint.getMember();
+    final String origin;
+    if (member == null) {
+      origin = String.valueOf(injectionPoint);
+    } else {
+      origin = member.getDeclaringClass().getName() + "#" + member.getName();
+    }
+    final Map<String, Object> unmodifiableProperties =
+      properties.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(properties);
+    final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(name);
+    if (this.transactionScopedPersistenceContexts &&
+        PersistenceContextType.TRANSACTION.equals(persistenceContextAnnotation.type())) {
+      returnValue = () -> {
+        final ResourceReference<EntityManager> reference;
+        if (metadata.isResourceLocal()) {
+          reference = new EntityManagerResourceReference(metadata,
+                                                         synchronizationType,
+                                                         unmodifiableProperties,
+                                                         readOnly,
+                                                         flushInterval,
+                                                         streamFetchSize,
+                                                         origin);
+        } else {
+          reference =
+            new TransactionScopedEntityManagerResourceReference(metadata,
+                                                                synchronizationType,
+                                                                unmodifiableProperties,
+                                                                readOnly,
+                                                                flushInterval,
+                                                                streamFetchSize,
+                                                                origin);
+        }
+        return reference;
+      };
+    } else {
+      returnValue = () -> new EntityManagerResourceReference(metadata,
+                                                             synchronizationType,
+                                                             unmodifiableProperties,
+                                                             readOnly,
+                                                             flushInterval,
+                                                             streamFetchSize,
+                                                             origin);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link ResourceReferenceFactory} whose {@link
+   * ResourceReferenceFactory#createResource()} method will be invoked
+   * appropriately by Weld later.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param injectionPoint the {@link InjectionPoint} annotated with
+   * {@link PersistenceUnit}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link ResourceReferenceFactory} whose
+   * {@link ResourceReferenceFactory#createResource()} method will
+   * create {@link EntityManagerFactory} instances
+   *
+   * @exception NullPointerException if {@code injectionPoint} is
+   * {@code null}
+   *
+   * @see ResourceReferenceFactory#createResource()
+   */
+  @Override
+  public final ResourceReferenceFactory<EntityManagerFactory> registerPersistenceUnitInjectionPoint(final InjectionPoint injectionPoint) {
+    final ResourceReferenceFactory<EntityManagerFactory> returnValue;
+    Objects.requireNonNull(injectionPoint);
     final Annotated annotatedMember = injectionPoint.getAnnotated();
     assert annotatedMember != null;
     final PersistenceUnit persistenceUnitAnnotation = annotatedMember.getAnnotation(PersistenceUnit.class);
@@ -260,12 +1219,924 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
     } else {
       name = n;
     }
-    synchronized (this) {
-      if (this.emfs == null) {
-        this.emfs = new ConcurrentHashMap<>();
+    final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(name);
+    returnValue = () -> new EntityManagerFactoryResourceReference(metadata);
+    return returnValue;
+  }
+
+  /**
+   * Returns the {@link PersistenceUnitMetadata} for the named
+   * persistence unit, creating it if necessary.
+   *
+   * <p>Creating a {@link PersistenceUnitMetadata} performs no CDI
+   * lookups, so this method may be called while Weld is still
+   * processing injection points.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link PersistenceUnitMetadata}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  private final PersistenceUnitMetadata getPersistenceUnitMetadata(final String name) {
+    PersistenceUnitMetadata returnValue = this.persistenceUnitMetadata.get(Objects.requireNonNull(name));
+    if (returnValue == null) {
+      returnValue = this.persistenceUnitMetadata.computeIfAbsent(name, n -> new PersistenceUnitMetadata(n, this::instance));
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link CompletableFuture} that is or will be completed
+   * with an {@link EntityManagerFactoryHandle} for the {@link
+   * EntityManagerFactory} for the described persistence unit,
+   * creating it in the background on Weld's task executor if
+   * necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link CompletableFuture}
+   *
+   * @exception NullPointerException if {@code metadata} is {@code
+   * null}
+   *
+   * @see #getEntityManagerFactoryFuture(PersistenceUnitMetadata,
+   * Supplier)
+   */
+  private final CompletableFuture<EntityManagerFactoryHandle> getEntityManagerFactoryFuture(final PersistenceUnitMetadata metadata) {
+    return this.getEntityManagerFactoryFuture(metadata, this::getEntityManagerFactoryExecutor);
+  }
+
+  /**
+   * Returns the {@link Executor} on which {@link
+   * EntityManagerFactory} instances are created in the background,
+   * resolving it if necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Executor}
+   *
+   * @exception IllegalStateException if the {@link Executor} could
+   * not be resolved
+   *
+   * @see #ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME
+   */
+  private final Executor getEntityManagerFactoryExecutor() {
+    Executor returnValue = this.entityManagerFactoryExecutor;
+    if (returnValue == null) {
+      synchronized (this) {
+        returnValue = this.entityManagerFactoryExecutor;
+        if (returnValue == null) {
+          final String value = System.getProperty(ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME, "weld").trim();
+          switch (value) {
+          case "weld":
+            returnValue = ((WeldManager)this.getBeanManager()).getServices().get(ExecutorServices.class).getTaskExecutor();
+            break;
+          case "common":
+            returnValue = ForkJoinPool.commonPool();
+            break;
+          case "virtual":
+            try {
+              returnValue = (Executor)getNewVirtualThreadPerTaskExecutorMethod().invoke(null);
+            } catch (final ReflectiveOperationException reflectiveOperationException) {
+              throw new IllegalStateException("Virtual threads are not supported by this Java runtime",
+                                              reflectiveOperationException);
+            }
+            this.ownsEntityManagerFactoryExecutor = true;
+            break;
+          default:
+            try {
+              returnValue = getExecutorConstructor(value).newInstance();
+            } catch (final ReflectiveOperationException reflectiveOperationException) {
+              throw new IllegalStateException(getExecutorErrorMessage(value), reflectiveOperationException);
+            }
+            this.ownsEntityManagerFactoryExecutor = true;
+            break;
+          }
+          assert returnValue != null;
+          this.entityManagerFactoryExecutor = returnValue;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the bounded {@link ExecutorService} on which units of
+   * work submitted to the {@link
+   * PersistenceUnitExecutor#executeAsync(String, Function)} method
+   * are run, creating it if necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link ExecutorService}
+   *
+   * @exception IllegalStateException if this {@link
+   * JpaInjectionServices} is not in service
+   *
+   * @see #ASYNC_THREADS_PROPERTY_NAME
+   *
+   * @see #ASYNC_QUEUE_SIZE_PROPERTY_NAME
+   */
+  private final ExecutorService getAsyncExecutor() {
+    ExecutorService returnValue = this.asyncExecutor;
+    if (returnValue == null) {
+      synchronized (this) {
+        returnValue = this.asyncExecutor;
+        if (returnValue == null) {
+          if (this.closed) {
+            throw new IllegalStateException("cleanup() has been called");
+          }
+          final int threads = Math.max(1, Integer.getInteger(ASYNC_THREADS_PROPERTY_NAME,
+                                                             Runtime.getRuntime().availableProcessors()));
+          final int queueSize = Math.max(0, Integer.getInteger(ASYNC_QUEUE_SIZE_PROPERTY_NAME, 64));
+          final BlockingQueue<Runnable> queue;
+          if (queueSize == 0) {
+            queue = new SynchronousQueue<>();
+          } else {
+            queue = new ArrayBlockingQueue<>(queueSize);
+          }
+          final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+          final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue, r -> {
+                final Thread thread = defaultThreadFactory.newThread(r);
+                // Don't keep the JVM alive if cleanup() is never called.
+                thread.setDaemon(true);
+                return thread;
+              });
+          executor.allowCoreThreadTimeOut(true);
+          returnValue = executor;
+          this.asyncExecutor = returnValue;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link CompletableFuture} that is or will be completed
+   * with an {@link EntityManagerFactoryHandle} for the {@link
+   * EntityManagerFactory} for the named persistence unit.
+   *
+   * <p>All callers supplying the same {@code name} share the same
+   * {@link CompletableFuture} and hence the same creation task, so
+   * that no matter how many injection points reference a given
+   * persistence unit, at most one task per persistence unit is ever
+   * executed.  If the {@link EntityManagerFactory} already exists,
+   * the returned {@link CompletableFuture} is already completed, no
+   * task is executed and no lock is acquired.</p>
+   *
+   * <p>The {@link EntityManagerFactory} is created outside of any
+   * lock, so the creation of {@link EntityManagerFactory} instances
+   * for different persistence units proceeds fully in
+   * parallel.</p>
+   *
+   * <p>If creation of the {@link EntityManagerFactory} fails, the
+   * returned {@link CompletableFuture} completes exceptionally and is
+   * forgotten.  The failure itself is remembered for a period
+   * governed by the {@value
+   * #ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME} property;
+   * until that period has elapsed, this method returns a {@link
+   * CompletableFuture} that has already completed exceptionally with
+   * an {@link EntityManagerFactoryUnavailableException}, and no task
+   * is executed.  Thereafter, a subsequent invocation of this method
+   * will try again.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param executorSupplier a {@link Supplier} of the {@link
+   * Executor} that will create the {@link EntityManagerFactory} if
+   * this invocation is the first to need it; must not be {@code
+   * null}; will not be invoked otherwise
+   *
+   * @return a non-{@code null} {@link CompletableFuture}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   */
+  private final CompletableFuture<EntityManagerFactoryHandle> getEntityManagerFactoryFuture(final PersistenceUnitMetadata metadata,
+                                                                                            final Supplier<? extends Executor> executorSupplier) {
+    final String name = metadata.getName();
+    Objects.requireNonNull(executorSupplier);
+    CompletableFuture<EntityManagerFactoryHandle> returnValue = this.emfs.get(name);
+    if (returnValue == null) {
+      final EntityManagerFactoryUnavailableException recentFailure = metadata.getRecentFailure();
+      if (recentFailure != null) {
+        returnValue = new CompletableFuture<>();
+        returnValue.completeExceptionally(recentFailure);
+        return returnValue;
+      }
+      final CompletableFuture<EntityManagerFactoryHandle> newFuture = new CompletableFuture<>();
+      returnValue = this.emfs.putIfAbsent(name, newFuture);
+      if (returnValue == null) {
+        // We are the first to need this persistence unit's
+        // EntityManagerFactory.
+        returnValue = newFuture;
+        try {
+          final Executor executor = executorSupplier.get();
+          assert executor != null;
+          executor.execute(() -> this.createEntityManagerFactory(metadata, newFuture));
+        } catch (final RejectedExecutionException | IllegalStateException exception) {
+          this.emfs.remove(name, newFuture);
+          newFuture.completeExceptionally(exception);
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Acquires a lease on the {@link EntityManagerFactory} for the
+   * described persistence unit, waiting, for no longer than the
+   * {@value #ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME} property
+   * permits, for its creation in the background if necessary.
+   *
+   * <p>The caller must pass the returned {@link
+   * EntityManagerFactoryHandle} to the {@link
+   * #releaseEntityManagerFactory(PersistenceUnitMetadata,
+   * EntityManagerFactoryHandle)} method once it no longer needs its
+   * {@link EntityManagerFactory}, or any {@link EntityManager}
+   * created by it.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactoryHandle} on
+   * which a lease has been {@linkplain
+   * EntityManagerFactoryHandle#acquire() acquired}
+   *
+   * @exception NullPointerException if {@code metadata} is {@code
+   * null}
+   *
+   * @exception EntityManagerFactoryUnavailableException if the {@link
+   * EntityManagerFactory} could not be created, was not created in
+   * time, or failed to be created recently
+   *
+   * @see #getEntityManagerFactoryFuture(PersistenceUnitMetadata)
+   */
+  private final EntityManagerFactoryHandle acquireEntityManagerFactory(final PersistenceUnitMetadata metadata) {
+    return this.acquireEntityManagerFactory(metadata, this::getEntityManagerFactoryExecutor);
+  }
+
+  /**
+   * Acquires a lease on the {@link EntityManagerFactory} for the
+   * described persistence unit, creating it on the current thread if
+   * necessary, or waiting for its creation if it is already underway
+   * on another thread.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactoryHandle} on
+   * which a lease has been {@linkplain
+   * EntityManagerFactoryHandle#acquire() acquired}
+   *
+   * @exception NullPointerException if {@code metadata} is {@code
+   * null}
+   *
+   * @exception PersistenceException if the {@link
+   * EntityManagerFactory} could not be created
+   *
+   * @exception IllegalStateException if the {@link #cleanup()}
+   * method has been called
+   *
+   * @see #acquireEntityManagerFactory(PersistenceUnitMetadata)
+   */
+  private final EntityManagerFactoryHandle acquireOrCreateEntityManagerFactory(final PersistenceUnitMetadata metadata) {
+    return this.acquireEntityManagerFactory(metadata, () -> Runnable::run);
+  }
+
+  private final EntityManagerFactoryHandle acquireEntityManagerFactory(final PersistenceUnitMetadata metadata,
+                                                                       final Supplier<? extends Executor> executorSupplier) {
+    while (true) {
+      if (this.closed) {
+        throw new IllegalStateException("cleanup() has been called");
+      }
+      final CompletableFuture<EntityManagerFactoryHandle> future = this.getEntityManagerFactoryFuture(metadata, executorSupplier);
+      final EntityManagerFactoryHandle returnValue = this.getEntityManagerFactoryHandle(metadata, future);
+      if (returnValue.acquire()) {
+        return returnValue;
+      }
+      // The EntityManagerFactory was retired after we found it.
+      // Forget it, if nobody has already, and try again.
+      this.emfs.remove(metadata.getName(), future);
+    }
+  }
+
+  /**
+   * Releases a lease previously acquired by the {@link
+   * #acquireEntityManagerFactory(PersistenceUnitMetadata)} or {@link
+   * #acquireOrCreateEntityManagerFactory(PersistenceUnitMetadata)}
+   * methods, closing the {@link EntityManagerFactory} if it has been
+   * retired and this was its last lease.
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param handle the {@link EntityManagerFactoryHandle} on which the
+   * lease was acquired; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  private final void releaseEntityManagerFactory(final PersistenceUnitMetadata metadata,
+                                                 final EntityManagerFactoryHandle handle) {
+    if (handle.release()) {
+      close(metadata, handle);
+    } else {
+      this.evictEntityManagerFactories(false);
+    }
+  }
+
+  /**
+   * Returns a {@link Runnable} for the {@link EntityManagerRegistry}
+   * to run if a container-managed {@link EntityManager}, acquired
+   * under the supplied lease, leaks.
+   *
+   * <p>The {@link Runnable} reports the leak to this {@link
+   * JpaInjectionServices}' {@link JpaInjectionServicesMetrics}, if
+   * any, and releases the lease.  It deliberately refers to nothing
+   * that refers to the {@link EntityManager}.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param handle the {@link EntityManagerFactoryHandle} on which the
+   * lease was acquired; must not be {@code null}
+   *
+   * @param origin a description of the injection point for which the
+   * {@link EntityManager} was acquired; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Runnable}
+   *
+   * @see EntityManagerRegistry#register(EntityManager, String,
+   * Runnable)
+   */
+  private final Runnable newLeakAction(final PersistenceUnitMetadata metadata,
+                                       final EntityManagerFactoryHandle handle,
+                                       final String origin) {
+    Objects.requireNonNull(metadata);
+    Objects.requireNonNull(handle);
+    return () -> {
+      final JpaInjectionServicesMetrics metrics = this.metrics;
+      if (metrics != null) {
+        metrics.entityManagerLeaked(metadata.getName(), origin);
+      }
+      this.releaseEntityManagerFactory(metadata, handle);
+    };
+  }
+
+  /**
+   * Returns the {@link EntityManagerFactoryHandle} with which the
+   * supplied {@link Future} is or will be completed, blocking if
+   * necessary, and reporting any time spent blocked to this {@link
+   * JpaInjectionServices}' {@link JpaInjectionServicesMetrics}.
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the relevant persistence unit; must not be {@code null}
+   *
+   * @param future the {@link Future}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactoryHandle}
+   *
+   * @exception EntityManagerFactoryUnavailableException if the {@link
+   * EntityManagerFactory} could not be created, or was not created
+   * within the time permitted by the {@value
+   * #ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME} property
+   */
+  private final EntityManagerFactoryHandle getEntityManagerFactoryHandle(final PersistenceUnitMetadata metadata,
+                                                                         final Future<? extends EntityManagerFactoryHandle> future) {
+    if (future.isDone()) {
+      return getEntityManagerFactoryHandle(metadata.getName(), future, 0L);
+    }
+    final long timeout = metadata.getLongProperty(ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME, 0L);
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    if (metrics == null) {
+      return getEntityManagerFactoryHandle(metadata.getName(), future, timeout);
+    }
+    final long start = System.nanoTime();
+    try {
+      return getEntityManagerFactoryHandle(metadata.getName(), future, timeout);
+    } finally {
+      metrics.entityManagerFactoryAwaited(metadata.getName(), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Closes idle {@link EntityManagerFactory} instances, as permitted
+   * by the {@value
+   * #ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME} and {@value
+   * #ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME} properties.
+   *
+   * <p>Unless {@code force} is {@code true}, this method does nothing
+   * if it has done its work within the last second, so it is cheap
+   * enough to call whenever an {@link EntityManager} is
+   * released.</p>
+   *
+   * @param force whether to do this method's work even if it has
+   * been done within the last second
+   *
+   * @see #ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME
+   *
+   * @see #ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME
+   */
+  private final void evictEntityManagerFactories(final boolean force) {
+    final long now = System.nanoTime();
+    if (!force) {
+      final long nextEvictionNanos = this.nextEvictionNanos.get();
+      if (now - nextEvictionNanos < 0L || !this.nextEvictionNanos.compareAndSet(nextEvictionNanos, now + EVICTION_INTERVAL_NANOS)) {
+        return;
+      }
+    }
+    final int maximumSize = this.maximumEntityManagerFactories;
+    int size = 0;
+    List<EvictionCandidate> candidates = null;
+    for (final Map.Entry<String, CompletableFuture<EntityManagerFactoryHandle>> entry : this.emfs.entrySet()) {
+      size++;
+      final CompletableFuture<EntityManagerFactoryHandle> future = entry.getValue();
+      if (!future.isDone() || future.isCompletedExceptionally()) {
+        continue;
+      }
+      final EntityManagerFactoryHandle handle = future.join();
+      if (!handle.isIdle()) {
+        continue;
+      }
+      final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(entry.getKey());
+      final long idleTimeout = metadata.getLongProperty(ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME, 0L);
+      if (idleTimeout > 0L && this.evict(metadata, future, handle, now, TimeUnit.MILLISECONDS.toNanos(idleTimeout))) {
+        size--;
+      } else if (maximumSize > 0 && handle.hasBeenLeased()) {
+        // Never-leased EntityManagerFactory instances are exempt, so
+        // that one that has just been created is not closed before
+        // whoever needed it has had a chance to use it.
+        if (candidates == null) {
+          candidates = new ArrayList<>();
+        }
+        candidates.add(new EvictionCandidate(metadata, future, handle));
+      }
+    }
+    if (candidates != null && size > maximumSize) {
+      candidates.sort(Comparator.comparingLong(candidate -> candidate.idleSince));
+      for (final EvictionCandidate candidate : candidates) {
+        if (size <= maximumSize) {
+          break;
+        }
+        if (this.evict(candidate.metadata, candidate.future, candidate.handle, now, 0L)) {
+          size--;
+        }
+      }
+    }
+  }
+
+  private final boolean evict(final PersistenceUnitMetadata metadata,
+                              final CompletableFuture<EntityManagerFactoryHandle> future,
+                              final EntityManagerFactoryHandle handle,
+                              final long now,
+                              final long idleNanos) {
+    if (!handle.retireIfIdle(now, idleNanos)) {
+      return false;
+    }
+    this.emfs.remove(metadata.getName(), future);
+    metadata.recordEviction();
+    close(metadata, handle);
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.entityManagerFactoryEvicted(metadata.getName());
+    }
+    return true;
+  }
+
+  private final EntityManagerFactory createEntityManagerFactory(final PersistenceUnitMetadata metadata) {
+    final PersistenceUnitInfo persistenceUnitInfo = metadata.getPersistenceUnitInfo();
+    assert persistenceUnitInfo != null;
+    final EntityManagerFactory returnValue;
+    if (metadata.isResourceLocal()) {
+      final Map<String, Object> properties = new HashMap<>();
+      configureMetadataCache(metadata, properties);
+      configureSessionName(metadata, properties);
+      if (properties.isEmpty()) {
+        returnValue = Persistence.createEntityManagerFactory(persistenceUnitInfo.getPersistenceUnitName());
+      } else {
+        returnValue = Persistence.createEntityManagerFactory(persistenceUnitInfo.getPersistenceUnitName(), properties);
+      }
+    } else {
+      final PersistenceProvider persistenceProvider = metadata.getPersistenceProvider();
+      assert persistenceProvider != null;
+      final Map<String, Object> properties = new HashMap<>(this.getBootstrapProperties());
+      configureMetadataCache(metadata, properties);
+      configureSessionName(metadata, properties);
+      returnValue = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, properties);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Adds the properties that enable a {@link MappedProjectCache} to
+   * the supplied {@link Map} if the {@value
+   * #METADATA_CACHE_DIRECTORY_PROPERTY_NAME} property is set and the
+   * described persistence unit is deployed by EclipseLink.
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to the persistence provider; must not be {@code null}
+   *
+   * @exception PersistenceException if the persistence unit's classes
+   * could not be read
+   *
+   * @see #METADATA_CACHE_DIRECTORY_PROPERTY_NAME
+   */
+  private static final void configureMetadataCache(final PersistenceUnitMetadata metadata,
+                                                   final Map<String, Object> properties) {
+    final String directory = metadata.getProperty(METADATA_CACHE_DIRECTORY_PROPERTY_NAME);
+    if (directory == null || directory.trim().isEmpty()) {
+      return;
+    }
+    final PersistenceUnitInfo persistenceUnitInfo = metadata.getPersistenceUnitInfo();
+    final Properties unitProperties = persistenceUnitInfo.getProperties();
+    if (unitProperties != null && unitProperties.getProperty(MappedProjectCache.PROJECT_CACHE_PROPERTY_NAME) != null) {
+      return;
+    }
+    final Class<?> providerClass = getEclipseLinkPersistenceProviderClass(metadata);
+    if (providerClass == null) {
+      return;
+    }
+    final Package providerPackage = providerClass.getPackage();
+    try {
+      MappedProjectCache.configure(persistenceUnitInfo,
+                                   Paths.get(directory.trim()),
+                                   providerPackage == null ? null : providerPackage.getImplementationVersion(),
+                                   properties);
+    } catch (final IOException ioException) {
+      throw new PersistenceException(ioException.getMessage(), ioException);
+    }
+  }
+
+  /**
+   * Gives the session that EclipseLink will create for the described
+   * persistence unit a name of its own by adding an {@value
+   * #ECLIPSELINK_SESSION_NAME_PROPERTY_NAME} property to the supplied
+   * {@link Map}, if the persistence unit is deployed by EclipseLink.
+   *
+   * <p>EclipseLink keeps one session per session name for the whole
+   * JVM, and by default every {@link EntityManagerFactory} created
+   * for a given persistence unit gets the same one.  Every {@link
+   * EntityManagerFactory} is therefore given a name of its own, so
+   * that a rebuilt one may live alongside the one it replaces, and so
+   * that closing one container's {@link EntityManagerFactory} does
+   * not close the session another container is still using.</p>
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to the persistence provider; must not be {@code null}
+   *
+   * @see #replaceEntityManagerFactory(String)
+   */
+  private static final void configureSessionName(final PersistenceUnitMetadata metadata,
+                                                 final Map<String, Object> properties) {
+    if (getEclipseLinkPersistenceProviderClass(metadata) == null) {
+      return;
+    }
+    Object baseName = properties.get(ECLIPSELINK_SESSION_NAME_PROPERTY_NAME);
+    if (baseName == null) {
+      final Properties unitProperties = metadata.getPersistenceUnitInfo().getProperties();
+      if (unitProperties != null) {
+        baseName = unitProperties.getProperty(ECLIPSELINK_SESSION_NAME_PROPERTY_NAME);
+      }
+      if (baseName == null) {
+        baseName = metadata.getName();
+      }
+    }
+    properties.put(ECLIPSELINK_SESSION_NAME_PROPERTY_NAME, baseName + "-" + sessionGenerations.incrementAndGet());
+  }
+
+  /**
+   * Returns the class of the described persistence unit's {@link
+   * PersistenceProvider} if it is EclipseLink's, or {@code null}
+   * otherwise.
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @return EclipseLink's {@link PersistenceProvider} class, or
+   * {@code null}
+   */
+  private static final Class<?> getEclipseLinkPersistenceProviderClass(final PersistenceUnitMetadata metadata) {
+    final String providerClassName = metadata.getPersistenceUnitInfo().getPersistenceProviderClassName();
+    final Class<?> providerClass;
+    try {
+      if (providerClassName == null) {
+        providerClass = metadata.getPersistenceProvider().getClass();
+      } else {
+        providerClass = Class.forName(providerClassName, false, Thread.currentThread().getContextClassLoader());
+      }
+    } catch (final ClassNotFoundException classNotFoundException) {
+      // The persistence provider will report this far better than we
+      // can.
+      return null;
+    }
+    return providerClass.getName().startsWith("org.eclipse.persistence.") ? providerClass : null;
+  }
+
+
+  /**
+   * Returns the properties, shared by every JTA persistence unit,
+   * that are supplied to the {@link
+   * PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)} method, computing them if necessary.
+   *
+   * <p>The {@link BeanManager} and any {@code
+   * javax.validation.ValidatorFactory} bean are resolved only once
+   * per container.  The {@link CreationalContext} used to acquire the
+   * {@code ValidatorFactory} is released by {@link #cleanup()}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link Map} of
+   * properties
+   */
+  private synchronized final Map<String, Object> getBootstrapProperties() {
+    Map<String, Object> returnValue = this.bootstrapProperties;
+    if (returnValue == null) {
+      final BeanManager beanManager = this.getBeanManager();
+      assert beanManager != null;
+      final Map<String, Object> properties = new HashMap<>();
+      properties.put("javax.persistence.bean.manager",
+                     beanManager);
+      Class<?> validatorFactoryClass = null;
+      try {
+        validatorFactoryClass = Class.forName("javax.validation.ValidatorFactory");
+      } catch (final ClassNotFoundException classNotFoundException) {
+
+      }
+      if (validatorFactoryClass != null) {
+        final Bean<?> validatorFactoryBean =
+          getValidatorFactoryBean(beanManager,
+                                  validatorFactoryClass);
+        if (validatorFactoryBean != null) {
+          final CreationalContext<?> cc = beanManager.createCreationalContext(validatorFactoryBean);
+          properties.put("javax.validation.ValidatorFactory",
+                         beanManager.getReference(validatorFactoryBean,
+                                                  validatorFactoryClass,
+                                                  cc));
+          this.validatorFactoryCreationalContext = cc;
+        }
+      }
+      returnValue = Collections.unmodifiableMap(properties);
+      this.bootstrapProperties = returnValue;
+    }
+    return returnValue;
+  }
+
+  private final void createEntityManagerFactory(final PersistenceUnitMetadata metadata,
+                                                final CompletableFuture<EntityManagerFactoryHandle> future) {
+    if (future.isDone()) {
+      // The future was cancelled before this task got to run.
+      return;
+    }
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    final long start = metrics == null ? 0L : System.nanoTime();
+    final EntityManagerFactory emf;
+    try {
+      emf = createEntityManagerFactory(metadata);
+      if (metrics != null) {
+        metrics.entityManagerFactoryCreated(metadata.getName(), System.nanoTime() - start);
+      }
+    } catch (final RuntimeException | Error throwable) {
+      // Record the failure before forgetting the future, so that no
+      // other thread can slip in and start another attempt at once.
+      metadata.recordFailure(throwable);
+      this.emfs.remove(metadata.getName(), future);
+      future.completeExceptionally(throwable);
+      return;
+    }
+    metadata.recordSuccess();
+    if (!future.complete(new EntityManagerFactoryHandle(emf))) {
+      // The future was cancelled (by cleanup(), or by the release of
+      // an EntityManagerFactoryResourceReference) while we were
+      // busy; nobody will ever see this EntityManagerFactory.
+      if (emf.isOpen()) {
+        emf.close();
+      }
+      return;
+    }
+    if (this.closed) {
+      // cleanup() ran while we were busy and may have missed us.
+      this.emfs.remove(metadata.getName(), future);
+      close(future);
+      return;
+    }
+    if (metadata.recordRebuild() && metrics != null) {
+      metrics.entityManagerFactoryRebuilt(metadata.getName());
+    }
+    if (this.maximumEntityManagerFactories > 0) {
+      this.evictEntityManagerFactories(true);
+    }
+  }
+
+  /**
+   * Runs the supplied unit of work on the current thread, in a new
+   * transaction, with a new {@link EntityManager} for the described
+   * persistence unit.
+   *
+   * @param <T> the type of the unit of work's result
+   *
+   * @param metadata the {@link PersistenceUnitMetadata} describing
+   * the persistence unit; must not be {@code null}
+   *
+   * @param work the unit of work; must not be {@code null}
+   *
+   * @return the result of the unit of work, which may be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalStateException if the persistence unit is a JTA
+   * persistence unit and there is no {@link TransactionManager}
+   *
+   * @exception NotSupportedException if the current thread is
+   * already associated with a JTA transaction
+   *
+   * @exception RollbackException if the JTA transaction was rolled
+   * back instead of committed
+   *
+   * @exception HeuristicMixedException if some but not all resources
+   * committed
+   *
+   * @exception HeuristicRollbackException if every resource rolled
+   * back
+   *
+   * @exception SystemException if the {@link TransactionManager}
+   * failed
+   *
+   * @see PersistenceUnitExecutor#executeAsync(String, Function)
+   */
+  private final <T> T execute(final PersistenceUnitMetadata metadata, final Function<? super EntityManager, ? extends T> work)
+    throws HeuristicMixedException, HeuristicRollbackException, NotSupportedException, RollbackException, SystemException {
+    final EntityManagerFactoryHandle handle = this.acquireEntityManagerFactory(metadata);
+    try {
+      final EntityManagerFactory emf = handle.get();
+      if (metadata.isResourceLocal()) {
+        final EntityManager em = emf.createEntityManager();
+        try {
+          final EntityTransaction et = em.getTransaction();
+          et.begin();
+          try {
+            final T returnValue = work.apply(em);
+            et.commit();
+            return returnValue;
+          } finally {
+            if (et.isActive()) {
+              et.rollback();
+            }
+          }
+        } finally {
+          em.close();
+        }
+      }
+      final TransactionManager tm = this.getTransactionManager();
+      if (tm == null) {
+        throw new IllegalStateException("No TransactionManager is available for JTA persistence unit " + metadata.getName());
+      }
+      tm.begin();
+      try {
+        final EntityManager em = emf.createEntityManager(SynchronizationType.SYNCHRONIZED);
+        try {
+          if (!em.isJoinedToTransaction()) {
+            em.joinTransaction();
+          }
+          final T returnValue = work.apply(em);
+          tm.commit();
+          return returnValue;
+        } finally {
+          // For a JTA EntityManager this is legal, and takes effect
+          // once the transaction, if still active, completes.
+          em.close();
+        }
+      } finally {
+        try {
+          if (tm.getStatus() != Status.STATUS_NO_TRANSACTION) {
+            tm.rollback();
+          }
+        } finally {
+          // This is a pooled worker thread.  If rollback() failed,
+          // don't leave the transaction associated with it, or every
+          // later unit of work run on it would fail in begin().
+          if (tm.getStatus() != Status.STATUS_NO_TRANSACTION) {
+            tm.suspend();
+          }
+        }
+      }
+    } finally {
+      this.releaseEntityManagerFactory(metadata, handle);
+    }
+  }
+
+  /*
+   * Package-private for testing purposes only.  Returns what
+   * registerPersistenceUnitInjectionPoint(InjectionPoint) would
+   * eventually create for an injection point referring to the
+   * persistence unit described by the supplied PersistenceUnitInfo,
+   * without involving CDI.
+   */
+  final ResourceReference<EntityManagerFactory> createEntityManagerFactoryReference(final PersistenceUnitInfo persistenceUnitInfo) {
+    final PersistenceUnitMetadata metadata = this.getPersistenceUnitMetadata(persistenceUnitInfo.getPersistenceUnitName());
+    metadata.setPersistenceUnitInfo(persistenceUnitInfo);
+    return new EntityManagerFactoryResourceReference(metadata);
+  }
+
+  private final void replaceEntityManagerFactory(final PersistenceUnitMetadata metadata,
+                                                 final CompletableFuture<Void> result) {
+    final String name = metadata.getName();
+    final JpaInjectionServicesMetrics metrics = this.metrics;
+    final long start = metrics == null ? 0L : System.nanoTime();
+    final EntityManagerFactory emf;
+    try {
+      emf = createEntityManagerFactory(metadata);
+    } catch (final RuntimeException | Error throwable) {
+      // Unlike a failure in createEntityManagerFactory(PersistenceUnitMetadata,
+      // CompletableFuture), this one is not recorded: the current
+      // EntityManagerFactory, if any, is still perfectly usable.
+      result.completeExceptionally(new EntityManagerFactoryUnavailableException(name,
+                                                                                "Could not create a replacement EntityManagerFactory for persistence unit " +
+                                                                                name,
+                                                                                throwable));
+      return;
+    }
+    if (metrics != null) {
+      metrics.entityManagerFactoryCreated(name, System.nanoTime() - start);
+    }
+    metadata.recordSuccess();
+    final CompletableFuture<EntityManagerFactoryHandle> oldFuture =
+      this.emfs.put(name, CompletableFuture.completedFuture(new EntityManagerFactoryHandle(emf)));
+    if (oldFuture != null) {
+      // Threads that still find the old EntityManagerFactory, or are
+      // waiting for it to be created, will fail to acquire a lease on
+      // it once it is retired, and will try again with the new one.
+      oldFuture.whenComplete((handle, throwable) -> {
+          if (handle != null && handle.retire()) {
+            close(metadata, handle);
+          }
+        });
+    }
+    if (this.closed) {
+      // cleanup() ran while we were busy.
+      close(this.emfs.remove(name));
+    }
+    result.complete(null);
+  }
+
+  /**
+   * Returns the {@link TransactionSynchronizationRegistry} available
+   * in the current CDI container, or {@code null} if there is none.
+   *
+   * @return a {@link TransactionSynchronizationRegistry}, or {@code
+   * null}
+   */
+  private final TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+    TransactionSynchronizationRegistry returnValue = this.tsr;
+    if (returnValue == null) {
+      final Instance<TransactionSynchronizationRegistry> instance = this.instance().select(TransactionSynchronizationRegistry.class);
+      assert instance != null;
+      if (instance.isResolvable()) {
+        returnValue = instance.get();
+        this.tsr = returnValue;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the {@link TransactionManager} available in the current
+   * CDI container, or {@code null} if there is none.
+   *
+   * @return a {@link TransactionManager}, or {@code null}
+   */
+  private final TransactionManager getTransactionManager() {
+    TransactionManager returnValue = this.tm;
+    if (returnValue == null) {
+      final Instance<TransactionManager> instance = this.instance().select(TransactionManager.class);
+      assert instance != null;
+      if (instance.isResolvable()) {
+        returnValue = instance.get();
+        this.tm = returnValue;
       }
     }
-    returnValue = () -> new EntityManagerFactoryResourceReference(this.emfs, name);
     return returnValue;
   }
 
@@ -284,41 +2155,68 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
     // https://github.com/weld/core/blob/06fcaf4a6f625f101be5804208c1eb3a32884773/impl/src/main/java/org/jboss/weld/Container.java#L143-L145
     // and
     // https://github.com/weld/core/blob/06fcaf4a6f625f101be5804208c1eb3a32884773/impl/src/main/java/org/jboss/weld/manager/BeanManagerImpl.java#L1173.
-    if (UNDERWAY) {
-      assert this == INSTANCE;
-
-      // this.ems should be empty already.  If for some reason it is
-      // not, we just clear() it (rather than, say, calling em.close()
-      // on each element).  This is for two reasons: one, we're being
-      // cleaned up so the whole container is going down anyway.  Two,
-      // it is forbidden by JPA's contract to call close() on a
-      // container-managed EntityManager...which is the only kind of
-      // EntityManager placed in this collection.
-      this.ems.clear();
-
-      final Map<? extends String, ? extends EntityManagerFactory> emfs = this.emfs;
-      if (emfs != null && !emfs.isEmpty()) {
-        final Collection<? extends EntityManagerFactory> values = emfs.values();
-        assert values != null;
-        assert !values.isEmpty();
-        final Iterator<? extends EntityManagerFactory> iterator = values.iterator();
-        assert iterator != null;
-        assert iterator.hasNext();
-        while (iterator.hasNext()) {
-          final EntityManagerFactory emf = iterator.next();
-          assert emf != null;
-          if (emf.isOpen()) {
-            emf.close();
-          }
-          iterator.remove();
-        }
+    this.closed = true;
+
+    // Stop accepting asynchronous units of work.  Any still queued or
+    // running will fail once the EntityManagerFactory instances below
+    // have been closed.
+    synchronized (this) {
+      final ExecutorService asyncExecutor = this.asyncExecutor;
+      this.asyncExecutor = null;
+      if (asyncExecutor != null) {
+        asyncExecutor.shutdown();
       }
     }
-    assert this.ems.isEmpty();
-    assert this.emfs == null || this.emfs.isEmpty();
-    synchronized (JpaInjectionServices.class) {
-      UNDERWAY = false;
-      INSTANCE = null;
+
+    // this.ems should be empty already.  If for some reason it is
+    // not, we just clear() it (rather than, say, calling em.close()
+    // on each element).  This is for two reasons: one, we're being
+    // cleaned up so the whole container is going down anyway.  Two,
+    // it is forbidden by JPA's contract to call close() on a
+    // container-managed EntityManager...which is the only kind of
+    // EntityManager placed in this collection.
+    this.ems.clear();
+
+    this.tsr = null;
+    this.tm = null;
+
+    // Close any pooled EntityManagers before the
+    // EntityManagerFactory instances that created them.
+    this.persistenceUnitMetadata.values().forEach(PersistenceUnitMetadata::clearEntityManagerPool);
+    this.persistenceUnitMetadata.clear();
+
+    final Collection<? extends CompletableFuture<? extends EntityManagerFactoryHandle>> values = this.emfs.values();
+    assert values != null;
+    final Iterator<? extends CompletableFuture<? extends EntityManagerFactoryHandle>> iterator = values.iterator();
+    assert iterator != null;
+    while (iterator.hasNext()) {
+      final CompletableFuture<? extends EntityManagerFactoryHandle> future = iterator.next();
+      assert future != null;
+      iterator.remove();
+      close(future);
+    }
+
+    // Release the ValidatorFactory reference, if any, only after
+    // all the EntityManagerFactory instances that may be using it
+    // have been closed.
+    synchronized (this) {
+      this.bootstrapProperties = null;
+      if (this.validatorFactoryCreationalContext != null) {
+        this.validatorFactoryCreationalContext.release();
+        this.validatorFactoryCreationalContext = null;
+      }
+      if (this.metricsBound) {
+        this.metricsBound = false;
+        this.metrics.unbind();
+      }
+      final Executor executor = this.entityManagerFactoryExecutor;
+      this.entityManagerFactoryExecutor = null;
+      if (this.ownsEntityManagerFactoryExecutor) {
+        this.ownsEntityManagerFactoryExecutor = false;
+        if (executor instanceof ExecutorService) {
+          ((ExecutorService)executor).shutdown();
+        }
+      }
     }
   }
 
@@ -378,76 +2276,311 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    */
 
 
-  private static final PersistenceProvider getPersistenceProvider(final PersistenceUnitInfo persistenceUnitInfo) {
+  /**
+   * Checks that the value of the {@value
+   * #ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME} system property
+   * describes an {@link Executor} that can be created, without
+   * creating it.
+   *
+   * <p>This method is called by the {@link
+   * JpaInjectionServicesExtension} class while the container is
+   * starting, so that a misconfiguration is reported then rather than
+   * when the first {@link EntityManagerFactory} is needed.</p>
+   *
+   * @exception IllegalStateException if the value is {@code virtual}
+   * and virtual threads are not supported by this Java runtime, or if
+   * it names a class that cannot be loaded, does not implement {@link
+   * Executor} or has no zero-argument constructor
+   *
+   * @see #ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME
+   */
+  static final void validateEntityManagerFactoryExecutor() {
+    final String value = System.getProperty(ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME, "weld").trim();
+    switch (value) {
+    case "weld":
+    case "common":
+      break;
+    case "virtual":
+      try {
+        getNewVirtualThreadPerTaskExecutorMethod();
+      } catch (final NoSuchMethodException noSuchMethodException) {
+        throw new IllegalStateException("Virtual threads are not supported by this Java runtime", noSuchMethodException);
+      }
+      break;
+    default:
+      getExecutorConstructor(value);
+      break;
+    }
+  }
+
+  private static final Method getNewVirtualThreadPerTaskExecutorMethod() throws NoSuchMethodException {
+    return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+  }
+
+  /**
+   * Returns the zero-argument constructor of the {@link Executor}
+   * implementation with the supplied name, without initializing it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param className the name of the class; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link Constructor}
+   *
+   * @exception IllegalStateException if the class cannot be loaded,
+   * does not implement {@link Executor} or has no zero-argument
+   * constructor
+   */
+  private static final Constructor<? extends Executor> getExecutorConstructor(final String className) {
+    final Class<?> c;
+    try {
+      c = Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+    } catch (final ClassNotFoundException | LinkageError exception) {
+      throw new IllegalStateException(getExecutorErrorMessage(className), exception);
+    }
+    if (!Executor.class.isAssignableFrom(c)) {
+      throw new IllegalStateException(getExecutorErrorMessage(className) + ": " + c.getName() +
+                                      " does not implement " + Executor.class.getName());
+    }
+    try {
+      return c.asSubclass(Executor.class).getDeclaredConstructor();
+    } catch (final NoSuchMethodException noSuchMethodException) {
+      throw new IllegalStateException(getExecutorErrorMessage(className), noSuchMethodException);
+    }
+  }
+
+  private static final String getExecutorErrorMessage(final String value) {
+    return "Could not create an Executor from the " +
+      ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME + " system property value \"" + value + "\"";
+  }
+
+  private static final PersistenceProvider getPersistenceProvider(final Instance<Object> instance,
+                                                                  final PersistenceUnitInfo persistenceUnitInfo) {
     final String providerClassName = Objects.requireNonNull(persistenceUnitInfo).getPersistenceProviderClassName();
     final PersistenceProvider persistenceProvider;
     if (providerClassName == null) {
-      persistenceProvider = CDI.current().select(PersistenceProvider.class).get();
+      persistenceProvider = instance.select(PersistenceProvider.class).get();
     } else {
       try {
         persistenceProvider =
-          (PersistenceProvider)CDI.current().select(Class.forName(providerClassName,
+          (PersistenceProvider)instance.select(Class.forName(providerClassName,
                                                                   true,
                                                                   Thread.currentThread().getContextClassLoader())).get();
       } catch (final ReflectiveOperationException exception) {
         throw new PersistenceException(exception.getMessage(), exception);
       }
     }
-    return persistenceProvider;
+    return persistenceProvider;
+  }
+
+  /**
+   * Removes the named property from the supplied {@link Map} of
+   * {@link PersistenceContext} properties and returns its value as a
+   * non-negative {@code int}.
+   *
+   * @param properties the properties; must not be {@code null}
+   *
+   * @param name the name of the property; must not be {@code null}
+   *
+   * @param injectionPoint the {@link InjectionPoint} whose {@link
+   * PersistenceContext} annotation supplied {@code properties}, for
+   * reporting purposes; may be {@code null}
+   *
+   * @return the value of the property, or {@code 0} if it is unset or
+   * not positive
+   *
+   * @exception IllegalArgumentException if the property is set but
+   * its value is not an integer
+   */
+  private static final int removeIntProperty(final Map<String, Object> properties,
+                                             final String name,
+                                             final InjectionPoint injectionPoint) {
+    final String value = (String)properties.remove(name);
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(value.trim()));
+    } catch (final NumberFormatException numberFormatException) {
+      throw new IllegalArgumentException("Invalid " + name + " value for injection point " + injectionPoint + ": " + value,
+                                         numberFormatException);
+    }
+  }
+
+  private static final boolean isActive(final int transactionStatus) {
+    switch (transactionStatus) {
+    case Status.STATUS_ACTIVE:
+    case Status.STATUS_MARKED_ROLLBACK:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static final PersistenceUnitInfo getPersistenceUnitInfo(final Instance<Object> instance, final String name) {
+    return instance.select(PersistenceUnitInfo.class,
+                           NamedLiteral.of(Objects.requireNonNull(name))).get();
+  }
+
+  private static final EntityManagerFactoryHandle getEntityManagerFactoryHandle(final String name,
+                                                                                final Future<? extends EntityManagerFactoryHandle> future,
+                                                                                final long timeoutInMilliseconds) {
+    try {
+      if (timeoutInMilliseconds > 0L) {
+        return future.get(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+      }
+      return future.get();
+    } catch (final ExecutionException executionException) {
+      final Throwable cause = executionException.getCause();
+      if (cause instanceof EntityManagerFactoryUnavailableException) {
+        throw (EntityManagerFactoryUnavailableException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new EntityManagerFactoryUnavailableException(name,
+                                                         "Could not create the EntityManagerFactory for persistence unit " + name,
+                                                         cause == null ? executionException : cause);
+    } catch (final TimeoutException timeoutException) {
+      // Note that the future is deliberately not cancelled here: other
+      // threads may still be waiting for it.
+      throw new EntityManagerFactoryUnavailableException(name,
+                                                         "Timed out after " + timeoutInMilliseconds +
+                                                         " ms waiting for the EntityManagerFactory for persistence unit " + name,
+                                                         timeoutException);
+    } catch (final CancellationException cancellationException) {
+      throw new EntityManagerFactoryUnavailableException(name,
+                                                         "Creation of the EntityManagerFactory for persistence unit " + name +
+                                                         " was cancelled",
+                                                         cancellationException);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      throw new EntityManagerFactoryUnavailableException(name, interruptedException.getMessage(), interruptedException);
+    }
+  }
+
+  /**
+   * Creates a new {@link EntityManager} using the supplied {@link
+   * EntityManagerFactory}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param emf the {@link EntityManagerFactory}; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitName the name of the persistence unit to
+   * which {@code emf} belongs, for reporting purposes; must not be
+   * {@code null}
+   *
+   * @param resourceLocal whether {@code emf} belongs to a {@code
+   * RESOURCE_LOCAL} persistence unit, in which case {@code
+   * synchronizationType} is ignored
+   *
+   * @param synchronizationType the {@link SynchronizationType} of
+   * the persistence context; must not be {@code null}
+   *
+   * @param properties the properties to supply to the persistence
+   * provider; must not be {@code null}
+   *
+   * @param readOnly whether the {@link EntityManager} should be a
+   * {@linkplain ReadOnlyEntityManagerHandler read-only proxy}, in
+   * which case a JTA {@link EntityManager} is always created as
+   * {@link SynchronizationType#UNSYNCHRONIZED unsynchronized}
+   *
+   * @param flushInterval if positive, the flush interval of the
+   * {@linkplain BulkEntityManagerHandler bulk-ingestion proxy} the
+   * {@link EntityManager} should be; ignored if {@code readOnly} is
+   * {@code true}
+   *
+   * @param streamFetchSize if positive, the fetch size of the
+   * {@linkplain StreamingEntityManagerHandler streaming proxy} the
+   * {@link EntityManager} should be wrapped in
+   *
+   * @return a new, non-{@code null} {@link EntityManager}
+   *
+   * @see #READ_ONLY_PROPERTY_NAME
+   *
+   * @see #FLUSH_INTERVAL_PROPERTY_NAME
+   *
+   * @see #STREAM_FETCH_SIZE_PROPERTY_NAME
+   */
+  private final EntityManager createEntityManager(final EntityManagerFactory emf,
+                                                  final String persistenceUnitName,
+                                                  final boolean resourceLocal,
+                                                  final SynchronizationType synchronizationType,
+                                                  final Map<String, ?> properties,
+                                                  final boolean readOnly,
+                                                  final int flushInterval,
+                                                  final int streamFetchSize) {
+    EntityManager returnValue;
+    if (resourceLocal) {
+      if (properties.isEmpty()) {
+        returnValue = emf.createEntityManager();
+      } else {
+        returnValue = emf.createEntityManager(properties);
+      }
+    } else {
+      final SynchronizationType type = readOnly ? SynchronizationType.UNSYNCHRONIZED : synchronizationType;
+      if (properties.isEmpty()) {
+        returnValue = emf.createEntityManager(type);
+      } else {
+        returnValue = emf.createEntityManager(type, properties);
+      }
+    }
+    if (readOnly) {
+      returnValue = ReadOnlyEntityManagerHandler.newProxy(returnValue);
+    } else if (flushInterval > 0) {
+      returnValue = BulkEntityManagerHandler.newProxy(returnValue, flushInterval, persistenceUnitName, this.metrics);
+    }
+    if (streamFetchSize > 0) {
+      returnValue =
+        StreamingEntityManagerHandler.newProxy(returnValue, streamFetchSize, this::getTransactionSynchronizationRegistry);
+    }
+    return returnValue;
+  }
+
+  private static final void close(final CompletableFuture<? extends EntityManagerFactoryHandle> future) {
+    // If future is not yet done, cancelling it causes the
+    // EntityManagerFactory to be closed by its creator as soon as it
+    // is created.  Otherwise we close it here, regardless of any
+    // outstanding leases.
+    if (future != null && !future.cancel(false) && !future.isCompletedExceptionally()) {
+      final EntityManagerFactoryHandle handle = future.join();
+      if (handle != null) {
+        handle.close();
+      }
+    }
+  }
+
+  private static final void retire(final PersistenceUnitMetadata metadata,
+                                   final CompletableFuture<? extends EntityManagerFactoryHandle> future) {
+    // As close(CompletableFuture), except that if there are
+    // outstanding leases the EntityManagerFactory is closed only once
+    // the last of them is released.
+    if (future != null && !future.cancel(false) && !future.isCompletedExceptionally()) {
+      final EntityManagerFactoryHandle handle = future.join();
+      if (handle != null && handle.retire()) {
+        close(metadata, handle);
+      }
+    }
   }
 
-  private static final PersistenceUnitInfo getPersistenceUnitInfo(final String name) {
-    return CDI.current().select(PersistenceUnitInfo.class,
-                                NamedLiteral.of(Objects.requireNonNull(name))).get();
+  private static final void close(final PersistenceUnitMetadata metadata, final EntityManagerFactoryHandle handle) {
+    // Close any pooled EntityManagers before the EntityManagerFactory
+    // that created them.
+    metadata.clearEntityManagerPool(handle.get());
+    handle.close();
   }
 
-  private static final EntityManagerFactory getOrCreateEntityManagerFactory(final Map<String, EntityManagerFactory> emfs,
-                                                                            final PersistenceUnitInfo persistenceUnitInfo,
-                                                                            final String name) {
-    Objects.requireNonNull(emfs);
-    Objects.requireNonNull(name);
-    final EntityManagerFactory returnValue;
-    if (persistenceUnitInfo == null) {
-      returnValue =
-        emfs.computeIfAbsent(name, n -> Persistence.createEntityManagerFactory(n));
-    } else {
-      final PersistenceProvider persistenceProvider = getPersistenceProvider(persistenceUnitInfo);
-      assert persistenceProvider != null;
-      returnValue =
-        emfs.computeIfAbsent(name,
-                             n -> {
-                               final CDI<Object> cdi = CDI.current();
-                               assert cdi != null;
-                               final BeanManager beanManager = cdi.getBeanManager();
-                               assert beanManager != null;
-                               final Map<String, Object> properties = new HashMap<>();
-                               properties.put("javax.persistence.bean.manager",
-                                              beanManager);
-                               Class<?> validatorFactoryClass = null;
-                               try {
-                                 validatorFactoryClass = Class.forName("javax.validation.ValidatorFactory");
-                               } catch (final ClassNotFoundException classNotFoundException) {
-
-                               }
-                               if (validatorFactoryClass != null) {
-                                 final Bean<?> validatorFactoryBean =
-                                   getValidatorFactoryBean(beanManager,
-                                                           validatorFactoryClass);
-                                 if (validatorFactoryBean != null) {
-                                   properties.put("javax.validation.ValidatorFactory",
-                                                  beanManager.getReference(validatorFactoryBean,
-                                                                           validatorFactoryClass,
-                                                                           beanManager.createCreationalContext(validatorFactoryBean)));
-                                 }
-                               }
-                               return
-                                 persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo,
-                                                                                         properties);
-                             });
+  private static final Object invokeDelegate(final Object delegate, final Method method, final Object[] arguments)
+    throws Throwable {
+    try {
+      return method.invoke(delegate, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
     }
-    return returnValue;
   }
 
+
   private static final Bean<?> getValidatorFactoryBean(final BeanManager beanManager,
                                                        final Class<?> validatorFactoryClass) {
     return getValidatorFactoryBean(beanManager, validatorFactoryClass, null);
@@ -477,142 +2610,1038 @@ public final class JpaInjectionServices implements org.jboss.weld.injection.spi.
    */
 
 
-  private static final class EntityManagerFactoryResourceReference implements ResourceReference<EntityManagerFactory> {
+  private final class EntityManagerFactoryResourceReference implements ResourceReference<EntityManagerFactory> {
 
-    private final Map<String, EntityManagerFactory> emfs;
+    private final PersistenceUnitMetadata metadata;
 
-    private final String name;
+    // See EntityManagerResourceReference#lock.
+    private final Lock lock;
 
-    private final PersistenceUnitInfo persistenceUnitInfo;
+    // The EntityManagerFactoryHandle on which this reference holds a
+    // lease for as long as application code may be using its
+    // EntityManagerFactory.  Written only while holding this.lock.
+    private volatile EntityManagerFactoryHandle handle;
 
-    private EntityManagerFactoryResourceReference(final Map<String, EntityManagerFactory> emfs,
-                                                  final String name) {
+    private EntityManagerFactoryResourceReference(final PersistenceUnitMetadata metadata) {
       super();
-      this.emfs = Objects.requireNonNull(emfs);
-      this.name = Objects.requireNonNull(name);
-      this.persistenceUnitInfo = getPersistenceUnitInfo(name);
-      assert this.persistenceUnitInfo != null;
+      this.metadata = Objects.requireNonNull(metadata);
+      this.lock = new ReentrantLock();
     }
 
     @Override
     public final EntityManagerFactory getInstance() {
-      final EntityManagerFactory returnValue;
-      if (RESOURCE_LOCAL.equals(persistenceUnitInfo.getTransactionType())) {
-        returnValue = getOrCreateEntityManagerFactory(emfs, null, this.name);
-      } else {
-        returnValue = getOrCreateEntityManagerFactory(emfs, this.persistenceUnitInfo, this.name);
+      EntityManagerFactoryHandle returnValue = this.handle;
+      if (returnValue == null) {
+        final EntityManagerFactoryHandle handle = acquireOrCreateEntityManagerFactory(this.metadata);
+        this.lock.lock();
+        try {
+          returnValue = this.handle;
+          if (returnValue == null) {
+            returnValue = handle;
+            this.handle = handle;
+          }
+        } finally {
+          this.lock.unlock();
+        }
+        if (returnValue != handle) {
+          releaseEntityManagerFactory(this.metadata, handle);
+        }
       }
-      return returnValue;
+      return returnValue.get();
     }
 
     @Override
     public final void release() {
-      final EntityManagerFactory emf = this.emfs.remove(this.name);
-      if (emf != null && emf.isOpen()) {
-        emf.close();
+      final EntityManagerFactoryHandle handle;
+      this.lock.lock();
+      try {
+        handle = this.handle;
+        this.handle = null;
+      } finally {
+        this.lock.unlock();
+      }
+      // Releasing a reference to an EntityManagerFactory retires it.
+      // It is closed as soon as no EntityManagers created from it by
+      // this class remain live.
+      retire(this.metadata, JpaInjectionServices.this.emfs.remove(this.metadata.getName()));
+      if (handle != null) {
+        releaseEntityManagerFactory(this.metadata, handle);
       }
     }
   }
 
   private final class EntityManagerResourceReference implements ResourceReference<EntityManager> {
 
-    private final String name;
+    private final PersistenceUnitMetadata metadata;
 
     private final SynchronizationType synchronizationType;
 
-    private final PersistenceUnitInfo persistenceUnitInfo;
+    // Guards creation and release of this.em.  A Lock rather than a
+    // monitor is used so that a virtual thread blocked here does not
+    // pin its carrier thread.
+    private final Lock lock;
 
-    // @GuardedBy("this")
-    private EntityManager em;
+    // Written only while holding this.lock; read without it on the
+    // fast path of getInstance().
+    private volatile EntityManager em;
+
+    // The token under which this.em is registered with
+    // JpaInjectionServices.this.ems.
+    // @GuardedBy("lock")
+    private EntityManagerRegistry.Registration registration;
 
-    private final Future<EntityManagerFactory> emfFuture;
+    // The EntityManagerFactoryHandle for the EntityManagerFactory
+    // that created this.em, on which a lease is held for as long as
+    // this.em is live.
+    // @GuardedBy("lock")
+    private EntityManagerFactoryHandle handle;
 
-    private final Supplier<EntityManager> emSupplier;
+    // The flush mode this.em had when it was acquired; used only to
+    // return a RESOURCE_LOCAL EntityManager to its persistence unit's
+    // EntityManagerPool.
 
-    private EntityManagerResourceReference(final String name,
-                                           final SynchronizationType synchronizationType) {
+    // @GuardedBy("lock")
+    private FlushModeType flushMode;
+
+    private final Map<String, ?> properties;
+
+    private final boolean readOnly;
+
+    private final int flushInterval;
+
+    private final int streamFetchSize;
+
+    // A description of the injection point, reported if this.em leaks.
+    private final String origin;
+
+    private final Function<? super EntityManagerFactory, ? extends EntityManager> emFunction;
+
+    private EntityManagerResourceReference(final PersistenceUnitMetadata metadata,
+                                           final SynchronizationType synchronizationType,
+                                           final Map<String, ?> properties,
+                                           final boolean readOnly,
+                                           final int flushInterval,
+                                           final int streamFetchSize,
+                                           final String origin) {
       super();
-      this.name = Objects.requireNonNull(name);
+      this.metadata = Objects.requireNonNull(metadata);
       this.synchronizationType = Objects.requireNonNull(synchronizationType);
-      this.persistenceUnitInfo = getPersistenceUnitInfo(name);
-      assert this.persistenceUnitInfo != null;
-      final ExecutorService taskExecutorService = ((WeldManager)CDI.current().getBeanManager()).getServices().get(ExecutorServices.class).getTaskExecutor();
-      assert taskExecutorService != null;
-      if (this.isResourceLocal()) {
-        // Kick off the lengthy process of setting up an
-        // EntityManagerFactory in the background with the optimistic
-        // assumption, possibly incorrect, that someone will call
-        // getInstance() at some point.
-        this.emfFuture = taskExecutorService.submit(() -> {
-            return getOrCreateEntityManagerFactory(emfs, null, this.name);
-          });
-        this.emSupplier = () -> {
-          try {
-            return emfFuture.get().createEntityManager();
-          } catch (final ExecutionException executionException) {
-            throw new RuntimeException(executionException.getMessage(), executionException);
-          } catch (final InterruptedException interruptedException) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(interruptedException.getMessage(), interruptedException);
-          }
-        };
-      } else {
-        // Kick off the lengthy process of setting up an
-        // EntityManagerFactory in the background with the optimistic
-        // assumption, possibly incorrect, that someone will call
-        // getInstance() at some point.
-        this.emfFuture = taskExecutorService.submit(() -> {
-            return getOrCreateEntityManagerFactory(emfs, this.persistenceUnitInfo, this.name);
-          });
-        this.emSupplier = () -> {
-          try {
-            final EntityManager em = emfFuture.get().createEntityManager(this.synchronizationType);
-            JpaInjectionServices.this.ems.add(em);
-            return em;
-          } catch (final ExecutionException executionException) {
-            throw new RuntimeException(executionException.getMessage(), executionException);
-          } catch (final InterruptedException interruptedException) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(interruptedException.getMessage(), interruptedException);
-          }
-        };
-      }
-
+      this.properties = Objects.requireNonNull(properties);
+      this.readOnly = readOnly;
+      this.flushInterval = flushInterval;
+      this.streamFetchSize = streamFetchSize;
+      this.origin = origin;
+      this.lock = new ReentrantLock();
+      // Start creating the EntityManagerFactory in the background, if
+      // necessary, so it is likely to be ready by the time
+      // getInstance() is called.
+      getEntityManagerFactoryFuture(metadata);
+      final boolean resourceLocal = this.isResourceLocal();
+      this.emFunction = emf -> createEntityManager(emf,
+                                                   metadata.getName(),
+                                                   resourceLocal,
+                                                   synchronizationType,
+                                                   properties,
+                                                   readOnly,
+                                                   flushInterval,
+                                                   streamFetchSize);
+    }
 
+    /**
+     * Returns {@code true} if an {@link EntityManager} released by
+     * this {@link EntityManagerResourceReference} may be reused by
+     * another one.
+     *
+     * <p>Only {@code RESOURCE_LOCAL} {@link EntityManager}s created
+     * without any properties, and that are not read-only,
+     * bulk-ingestion or streaming {@link EntityManager}s, are
+     * interchangeable.</p>
+     *
+     * @return {@code true} if this {@link
+     * EntityManagerResourceReference} may use its persistence unit's
+     * {@link EntityManagerPool}
+     */
+    private final boolean isPoolable() {
+      return this.isResourceLocal() && !this.readOnly && this.flushInterval <= 0 && this.streamFetchSize <= 0 &&
+        this.properties.isEmpty();
     }
 
     private final boolean isResourceLocal() {
-      return RESOURCE_LOCAL.equals(this.persistenceUnitInfo.getTransactionType());
+      return this.metadata.isResourceLocal();
     }
 
+    /**
+     * Returns the {@link EntityManager} this {@link
+     * EntityManagerResourceReference} represents, creating it if
+     * necessary.
+     *
+     * <p>Once the {@link EntityManager} has been created, this method
+     * does not acquire any locks.  Any wait for the {@link
+     * EntityManagerFactory} to be created happens before, not while,
+     * a lock is held.</p>
+     *
+     * @return a non-{@code null} {@link EntityManager}
+     */
     @Override
-    public synchronized final EntityManager getInstance() {
-      if (this.em == null) {
-        this.em = this.emSupplier.get();
+    public final EntityManager getInstance() {
+      EntityManager returnValue = this.em;
+      if (returnValue == null) {
+        final EntityManagerFactoryHandle handle = acquireEntityManagerFactory(this.metadata);
+        final EntityManagerFactory emf = handle.get();
+        assert emf != null;
+        boolean leased = false;
+        this.lock.lock();
+        try {
+          returnValue = this.em;
+          if (returnValue == null) {
+            if (this.isPoolable()) {
+              final EntityManagerPool pool = this.metadata.getEntityManagerPool();
+              if (pool.isEnabled()) {
+                returnValue = pool.poll(emf);
+                if (metrics != null) {
+                  if (returnValue == null) {
+                    metrics.entityManagerPoolMiss(this.metadata.getName());
+                  } else {
+                    metrics.entityManagerPoolHit(this.metadata.getName());
+                  }
+                }
+              }
+              if (returnValue == null) {
+                returnValue = this.emFunction.apply(emf);
+              }
+              this.flushMode = returnValue.getFlushMode();
+            } else {
+              returnValue = this.emFunction.apply(emf);
+              if (!this.isResourceLocal() && !this.readOnly) {
+                if (SynchronizationType.SYNCHRONIZED.equals(this.synchronizationType)) {
+                  returnValue =
+                    EnlistingEntityManagerHandler.newProxy(returnValue,
+                                                           this.metadata.getName(),
+                                                           JpaInjectionServices.this::getTransactionSynchronizationRegistry,
+                                                           metrics);
+                }
+              }
+            }
+            // Every EntityManager created here, whether JTA or
+            // RESOURCE_LOCAL, read-only or pooled, holds a lease on
+            // the EntityManagerFactory, and so is tracked in case it
+            // leaks.
+            this.registration =
+              JpaInjectionServices.this.ems.register(returnValue,
+                                                     this.origin,
+                                                     newLeakAction(this.metadata, handle, this.origin));
+            if (metrics != null) {
+              metrics.entityManagerAcquired(this.metadata.getName());
+            }
+            this.handle = handle;
+            leased = true;
+            this.em = returnValue;
+          }
+        } finally {
+          this.lock.unlock();
+          if (!leased) {
+            // Either another thread got here first or creation
+            // failed; either way, we don't need our lease.
+            releaseEntityManagerFactory(this.metadata, handle);
+          }
+        }
       }
-      return this.em;
+      return returnValue;
     }
 
     @Override
     public final void release() {
       final EntityManager em;
-      synchronized (this) {
+      final EntityManagerRegistry.Registration registration;
+      final EntityManagerFactoryHandle handle;
+      final FlushModeType flushMode;
+      this.lock.lock();
+      try {
         em = this.em;
         this.em = null;
+        registration = this.registration;
+        this.registration = null;
+        handle = this.handle;
+        this.handle = null;
+        flushMode = this.flushMode;
+        this.flushMode = null;
+      } finally {
+        this.lock.unlock();
       }
       if (em != null) {
-        if (em.isOpen() && this.isResourceLocal()) {
+        assert handle != null;
+        assert registration != null;
+        // Unregistered before it may go back to the pool, where
+        // another EntityManagerResourceReference may take it.
+        JpaInjectionServices.this.ems.unregister(registration);
+        if (em.isOpen() && this.isResourceLocal() &&
+            (!this.isPoolable() || handle.isRetired() || !this.metadata.getEntityManagerPool().offer(handle.get(), em, flushMode))) {
           // Note that according to the javadocs on
           // EntityManager#close(), you're never supposed to call
           // EntityManager#close() on a container-managed
           // EntityManager; hence the isResourceLocal() check here.
           em.close();
         }
-        JpaInjectionServices.this.ems.remove(em);
+        if (metrics != null) {
+          metrics.entityManagerReleased(this.metadata.getName());
+        }
+        // Note that the EntityManagerFactory is deliberately not
+        // closed here, since it is shared by every reference to the
+        // same persistence unit, but it may be if it has been retired
+        // or is eligible for eviction.
+        releaseEntityManagerFactory(this.metadata, handle);
+      }
+    }
+
+  }
+
+  /**
+   * A {@link ResourceReference} whose {@link #getInstance()} method
+   * returns a proxy {@link EntityManager} that delegates to one
+   * {@link EntityManager} per active JTA transaction per persistence
+   * unit, {@link SynchronizationType} and set of properties.
+   *
+   * <p>Every {@link TransactionScopedEntityManagerResourceReference}
+   * with the same persistence unit name, {@link SynchronizationType},
+   * properties, read-only setting, flush interval and stream fetch
+   * size shares the {@link EntityManager} bound to a
+   * given JTA transaction, and hence its persistence context.  That
+   * {@link EntityManager} is closed when the transaction
+   * completes.</p>
+   *
+   * <p>When there is no active JTA transaction, each invocation is
+   * handled by a new {@link EntityManager} that is closed as soon as
+   * the invocation returns, so no persistence context is ever shared
+   * between threads, and entities returned are already detached, as
+   * the JPA specification requires of a transaction-scoped
+   * persistence context used outside a transaction.  Calls that would
+   * write to that short-lived persistence context, such as {@link
+   * EntityManager#persist(Object)}, throw a {@link
+   * TransactionRequiredException} instead, again as the JPA
+   * specification requires.  So do {@link
+   * EntityManager#getDelegate()} and {@link
+   * EntityManager#unwrap(Class)}, since what they return would outlive
+   * the {@link EntityManager} behind it.</p>
+   *
+   * <p>A {@link Query} created outside a transaction keeps its {@link
+   * EntityManager} open until it is executed, or, if its results are
+   * {@linkplain Query#getResultStream() streamed}, until the {@link
+   * Stream} is closed.  An {@link EntityManager} behind a query that
+   * is never executed is closed when this {@link
+   * TransactionScopedEntityManagerResourceReference} is {@linkplain
+   * #release() released}.  If the query becomes unreachable first,
+   * the {@link EntityManager} is treated as {@linkplain
+   * EntityManagerRegistry leaked}, and the lease it holds on its
+   * {@link EntityManagerFactory} is released then.</p>
+   */
+  private final class TransactionScopedEntityManagerResourceReference implements ResourceReference<EntityManager> {
+
+    private final PersistenceUnitMetadata metadata;
+
+    private final SynchronizationType synchronizationType;
+
+    private final Map<String, ?> properties;
+
+    private final boolean readOnly;
+
+    private final int flushInterval;
+
+    private final int streamFetchSize;
+
+    private final TransactionScopedKey key;
+
+    private final EntityManager proxy;
+
+    // A description of the injection point, reported if a
+    // non-transactional EntityManager leaks.
+    private final String origin;
+
+    // The leases held by non-transactional EntityManagers that have
+    // not yet been closed; see invokeNonTransactionally(Method,
+    // Object[]).
+    private final Set<NonTransactionalLease> outstanding;
+
+    private TransactionScopedEntityManagerResourceReference(final PersistenceUnitMetadata metadata,
+                                                            final SynchronizationType synchronizationType,
+                                                            final Map<String, ?> properties,
+                                                            final boolean readOnly,
+                                                            final int flushInterval,
+                                                            final int streamFetchSize,
+                                                            final String origin) {
+      super();
+      this.metadata = Objects.requireNonNull(metadata);
+      this.synchronizationType = Objects.requireNonNull(synchronizationType);
+      this.properties = Objects.requireNonNull(properties);
+      this.readOnly = readOnly;
+      this.flushInterval = flushInterval;
+      this.streamFetchSize = streamFetchSize;
+      this.key = new TransactionScopedKey(JpaInjectionServices.this,
+                                          metadata.getName(),
+                                          synchronizationType,
+                                          properties,
+                                          readOnly,
+                                          flushInterval,
+                                          streamFetchSize);
+      this.origin = origin;
+      this.outstanding = ConcurrentHashMap.newKeySet();
+      // See EntityManagerResourceReference's constructor.
+      getEntityManagerFactoryFuture(metadata);
+      this.proxy = (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                         new Class<?>[] { EntityManager.class },
+                                                         this::invoke);
+    }
+
+    @Override
+    public final EntityManager getInstance() {
+      return this.proxy;
+    }
+
+    @Override
+    public final void release() {
+      // Non-transactional EntityManagers are never handed out
+      // directly (the proxy refuses close() calls), so we, as the
+      // container, are responsible for closing any that are still
+      // open.
+      for (final NonTransactionalLease lease : this.outstanding) {
+        lease.close();
+      }
+    }
+
+    private final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+      final Object returnValue;
+      switch (method.getName()) {
+      case "equals":
+        returnValue = proxy == arguments[0];
+        break;
+      case "hashCode":
+        returnValue = System.identityHashCode(proxy);
+        break;
+      case "toString":
+        returnValue = "Transaction-scoped EntityManager proxy for persistence unit " + this.metadata.getName();
+        break;
+      case "close":
+        throw new IllegalStateException("close() called on a container-managed EntityManager");
+      default:
+        final TransactionSynchronizationRegistry tsr = getTransactionSynchronizationRegistry();
+        if (tsr != null && isActive(tsr.getTransactionStatus())) {
+          returnValue = invokeDelegate(this.getDelegate(tsr), method, arguments);
+        } else {
+          returnValue = this.invokeNonTransactionally(method, arguments);
+        }
+        break;
+      }
+      return returnValue;
+    }
+
+    /**
+     * Invokes the supplied {@link Method} on a new {@link
+     * EntityManager} that is closed when the invocation returns,
+     * unless what it returns still needs it.
+     *
+     * @exception TransactionRequiredException if the {@link Method}
+     * writes to, or otherwise requires, a persistence context, which
+     * the JPA specification forbids for a transaction-scoped
+     * persistence context outside a transaction
+     */
+    private final Object invokeNonTransactionally(final Method method, final Object[] arguments) throws Throwable {
+      switch (method.getName()) {
+      case "persist":
+      case "merge":
+      case "remove":
+      case "refresh":
+      case "flush":
+      case "lock":
+      case "joinTransaction":
+        // Whatever the new EntityManager did would be discarded when
+        // it was closed on return.
+        throw new TransactionRequiredException(method.getName() + "() called on a transaction-scoped EntityManager " +
+                                               "for persistence unit " + this.metadata.getName() +
+                                               " outside a JTA transaction");
+      case "getDelegate":
+      case "unwrap":
+        // What these return could go on being used after the new
+        // EntityManager was closed, and nothing would tell us when it
+        // was no longer needed.
+        throw new TransactionRequiredException(method.getName() + "() called on a transaction-scoped EntityManager " +
+                                               "for persistence unit " + this.metadata.getName() +
+                                               " outside a JTA transaction");
+      default:
+        break;
+      }
+      final EntityManagerFactoryHandle handle = acquireEntityManagerFactory(this.metadata);
+      final EntityManager em;
+      try {
+        em = this.createEntityManager(handle.get());
+      } catch (final RuntimeException | Error throwable) {
+        releaseEntityManagerFactory(this.metadata, handle);
+        throw throwable;
+      }
+      final NonTransactionalLease lease;
+      try {
+        lease = new NonTransactionalLease(em, handle);
+      } catch (final RuntimeException | Error throwable) {
+        this.close(em, handle);
+        throw throwable;
+      }
+      boolean close = true;
+      try {
+        final Object returnValue = invokeDelegate(em, method, arguments);
+        if (returnValue instanceof Query) {
+          close = false;
+          return this.newQueryProxy(lease, (Query)returnValue, method.getReturnType());
+        }
+        return returnValue;
+      } finally {
+        if (close) {
+          lease.close();
+        }
+      }
+    }
+
+    /**
+     * Returns a proxy for the supplied {@link Query} that closes the
+     * non-transactional {@link EntityManager} that created it, by way
+     * of the supplied {@link NonTransactionalLease}, once the query has
+     * been executed.
+     *
+     * <p>The proxy refers to that {@link EntityManager} only through
+     * the {@link Query}, so that if the proxy becomes unreachable, so
+     * may the {@link EntityManager}.</p>
+     */
+    private final Object newQueryProxy(final NonTransactionalLease lease, final Query query, final Class<?> queryInterface) {
+      return Proxy.newProxyInstance(queryInterface.getClassLoader(),
+                                    new Class<?>[] { queryInterface },
+                                    (proxy, method, arguments) -> {
+          switch (method.getName()) {
+          case "equals":
+            return proxy == arguments[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "toString":
+            return "Non-transactional query proxy for " + query;
+          case "getResultList":
+          case "getSingleResult":
+          case "executeUpdate":
+            try {
+              return invokeDelegate(query, method, arguments);
+            } finally {
+              lease.close();
+            }
+          case "getResultStream":
+            boolean streaming = false;
+            try {
+              final Stream<?> stream = (Stream<?>)invokeDelegate(query, method, arguments);
+              streaming = true;
+              return stream.onClose(lease::close);
+            } finally {
+              if (!streaming) {
+                lease.close();
+              }
+            }
+          default:
+            final Object returnValue = invokeDelegate(query, method, arguments);
+            // Keep fluent calls such as setParameter() on the proxy.
+            return returnValue == query ? proxy : returnValue;
+          }
+        });
+    }
+
+    private final EntityManager getDelegate(final TransactionSynchronizationRegistry tsr) {
+      final EntityManager returnValue;
+      final EntityManager em = (EntityManager)tsr.getResource(this.key);
+      if (em == null) {
+        final EntityManagerFactoryHandle handle = acquireEntityManagerFactory(this.metadata);
+        try {
+          returnValue = this.createEntityManager(handle.get());
+        } catch (final RuntimeException | Error throwable) {
+          releaseEntityManagerFactory(this.metadata, handle);
+          throw throwable;
+        }
+        // Until the Synchronization that closes it is registered,
+        // nothing else will close returnValue or release its lease.
+        // Registration fails if, for example, the transaction is
+        // already completing, in which case returnValue must not be
+        // made visible to anyone else either.
+        try {
+          if (!this.readOnly && SynchronizationType.SYNCHRONIZED.equals(this.synchronizationType)) {
+            returnValue.joinTransaction();
+          }
+          tsr.registerInterposedSynchronization(new Synchronization() {
+              @Override
+              public final void beforeCompletion() {
+
+              }
+
+              @Override
+              public final void afterCompletion(final int status) {
+                close(returnValue, handle);
+              }
+            });
+        } catch (final RuntimeException | Error throwable) {
+          this.close(returnValue, handle);
+          throw throwable;
+        }
+        tsr.putResource(this.key, returnValue);
+      } else {
+        returnValue = em;
+      }
+      return returnValue;
+    }
+
+    private final EntityManager createEntityManager(final EntityManagerFactory emf) {
+      final EntityManager returnValue =
+        JpaInjectionServices.this.createEntityManager(emf,
+                                                      this.metadata.getName(),
+                                                      false,
+                                                      this.synchronizationType,
+                                                      this.properties,
+                                                      this.readOnly,
+                                                      this.flushInterval,
+                                                      this.streamFetchSize);
+      if (metrics != null) {
+        metrics.entityManagerAcquired(this.metadata.getName());
+      }
+      return returnValue;
+    }
+
+    private final void close(final EntityManager em, final EntityManagerFactoryHandle handle) {
+      try {
+        if (em != null && em.isOpen()) {
+          em.close();
+        }
+        if (metrics != null) {
+          metrics.entityManagerReleased(this.metadata.getName());
+        }
+      } finally {
+        releaseEntityManagerFactory(this.metadata, handle);
+      }
+    }
+
+    /**
+     * The lease on an {@link EntityManagerFactoryHandle} held by a
+     * non-transactional {@link EntityManager} that outlived the
+     * invocation that created it, which is also the action run by
+     * the {@link EntityManagerRegistry} if that {@link EntityManager}
+     * leaks.
+     *
+     * <p>Whichever of {@link #close()} and {@link #run()} is called
+     * first releases the lease; the other then does nothing.</p>
+     */
+    private final class NonTransactionalLease implements Runnable {
+
+      private final EntityManagerFactoryHandle handle;
+
+      private final AtomicBoolean released;
+
+      private final EntityManagerRegistry.Registration registration;
+
+      private NonTransactionalLease(final EntityManager em, final EntityManagerFactoryHandle handle) {
+        super();
+        this.handle = Objects.requireNonNull(handle);
+        this.released = new AtomicBoolean();
+        this.registration = JpaInjectionServices.this.ems.register(em, origin, this);
+        outstanding.add(this);
+      }
+
+      /**
+       * Closes the {@link EntityManager} holding this lease, if it is
+       * still reachable, and releases this lease.
+       */
+      private final void close() {
+        if (this.released.compareAndSet(false, true)) {
+          outstanding.remove(this);
+          final EntityManager em = this.registration.get();
+          JpaInjectionServices.this.ems.unregister(this.registration);
+          TransactionScopedEntityManagerResourceReference.this.close(em, this.handle);
+        }
+      }
+
+      /**
+       * Releases this lease on behalf of an {@link EntityManager} that
+       * has leaked.
+       */
+      @Override
+      public final void run() {
+        if (this.released.compareAndSet(false, true)) {
+          outstanding.remove(this);
+          final JpaInjectionServicesMetrics metrics = JpaInjectionServices.this.metrics;
+          if (metrics != null) {
+            metrics.entityManagerLeaked(metadata.getName(), origin);
+          }
+          releaseEntityManagerFactory(metadata, this.handle);
+        }
+      }
+
+    }
+
+  }
+
+  /**
+   * The key under which a {@link
+   * TransactionScopedEntityManagerResourceReference} stores its
+   * shared {@link EntityManager} in a {@link
+   * TransactionSynchronizationRegistry}.
+   */
+  private static final class TransactionScopedKey {
+
+    private final JpaInjectionServices services;
+
+    private final String name;
+
+    private final SynchronizationType synchronizationType;
+
+    private final Map<String, ?> properties;
+
+    private final boolean readOnly;
+
+    private final int flushInterval;
+
+    private final int streamFetchSize;
+
+    private TransactionScopedKey(final JpaInjectionServices services,
+                                 final String name,
+                                 final SynchronizationType synchronizationType,
+                                 final Map<String, ?> properties,
+                                 final boolean readOnly,
+                                 final int flushInterval,
+                                 final int streamFetchSize) {
+      super();
+      this.services = Objects.requireNonNull(services);
+      this.name = Objects.requireNonNull(name);
+      this.synchronizationType = Objects.requireNonNull(synchronizationType);
+      this.properties = Objects.requireNonNull(properties);
+      this.readOnly = readOnly;
+      this.flushInterval = flushInterval;
+      this.streamFetchSize = streamFetchSize;
+    }
+
+    @Override
+    public final int hashCode() {
+      return Objects.hash(System.identityHashCode(this.services),
+                          this.name,
+                          this.synchronizationType,
+                          this.properties,
+                          this.readOnly,
+                          this.flushInterval,
+                          this.streamFetchSize);
+    }
+
+    @Override
+    public final boolean equals(final Object other) {
+      if (other == this) {
+        return true;
+      } else if (other instanceof TransactionScopedKey) {
+        final TransactionScopedKey her = (TransactionScopedKey)other;
+        return
+          this.services == her.services &&
+          this.name.equals(her.name) &&
+          this.synchronizationType.equals(her.synchronizationType) &&
+          this.properties.equals(her.properties) &&
+          this.readOnly == her.readOnly &&
+          this.flushInterval == her.flushInterval &&
+          this.streamFetchSize == her.streamFetchSize;
+      } else {
+        return false;
+      }
+    }
+
+  }
+
+  /**
+   * An idle {@link EntityManagerFactoryHandle} that {@link
+   * #evictEntityManagerFactories(boolean)} may close, together with
+   * the time at which it became idle, captured once so that
+   * candidates can be sorted consistently.
+   */
+  private static final class EvictionCandidate {
+
+    private final PersistenceUnitMetadata metadata;
+
+    private final CompletableFuture<EntityManagerFactoryHandle> future;
+
+    private final EntityManagerFactoryHandle handle;
+
+    private final long idleSince;
+
+    private EvictionCandidate(final PersistenceUnitMetadata metadata,
+                              final CompletableFuture<EntityManagerFactoryHandle> future,
+                              final EntityManagerFactoryHandle handle) {
+      super();
+      this.metadata = metadata;
+      this.future = future;
+      this.handle = handle;
+      this.idleSince = handle.getIdleSince();
+    }
+
+  }
+
+  /**
+   * A cache of the results of resolving the {@link
+   * PersistenceUnitInfo} and {@link PersistenceProvider} for a named
+   * persistence unit, so that CDI lookups and reflection are
+   * performed at most once per persistence unit rather than once per
+   * resource creation.
+   *
+   * <p>Resolution is deferred until first use, because Weld registers
+   * injection points before CDI lookups are permitted.</p>
+   *
+   * <p>A {@link PersistenceUnitMetadata} also remembers the most
+   * recent failure to create its persistence unit's {@link
+   * EntityManagerFactory}, so that repeated attempts can be spaced
+   * out.</p>
+   */
+  private static final class PersistenceUnitMetadata {
+
+    private final String name;
+
+    // Supplies the Instance through which the PersistenceUnitInfo and
+    // PersistenceProvider are looked up; see
+    // JpaInjectionServices#instance().
+    private final Supplier<? extends Instance<Object>> instanceSupplier;
+
+    private volatile PersistenceUnitInfo persistenceUnitInfo;
+
+    private volatile PersistenceProvider persistenceProvider;
+
+    private volatile EntityManagerPool entityManagerPool;
+
+    // @GuardedBy("this")
+    private int consecutiveFailures;
+
+    // @GuardedBy("this")
+    private Throwable failure;
+
+    // @GuardedBy("this")
+    private long retryAtNanos;
+
+    // @GuardedBy("this")
+    private boolean evicted;
+
+    private PersistenceUnitMetadata(final String name, final Supplier<? extends Instance<Object>> instanceSupplier) {
+      super();
+      this.name = Objects.requireNonNull(name);
+      this.instanceSupplier = Objects.requireNonNull(instanceSupplier);
+    }
+
+    private final String getName() {
+      return this.name;
+    }
+
+    private final PersistenceUnitInfo getPersistenceUnitInfo() {
+      PersistenceUnitInfo returnValue = this.persistenceUnitInfo;
+      if (returnValue == null) {
+        synchronized (this) {
+          returnValue = this.persistenceUnitInfo;
+          if (returnValue == null) {
+            returnValue = JpaInjectionServices.getPersistenceUnitInfo(this.instanceSupplier.get(), this.name);
+            assert returnValue != null;
+            this.persistenceUnitInfo = returnValue;
+          }
+        }
+      }
+      return returnValue;
+    }
+
+    private final void setPersistenceUnitInfo(final PersistenceUnitInfo persistenceUnitInfo) {
+      Objects.requireNonNull(persistenceUnitInfo);
+      synchronized (this) {
+        if (this.persistenceUnitInfo == null) {
+          this.persistenceUnitInfo = persistenceUnitInfo;
+        }
+      }
+    }
+
+    private final boolean isResourceLocal() {
+      return RESOURCE_LOCAL.equals(this.getPersistenceUnitInfo().getTransactionType());
+    }
+
+    private final PersistenceProvider getPersistenceProvider() {
+      PersistenceProvider returnValue = this.persistenceProvider;
+      if (returnValue == null) {
+        synchronized (this) {
+          returnValue = this.persistenceProvider;
+          if (returnValue == null) {
+            returnValue = JpaInjectionServices.getPersistenceProvider(this.instanceSupplier.get(), this.getPersistenceUnitInfo());
+            assert returnValue != null;
+            this.persistenceProvider = returnValue;
+          }
+        }
+      }
+      return returnValue;
+    }
+
+    /**
+     * Returns the {@link EntityManagerPool} for this persistence
+     * unit, creating it if necessary.
+     *
+     * <p>This method never returns {@code null}, but the {@link
+     * EntityManagerPool} it returns may be {@linkplain
+     * EntityManagerPool#isEnabled() disabled}.</p>
+     *
+     * @return a non-{@code null} {@link EntityManagerPool}
+     *
+     * @see #ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME
+     */
+    private final EntityManagerPool getEntityManagerPool() {
+      EntityManagerPool returnValue = this.entityManagerPool;
+      if (returnValue == null) {
+        final long maximumSize = this.getLongProperty(ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME, 0L);
+        final long idleTimeout = this.getLongProperty(ENTITY_MANAGER_POOL_IDLE_TIMEOUT_PROPERTY_NAME, 60000L);
+        synchronized (this) {
+          returnValue = this.entityManagerPool;
+          if (returnValue == null) {
+            returnValue = new EntityManagerPool((int)Math.min(Integer.MAX_VALUE, maximumSize),
+                                                idleTimeout,
+                                                TimeUnit.MILLISECONDS);
+            this.entityManagerPool = returnValue;
+          }
+        }
+      }
+      return returnValue;
+    }
+
+    private final void clearEntityManagerPool() {
+      final EntityManagerPool entityManagerPool = this.entityManagerPool;
+      if (entityManagerPool != null) {
+        entityManagerPool.clear();
+      }
+    }
+
+    private final void clearEntityManagerPool(final EntityManagerFactory emf) {
+      final EntityManagerPool entityManagerPool = this.entityManagerPool;
+      if (entityManagerPool != null) {
+        entityManagerPool.clear(emf);
+      }
+    }
+
+    /**
+     * Returns the value of the named property as set on this
+     * persistence unit's {@link PersistenceUnitInfo}, or, if it is not
+     * set there, as a {@linkplain System#getProperty(String) system
+     * property}.
+     *
+     * <p>If the {@link PersistenceUnitInfo} cannot be resolved, only
+     * system properties are consulted, so this method is safe to call
+     * while handling a failure.</p>
+     *
+     * @param propertyName the name of the property; must not be
+     * {@code null}
+     *
+     * @return the value of the property, or {@code null}
+     */
+    private final String getProperty(final String propertyName) {
+      Objects.requireNonNull(propertyName);
+      String returnValue = null;
+      PersistenceUnitInfo persistenceUnitInfo;
+      try {
+        persistenceUnitInfo = this.getPersistenceUnitInfo();
+      } catch (final RuntimeException resolutionFailure) {
+        persistenceUnitInfo = null;
+      }
+      if (persistenceUnitInfo != null) {
+        final Properties properties = persistenceUnitInfo.getProperties();
+        if (properties != null) {
+          returnValue = properties.getProperty(propertyName);
+        }
+      }
+      if (returnValue == null) {
+        returnValue = System.getProperty(propertyName);
+      }
+      return returnValue;
+    }
+
+    private final long getLongProperty(final String propertyName, final long defaultValue) {
+      final String value = this.getProperty(propertyName);
+      if (value != null) {
+        try {
+          return Long.parseLong(value.trim());
+        } catch (final NumberFormatException numberFormatException) {
+
+        }
+      }
+      return defaultValue;
+    }
+
+    /**
+     * Records a failure to create this persistence unit's {@link
+     * EntityManagerFactory} and computes when the next attempt may be
+     * made.
+     *
+     * @param failure the failure; must not be {@code null}
+     *
+     * @see #getRecentFailure()
+     */
+    private final void recordFailure(final Throwable failure) {
+      Objects.requireNonNull(failure);
+      final long initialBackoff = Math.max(0L, this.getLongProperty(ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME, 1000L));
+      final long maximumBackoff = Math.max(initialBackoff, this.getLongProperty(ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_MAX_PROPERTY_NAME, 60000L));
+      synchronized (this) {
+        this.consecutiveFailures++;
+        this.failure = failure;
+        long backoff = initialBackoff;
+        for (int i = 1; i < this.consecutiveFailures && backoff > 0L && backoff < maximumBackoff; i++) {
+          backoff = backoff > maximumBackoff / 2L ? maximumBackoff : backoff * 2L;
+        }
+        this.retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
       }
-      if (!this.emfFuture.isDone()) {
-        this.emfFuture.cancel(true);
+    }
+
+    private synchronized final void recordSuccess() {
+      this.consecutiveFailures = 0;
+      this.failure = null;
+    }
+
+    private synchronized final void recordEviction() {
+      this.evicted = true;
+    }
+
+    /**
+     * Returns {@code true} if this persistence unit's {@link
+     * EntityManagerFactory} has been evicted since the last time this
+     * method was called, in which case the {@link
+     * EntityManagerFactory} that has just been created replaces it.
+     *
+     * @return {@code true} if an {@link EntityManagerFactory} has just
+     * been rebuilt
+     *
+     * @see #recordEviction()
+     */
+    private synchronized final boolean recordRebuild() {
+      final boolean returnValue = this.evicted;
+      this.evicted = false;
+      return returnValue;
+    }
+
+    /**
+     * Returns a new {@link EntityManagerFactoryUnavailableException}
+     * describing the most recent failure to create this persistence
+     * unit's {@link EntityManagerFactory} if another attempt may not
+     * yet be made, or {@code null} if it may.
+     *
+     * @return an {@link EntityManagerFactoryUnavailableException}, or
+     * {@code null}
+     *
+     * @see #recordFailure(Throwable)
+     */
+    private synchronized final EntityManagerFactoryUnavailableException getRecentFailure() {
+      final EntityManagerFactoryUnavailableException returnValue;
+      if (this.failure == null) {
+        returnValue = null;
+      } else {
+        final long remainingNanos = this.retryAtNanos - System.nanoTime();
+        if (remainingNanos > 0L) {
+          returnValue =
+            new EntityManagerFactoryUnavailableException(this.name,
+                                                         "Creation of the EntityManagerFactory for persistence unit " +
+                                                         this.name + " has failed " + this.consecutiveFailures +
+                                                         " consecutive time(s); it will not be retried for another " +
+                                                         TimeUnit.NANOSECONDS.toMillis(remainingNanos) + " ms",
+                                                         this.failure);
+        } else {
+          returnValue = null;
+        }
       }
+      return returnValue;
     }
 
   }
@@ -16,26 +16,91 @@
  */
 package org.microbean.jpa.weld;
 
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.enterprise.event.Observes;
 
+import javax.enterprise.inject.literal.NamedLiteral;
+
 import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.BeforeBeanDiscovery;
+import javax.enterprise.inject.spi.DeploymentException;
 import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ProcessManagedBean;
 
 import javax.inject.Singleton;
 
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.jboss.weld.manager.api.WeldManager;
+
+import org.microbean.development.annotation.Issue;
+
 /**
- * An {@link Extension} that exists solely to make the {@link
- * JpaInjectionServices} class become a bean in {@link Singleton}
- * scope.
+ * An {@link Extension} that makes the {@link JpaInjectionServices}
+ * and {@link PersistenceUnitExecutor} classes become beans in {@link
+ * Singleton} scope, and that validates
+ * the persistence unit names recorded in any {@link
+ * PersistenceInjectionPointIndex} instances on the class path and the
+ * configured {@link java.util.concurrent.Executor} on which {@link
+ * javax.persistence.EntityManagerFactory} instances are created.
  *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
  * @see JpaInjectionServices
+ *
+ * @see PersistenceInjectionPointIndex
  */
 final class JpaInjectionServicesExtension implements Extension {
 
 
+  /*
+   * Static fields.
+   */
+
+
+  private static final Logger logger = Logger.getLogger(JpaInjectionServicesExtension.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  // The entries of every PersistenceInjectionPointIndex on the class
+  // path, read before bean discovery.
+  private volatile Collection<PersistenceInjectionPointIndex.Entry> indexEntries;
+
+  // The names of the classes declaring those entries' injection
+  // points.
+  private volatile Set<String> indexedClassNames;
+
+  // The names of the indexed classes that turned out to be, or to be
+  // superclasses of, managed beans.
+  private final Set<String> beanClassNames;
+
+  // Why the index could not be read, if it could not.
+  private volatile Exception indexProblem;
+
+  private volatile Set<String> indexedPersistenceUnitNames;
+
+
   /*
    * Constructors.
    */
@@ -50,6 +115,10 @@ final class JpaInjectionServicesExtension implements Extension {
    */
   private JpaInjectionServicesExtension() {
     super();
+    this.indexEntries = Collections.emptySet();
+    this.indexedClassNames = Collections.emptySet();
+    this.beanClassNames = ConcurrentHashMap.newKeySet();
+    this.indexedPersistenceUnitNames = Collections.emptySet();
   }
 
 
@@ -58,31 +127,218 @@ final class JpaInjectionServicesExtension implements Extension {
    */
   
 
+  /**
+   * Reads every {@link PersistenceInjectionPointIndex} on the class
+   * path, if so configured, before bean discovery begins.
+   *
+   * <p>A malformed index is reported as a definition error once the
+   * {@link AfterBeanDiscovery} event is fired, since the {@link
+   * BeforeBeanDiscovery} event offers no way to report one.</p>
+   *
+   * @param event the {@link BeforeBeanDiscovery} event; may be {@code
+   * null} in which case no action will be taken
+   *
+   * @see JpaInjectionServices#PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME
+   */
+  private final void readPersistenceInjectionPointIndex(@Observes final BeforeBeanDiscovery event) {
+    if (event != null &&
+        Boolean.parseBoolean(System.getProperty(JpaInjectionServices.PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME, "true"))) {
+      final List<PersistenceInjectionPointIndex.Entry> entries = new ArrayList<>();
+      try {
+        for (final PersistenceInjectionPointIndex.Entry entry :
+               PersistenceInjectionPointIndex.read(Thread.currentThread().getContextClassLoader())) {
+          entries.add(entry);
+        }
+      } catch (final IOException | IllegalArgumentException exception) {
+        this.indexProblem = exception;
+        return;
+      }
+      final Set<String> classNames = new HashSet<>();
+      for (final PersistenceInjectionPointIndex.Entry entry : entries) {
+        classNames.add(entry.getDeclaringClassName());
+      }
+      this.indexEntries = Collections.unmodifiableList(entries);
+      this.indexedClassNames = Collections.unmodifiableSet(classNames);
+    }
+  }
+
+  /**
+   * Notes whether the supplied managed bean's class, or any of its
+   * superclasses, declares an indexed persistence injection point,
+   * so that such an injection point can be told apart from a stale
+   * one.
+   *
+   * @param event the {@link ProcessManagedBean} event; may be {@code
+   * null} in which case no action will be taken
+   *
+   * @see #validatePersistenceUnitNames(AfterDeploymentValidation,
+   * BeanManager)
+   */
+  private final void processManagedBean(@Observes final ProcessManagedBean<?> event) {
+    final Set<String> indexedClassNames = this.indexedClassNames;
+    if (event != null && !indexedClassNames.isEmpty()) {
+      for (Class<?> c = event.getAnnotatedBeanClass().getJavaClass(); c != null; c = c.getSuperclass()) {
+        final String name = c.getName();
+        if (indexedClassNames.contains(name)) {
+          this.beanClassNames.add(name);
+        }
+      }
+    }
+  }
+
   /**
    * Creates a bean deliberately in {@link Singleton} scope to
-   * represent the {@link JpaInjectionServices} class.
+   * represent the {@link JpaInjectionServices} class, and another
+   * representing the {@link PersistenceUnitExecutor} that fronts it.
    *
    * <p>Weld often creates multiple copies of {@link
    * JpaInjectionServices} by virtue of the way it loads its bootstrap
-   * services.  We want to ensure there's just one that can be
-   * injected into observer methods.  See the {@link
-   * TransactionSynchronizationRegistryObserver} class, which houses
-   * one such observer method.</p>
+   * services.  We want to ensure that the one that can be injected
+   * into observer methods is the one this container actually uses,
+   * which is the one registered in its {@linkplain
+   * WeldManager#getServices() service registry}.  See the {@link
+   * TransactionObserver} class, which houses one such observer
+   * method.</p>
+   *
+   * <p>This method also reports, as a definition error, any failure
+   * to read a {@link PersistenceInjectionPointIndex}.</p>
    *
    * @param event the {@link AfterBeanDiscovery} event; may be {@code
    * null} in which case no action will be taken
    *
+   * @param beanManager the {@link BeanManager} in effect; may be
+   * {@code null} in which case no action will be taken
+   *
    * @see JpaInjectionServices
    *
-   * @see TransactionSynchronizationRegistryObserver
+   * @see TransactionObserver
    */
-  private final void afterBeanDiscovery(@Observes final AfterBeanDiscovery event) {
+  @Issue(id = "WELD_2563", uri = "https://issues.jboss.org/browse/WELD-2563")
+  private final void afterBeanDiscovery(@Observes final AfterBeanDiscovery event, final BeanManager beanManager) {
+    final Exception indexProblem = this.indexProblem;
+    if (event != null && indexProblem != null) {
+      event.addDefinitionError(indexProblem);
+    }
+    if (event != null && beanManager instanceof WeldManager) {
+      final org.jboss.weld.injection.spi.JpaInjectionServices registeredServices =
+        ((WeldManager)beanManager).getServices().get(org.jboss.weld.injection.spi.JpaInjectionServices.class);
+      if (registeredServices instanceof JpaInjectionServices) {
+        final JpaInjectionServices services = (JpaInjectionServices)registeredServices;
+        services.setBeanManager(beanManager);
+        event.addBean()
+          .addTransitiveTypeClosure(JpaInjectionServices.class)
+          .scope(Singleton.class)
+          .createWith(ignored -> services);
+        final PersistenceUnitExecutor executor = new PersistenceUnitExecutor(services);
+        event.addBean()
+          .addTransitiveTypeClosure(PersistenceUnitExecutor.class)
+          .scope(Singleton.class)
+          .createWith(ignored -> executor);
+      }
+    }
+  }
+
+  /**
+   * Checks the persistence unit names recorded in the {@link
+   * PersistenceInjectionPointIndex} entries read before bean
+   * discovery against the {@link PersistenceUnitInfo} beans that
+   * exist.
+   *
+   * <p>An injection point declared by a managed bean's class that
+   * names a persistence unit for which there is no {@link
+   * PersistenceUnitInfo} bean is a deployment problem, reported here
+   * rather than when Weld first reaches the injection point.  Any
+   * other such injection point is merely logged as a warning: the
+   * index may be stale, recording injection points that have since
+   * been removed, or may describe classes that are never turned into
+   * beans.</p>
+   *
+   * <p>This cannot happen any earlier, for example as a definition
+   * error during the {@link AfterBeanDiscovery} event, because {@link
+   * PersistenceUnitInfo} beans are typically added by other
+   * extensions during that event, and only become visible once it is
+   * over.</p>
+   *
+   * <p>The names of the persistence units that are found are made
+   * available via the {@link #getIndexedPersistenceUnitNames()}
+   * method, so that their {@link javax.persistence.EntityManagerFactory}
+   * instances can be created as soon as the container has
+   * started.</p>
+   *
+   * @param event the {@link AfterDeploymentValidation} event; may be
+   * {@code null} in which case no action will be taken
+   *
+   * @param beanManager the {@link BeanManager} in effect; may be
+   * {@code null} in which case no action will be taken
+   *
+   * @see JpaInjectionServices#PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME
+   *
+   * @see PersistenceInjectionPointProcessor
+   */
+  private final void validatePersistenceUnitNames(@Observes final AfterDeploymentValidation event,
+                                                  final BeanManager beanManager) {
+    final Collection<PersistenceInjectionPointIndex.Entry> entries = this.indexEntries;
+    if (event != null && beanManager != null && !entries.isEmpty()) {
+      final Set<String> names = new LinkedHashSet<>();
+      for (final PersistenceInjectionPointIndex.Entry entry : entries) {
+        final String unitName = entry.getUnitName();
+        if (names.contains(unitName)) {
+          continue;
+        }
+        if (!beanManager.getBeans(PersistenceUnitInfo.class, NamedLiteral.of(unitName)).isEmpty()) {
+          names.add(unitName);
+        } else if (this.beanClassNames.contains(entry.getDeclaringClassName())) {
+          event.addDeploymentProblem(new DeploymentException("No persistence unit named \"" + unitName + "\" exists for the @" +
+                                                             entry.getAnnotationName() + " injection point " +
+                                                             entry.getDeclaringClassName() + "#" + entry.getMemberName()));
+        } else if (logger.isLoggable(Level.WARNING)) {
+          logger.logp(Level.WARNING,
+                      JpaInjectionServicesExtension.class.getName(),
+                      "validatePersistenceUnitNames",
+                      "No persistence unit named \"{0}\" exists for the @{1} injection point {2}#{3}; ignoring it",
+                      new Object[] { unitName, entry.getAnnotationName(), entry.getDeclaringClassName(), entry.getMemberName() });
+        }
+      }
+      this.indexedPersistenceUnitNames = Collections.unmodifiableSet(names);
+    }
+  }
+
+  /**
+   * Adds a deployment problem if the value of the {@value
+   * JpaInjectionServices#ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME}
+   * system property does not describe an {@link
+   * java.util.concurrent.Executor} that can be created.
+   *
+   * @param event the {@link AfterDeploymentValidation} event; may be
+   * {@code null} in which case no action will be taken
+   *
+   * @see JpaInjectionServices#ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME
+   */
+  private final void validateEntityManagerFactoryExecutor(@Observes final AfterDeploymentValidation event) {
     if (event != null) {
-      event.addBean()
-        .addTransitiveTypeClosure(JpaInjectionServices.class)
-        .scope(Singleton.class)
-        .createWith(ignored -> JpaInjectionServices.INSTANCE);
+      try {
+        JpaInjectionServices.validateEntityManagerFactoryExecutor();
+      } catch (final IllegalStateException illegalStateException) {
+        event.addDeploymentProblem(illegalStateException);
+      }
     }
   }
+
+  /**
+   * Returns the names of the persistence units referenced by the
+   * injection points recorded in {@link PersistenceInjectionPointIndex}
+   * instances on the class path and for which {@link
+   * PersistenceUnitInfo} beans exist.
+   *
+   * <p>This method never returns {@code null}.  The returned {@link
+   * Set} is empty until the {@link AfterDeploymentValidation} event
+   * has been fired.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link Set} of
+   * persistence unit names
+   */
+  final Set<String> getIndexedPersistenceUnitNames() {
+    return this.indexedPersistenceUnitNames;
+  }
   
 }
@@ -0,0 +1,250 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.function.IntSupplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * A service provider interface for receiving measurements of the
+ * work performed by a {@link JpaInjectionServices} instance.
+ *
+ * <p>Implementations are discovered using the {@link
+ * java.util.ServiceLoader} mechanism; the first one found is used.
+ * If there is none, {@link JpaInjectionServices} takes no
+ * measurements at all.  An implementation will typically forward
+ * these measurements to a metrics registry such as <a
+ * href="https://micrometer.io/" target="_parent">Micrometer</a>'s,
+ * or record them as JDK Flight Recorder events.</p>
+ *
+ * <p>All methods of this interface are invoked on the thread doing
+ * the measured work, and so must return quickly and must be safe for
+ * concurrent use by multiple threads.  All methods have empty default
+ * implementations.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices
+ */
+public interface JpaInjectionServicesMetrics {
+
+  /**
+   * Called once when the {@link JpaInjectionServices} that will
+   * report to this {@link JpaInjectionServicesMetrics} begins
+   * processing persistence injection points.
+   *
+   * @param liveEntityManagerCount an {@link IntSupplier} whose {@link
+   * IntSupplier#getAsInt()} method returns the number of
+   * container-managed {@link EntityManager}s currently tracked by
+   * the {@link JpaInjectionServices}; will not be {@code null};
+   * suitable for use as a gauge
+   *
+   * @see #unbind()
+   */
+  default void bind(final IntSupplier liveEntityManagerCount) {
+
+  }
+
+  /**
+   * Called once when the {@link JpaInjectionServices} that reports
+   * to this {@link JpaInjectionServicesMetrics} is {@linkplain
+   * JpaInjectionServices#cleanup() cleaned up}.
+   *
+   * @see #bind(IntSupplier)
+   */
+  default void unbind() {
+
+  }
+
+  /**
+   * Called when an {@link EntityManagerFactory} has been created.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @param nanos the number of nanoseconds creation took
+   */
+  default void entityManagerFactoryCreated(final String persistenceUnitName, final long nanos) {
+
+  }
+
+  /**
+   * Called when a thread that needed an {@link EntityManagerFactory}
+   * was blocked waiting for it to be created.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @param nanos the number of nanoseconds the thread was blocked
+   */
+  default void entityManagerFactoryAwaited(final String persistenceUnitName, final long nanos) {
+
+  }
+
+  /**
+   * Called when an idle {@link EntityManagerFactory} has been closed
+   * to keep within the limits set by the {@value
+   * JpaInjectionServices#ENTITY_MANAGER_FACTORIES_MAXIMUM_SIZE_PROPERTY_NAME}
+   * and {@value
+   * JpaInjectionServices#ENTITY_MANAGER_FACTORIES_IDLE_TIMEOUT_PROPERTY_NAME}
+   * properties.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @see #entityManagerFactoryRebuilt(String)
+   */
+  default void entityManagerFactoryEvicted(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when an {@link EntityManagerFactory} has been created to
+   * replace one that was {@linkplain
+   * #entityManagerFactoryEvicted(String) evicted}.
+   *
+   * <p>{@link #entityManagerFactoryCreated(String, long)} will
+   * already have been called for it.</p>
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @see #entityManagerFactoryEvicted(String)
+   */
+  default void entityManagerFactoryRebuilt(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when a container-managed {@link EntityManager} has been
+   * acquired on behalf of an injection point.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   */
+  default void entityManagerAcquired(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when a container-managed {@link EntityManager} has been
+   * released on behalf of an injection point.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   */
+  default void entityManagerReleased(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when a container-managed {@link EntityManager} has been
+   * found to have been garbage collected without ever having been
+   * released on behalf of its injection point.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @param origin a description of the injection point, typically
+   * its declaring class and member name; may be {@code null}
+   *
+   * @see JpaInjectionServices#getLeakedEntityManagerCount()
+   */
+  default void entityManagerLeaked(final String persistenceUnitName, final String origin) {
+
+  }
+
+  /**
+   * Called when a {@code RESOURCE_LOCAL} {@link EntityManager} was
+   * acquired from its persistence unit's pool of released {@link
+   * EntityManager}s instead of being created.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @see JpaInjectionServices#ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME
+   */
+  default void entityManagerPoolHit(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when a {@code RESOURCE_LOCAL} {@link EntityManager} had to
+   * be created because its persistence unit's pool of released
+   * {@link EntityManager}s was empty.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @see JpaInjectionServices#ENTITY_MANAGER_POOL_MAXIMUM_SIZE_PROPERTY_NAME
+   */
+  default void entityManagerPoolMiss(final String persistenceUnitName) {
+
+  }
+
+  /**
+   * Called when a JTA transaction has begun.
+   *
+   * <p>No {@link EntityManager} is enlisted in the transaction at
+   * this point.  Each container-managed {@link EntityManager} is
+   * enlisted only when it is first used in the transaction; see
+   * {@link #entityManagerEnlisted(String, long)}.</p>
+   */
+  default void jtaTransactionBegun() {
+
+  }
+
+  /**
+   * Called when a container-managed {@link EntityManager} has been
+   * joined to a JTA transaction upon its first use in that
+   * transaction.
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @param nanos the number of nanoseconds joining took
+   */
+  default void entityManagerEnlisted(final String persistenceUnitName, final long nanos) {
+
+  }
+
+  /**
+   * Called when a bulk-ingestion persistence context has flushed and
+   * cleared itself after reaching its flush interval.
+   *
+   * <p>Dividing {@code entityCount} by {@code nanos} yields the rate
+   * at which entities were written during the window.</p>
+   *
+   * @param persistenceUnitName the name of the persistence unit; will
+   * not be {@code null}
+   *
+   * @param entityCount the number of entities written since the
+   * persistence context was last flushed; always positive
+   *
+   * @param nanos the number of nanoseconds from the first of those
+   * writes until the persistence context had been flushed and cleared
+   *
+   * @see JpaInjectionServices#FLUSH_INTERVAL_PROPERTY_NAME
+   */
+  default void entitiesFlushed(final String persistenceUnitName, final int entityCount, final long nanos) {
+
+  }
+
+}
@@ -0,0 +1,605 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.stream.Stream;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.eclipse.persistence.jpa.metadata.ProjectCache;
+
+import org.eclipse.persistence.logging.SessionLog;
+
+import org.eclipse.persistence.sessions.Project;
+
+/**
+ * An EclipseLink {@link ProjectCache} that stores the {@link
+ * Project} EclipseLink builds from a persistence unit's metadata in
+ * a file, and reads it back using memory-mapped I/O, so that
+ * subsequent deployments of the same persistence unit can skip
+ * metadata processing.
+ *
+ * <p>The file is named after a digest of everything that can affect
+ * the {@link Project}: the persistence unit's name, properties,
+ * managed class names, mapping files, the bytes of its classes and
+ * the EclipseLink version.  Any change to an entity class therefore
+ * results in a different file name, and hence a cache miss; stale
+ * files for the same persistence unit are deleted whenever a new one
+ * is stored.</p>
+ *
+ * <p>Only classes that a {@link Project} can legitimately refer to
+ * are deserialized from the file: primitive types and arrays, classes
+ * in the {@code java.}, {@code javax.persistence.} and {@code
+ * org.eclipse.persistence.} packages, and the persistence unit's
+ * managed classes and the classes in their packages.  A file that
+ * refers to any other class, or to a proxy class, is treated as a
+ * cache miss.</p>
+ *
+ * <p>This class is public only so that EclipseLink can instantiate
+ * it.  It is enabled by the {@value
+ * JpaInjectionServices#METADATA_CACHE_DIRECTORY_PROPERTY_NAME}
+ * property.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#METADATA_CACHE_DIRECTORY_PROPERTY_NAME
+ */
+public final class MappedProjectCache implements ProjectCache {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the EclipseLink property that selects a {@link
+   * ProjectCache} implementation.
+   */
+  static final String PROJECT_CACHE_PROPERTY_NAME = "eclipselink.project-cache";
+
+  /**
+   * The name of the property, supplied to EclipseLink alongside the
+   * {@value #PROJECT_CACHE_PROPERTY_NAME} property, whose value is
+   * the path of the file in which the {@link Project} is cached.
+   */
+  static final String FILE_PROPERTY_NAME = "org.microbean.jpa.weld.metadataCache.file";
+
+  /**
+   * The name of the property, supplied to EclipseLink alongside the
+   * {@value #PROJECT_CACHE_PROPERTY_NAME} property, whose value is a
+   * comma-separated list of the names of the persistence unit's
+   * managed classes.
+   *
+   * <p>Besides the classes that any {@link Project} refers to, only
+   * these classes, and the classes in their packages, may be
+   * deserialized from the cached file.</p>
+   */
+  static final String MANAGED_CLASS_NAMES_PROPERTY_NAME = "org.microbean.jpa.weld.metadataCache.managedClassNames";
+
+  private static final Set<String> PRIMITIVE_TYPE_NAMES =
+    new HashSet<>(Arrays.asList("boolean", "byte", "char", "short", "int", "long", "float", "double", "void"));
+
+  private static final String[] ALLOWED_PACKAGE_PREFIXES = {
+    "java.",
+    "javax.persistence.",
+    "org.eclipse.persistence."
+  };
+
+  private static final String SUFFIX = ".project";
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link MappedProjectCache}.
+   */
+  public MappedProjectCache() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link Project} stored in the file named by the
+   * {@value #FILE_PROPERTY_NAME} property, or {@code null} if there
+   * is no such file, it cannot be read, or it refers to a class that
+   * may not be deserialized.
+   *
+   * @param properties the persistence unit properties; may be {@code
+   * null}
+   *
+   * @param loader the {@link ClassLoader} with which to resolve the
+   * classes referenced by the {@link Project}; may be {@code null}
+   *
+   * @param log a {@link SessionLog}; may be {@code null}
+   *
+   * @return a {@link Project}, or {@code null}
+   */
+  @Override
+  public final Project retrieveProject(@SuppressWarnings("rawtypes") final Map properties,
+                                       final ClassLoader loader,
+                                       final SessionLog log) {
+    final Path file = getFile(properties);
+    if (file == null || !Files.isRegularFile(file)) {
+      return null;
+    }
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        return null;
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+      try (final ObjectInputStream in =
+           new ClassLoaderObjectInputStream(new ByteBufferInputStream(buffer), loader, getAllowedNames(properties))) {
+        return (Project)in.readObject();
+      }
+    } catch (final IOException | ClassNotFoundException | ClassCastException exception) {
+      log(log, SessionLog.WARNING, "Could not read cached project from " + file + "; it will be rebuilt", exception);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the supplied {@link Project} in the file named by the
+   * {@value #FILE_PROPERTY_NAME} property, replacing it atomically if
+   * possible, and deletes any files cached for other versions of the
+   * same persistence unit.
+   *
+   * <p>Failure to store the {@link Project} is logged and otherwise
+   * ignored.</p>
+   *
+   * @param project the {@link Project} to store; may be {@code null}
+   * in which case no action will be taken
+   *
+   * @param properties the persistence unit properties; may be {@code
+   * null} in which case no action will be taken
+   *
+   * @param log a {@link SessionLog}; may be {@code null}
+   */
+  @Override
+  public final void storeProject(final Project project,
+                                 @SuppressWarnings("rawtypes") final Map properties,
+                                 final SessionLog log) {
+    final Path file = getFile(properties);
+    if (project == null || file == null) {
+      return;
+    }
+    Path temporaryFile = null;
+    try {
+      final Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try (final OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temporaryFile));
+           final ObjectOutputStream out = new ObjectOutputStream(outputStream)) {
+        out.writeObject(project);
+      }
+      try {
+        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (final AtomicMoveNotSupportedException atomicMoveNotSupportedException) {
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      temporaryFile = null;
+      deleteStaleFiles(file);
+    } catch (final IOException exception) {
+      log(log, SessionLog.WARNING, "Could not cache project in " + file, exception);
+    } finally {
+      if (temporaryFile != null) {
+        try {
+          Files.deleteIfExists(temporaryFile);
+        } catch (final IOException ignored) {
+
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Adds the properties that cause EclipseLink to use a {@link
+   * MappedProjectCache} for the described persistence unit to the
+   * supplied {@link Map}.
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @param directory the directory in which cached projects are
+   * stored; must not be {@code null}
+   *
+   * @param providerVersion the version of EclipseLink in use; may be
+   * {@code null}
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to EclipseLink; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfo},
+   * {@code directory} or {@code properties} is {@code null}
+   *
+   * @exception IOException if the persistence unit's classes could
+   * not be read
+   */
+  static final void configure(final PersistenceUnitInfo persistenceUnitInfo,
+                              final Path directory,
+                              final String providerVersion,
+                              final Map<? super String, Object> properties)
+    throws IOException {
+    Objects.requireNonNull(directory);
+    Objects.requireNonNull(properties);
+    final String digest = digest(persistenceUnitInfo, providerVersion);
+    final Path file = directory.resolve(getFilePrefix(persistenceUnitInfo.getPersistenceUnitName()) + digest + SUFFIX);
+    properties.put(PROJECT_CACHE_PROPERTY_NAME, MappedProjectCache.class.getName());
+    properties.put(FILE_PROPERTY_NAME, file.toString());
+    properties.put(MANAGED_CLASS_NAMES_PROPERTY_NAME, String.join(",", sorted(persistenceUnitInfo.getManagedClassNames())));
+  }
+
+  private static final String digest(final PersistenceUnitInfo persistenceUnitInfo, final String providerVersion)
+    throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException noSuchAlgorithmException) {
+      throw new IllegalStateException(noSuchAlgorithmException.getMessage(), noSuchAlgorithmException);
+    }
+    ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+    if (classLoader == null) {
+      classLoader = Thread.currentThread().getContextClassLoader();
+    }
+    update(digest, "1");
+    update(digest, providerVersion);
+    update(digest, persistenceUnitInfo.getPersistenceUnitName());
+    update(digest, String.valueOf(persistenceUnitInfo.getTransactionType()));
+    update(digest, String.valueOf(persistenceUnitInfo.excludeUnlistedClasses()));
+    final Properties unitProperties = persistenceUnitInfo.getProperties();
+    if (unitProperties != null) {
+      for (final Map.Entry<String, String> entry : toSortedMap(unitProperties).entrySet()) {
+        update(digest, entry.getKey());
+        update(digest, entry.getValue());
+      }
+    }
+    final List<String> managedClassNames = sorted(persistenceUnitInfo.getManagedClassNames());
+    for (final String managedClassName : managedClassNames) {
+      update(digest, managedClassName);
+      updateWithResources(digest, classLoader, managedClassName.replace('.', '/') + ".class");
+    }
+    final List<String> mappingFileNames = sorted(persistenceUnitInfo.getMappingFileNames());
+    mappingFileNames.add("META-INF/orm.xml");
+    for (final String mappingFileName : mappingFileNames) {
+      update(digest, mappingFileName);
+      updateWithResources(digest, classLoader, mappingFileName);
+    }
+    if (!persistenceUnitInfo.excludeUnlistedClasses()) {
+      // Classes will be discovered by scanning, so any class in the
+      // persistence unit's root or jar files may be an entity.
+      updateWithLocation(digest, persistenceUnitInfo.getPersistenceUnitRootUrl());
+      final List<URL> jarFileUrls = persistenceUnitInfo.getJarFileUrls();
+      if (jarFileUrls != null) {
+        for (final URL jarFileUrl : jarFileUrls) {
+          updateWithLocation(digest, jarFileUrl);
+        }
+      }
+    }
+    final byte[] bytes = digest.digest();
+    final StringBuilder sb = new StringBuilder(32);
+    for (int i = 0; i < 16; i++) {
+      sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static final void update(final MessageDigest digest, final String s) {
+    if (s != null) {
+      digest.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte)0);
+  }
+
+  private static final void updateWithResources(final MessageDigest digest,
+                                                final ClassLoader classLoader,
+                                                final String resourceName)
+    throws IOException {
+    if (classLoader == null) {
+      return;
+    }
+    final Enumeration<URL> urls = classLoader.getResources(resourceName);
+    while (urls.hasMoreElements()) {
+      try (final InputStream inputStream = urls.nextElement().openStream()) {
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+          digest.update(buffer, 0, read);
+        }
+      }
+    }
+  }
+
+  private static final void updateWithLocation(final MessageDigest digest, final URL url) throws IOException {
+    if (url == null) {
+      return;
+    }
+    update(digest, url.toString());
+    if (!"file".equals(url.getProtocol())) {
+      return;
+    }
+    final Path path;
+    try {
+      path = Paths.get(url.toURI());
+    } catch (final URISyntaxException | IllegalArgumentException exception) {
+      return;
+    }
+    if (Files.isDirectory(path)) {
+      final List<Path> files = new ArrayList<>();
+      try (final Stream<Path> stream = Files.walk(path)) {
+        stream.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(".class"))
+          .forEach(files::add);
+      }
+      Collections.sort(files);
+      for (final Path file : files) {
+        update(digest, path.relativize(file).toString());
+        digest.update(Files.readAllBytes(file));
+      }
+    } else if (Files.isRegularFile(path)) {
+      // A jar file; any change to it changes its size or
+      // modification time.
+      update(digest, String.valueOf(Files.size(path)));
+      update(digest, String.valueOf(Files.getLastModifiedTime(path).toMillis()));
+    }
+  }
+
+  private static final List<String> sorted(final List<String> list) {
+    final List<String> returnValue = list == null ? new ArrayList<>() : new ArrayList<>(list);
+    Collections.sort(returnValue);
+    return returnValue;
+  }
+
+  private static final Map<String, String> toSortedMap(final Properties properties) {
+    final Map<String, String> returnValue = new TreeMap<>();
+    for (final String name : properties.stringPropertyNames()) {
+      returnValue.put(name, properties.getProperty(name));
+    }
+    return returnValue;
+  }
+
+  private static final String getFilePrefix(final String persistenceUnitName) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < persistenceUnitName.length(); i++) {
+      final char c = persistenceUnitName.charAt(i);
+      sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '_' ? c : '_');
+    }
+    return sb.append('-').toString();
+  }
+
+  private static final Path getFile(final Map<?, ?> properties) {
+    if (properties != null) {
+      final Object value = properties.get(FILE_PROPERTY_NAME);
+      if (value != null) {
+        return Paths.get(value.toString());
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Returns the names of the managed classes listed by the
+   * MANAGED_CLASS_NAMES_PROPERTY_NAME property, together with the
+   * names of their packages, each followed by a period.
+   */
+  private static final Set<String> getAllowedNames(final Map<?, ?> properties) {
+    final Set<String> returnValue = new HashSet<>();
+    if (properties != null) {
+      final Object value = properties.get(MANAGED_CLASS_NAMES_PROPERTY_NAME);
+      if (value != null) {
+        for (String name : value.toString().split(",")) {
+          name = name.trim();
+          if (!name.isEmpty()) {
+            returnValue.add(name);
+            final int lastDotIndex = name.lastIndexOf('.');
+            if (lastDotIndex > 0) {
+              returnValue.add(name.substring(0, lastDotIndex + 1));
+            }
+          }
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private static final boolean isAllowed(String className, final Set<? extends String> allowedNames) {
+    if (PRIMITIVE_TYPE_NAMES.contains(className)) {
+      // A Class object such as int.class.
+      return true;
+    } else if (className.startsWith("[")) {
+      // An array class: int[] is "[I"; Foo[][] is "[[LFoo;".
+      className = className.substring(className.lastIndexOf('[') + 1);
+      if (className.length() == 1) {
+        return true;
+      } else if (!className.startsWith("L") || !className.endsWith(";")) {
+        return false;
+      }
+      className = className.substring(1, className.length() - 1);
+    }
+    for (final String prefix : ALLOWED_PACKAGE_PREFIXES) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    if (allowedNames.contains(className)) {
+      return true;
+    }
+    final int lastDotIndex = className.lastIndexOf('.');
+    return lastDotIndex > 0 && allowedNames.contains(className.substring(0, lastDotIndex + 1));
+  }
+
+  private static final void deleteStaleFiles(final Path file) throws IOException {
+    final String fileName = file.getFileName().toString();
+    final String prefix = fileName.substring(0, fileName.lastIndexOf('-') + 1);
+    try (final DirectoryStream<Path> siblings = Files.newDirectoryStream(file.toAbsolutePath().getParent(), prefix + "*" + SUFFIX)) {
+      for (final Path sibling : siblings) {
+        final String siblingName = sibling.getFileName().toString();
+        // Guard against a persistence unit whose name merely begins
+        // with this one's; digests never contain hyphens.
+        if (!siblingName.equals(fileName) && siblingName.indexOf('-', prefix.length()) < 0) {
+          Files.deleteIfExists(sibling);
+        }
+      }
+    }
+  }
+
+  private static final void log(final SessionLog log, final int level, final String message, final Throwable throwable) {
+    if (log != null && log.shouldLog(level)) {
+      log.log(level, message);
+      if (throwable != null) {
+        log.logThrowable(level, throwable);
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(final ByteBuffer buffer) {
+      super();
+      this.buffer = buffer;
+    }
+
+    @Override
+    public final int read() {
+      return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public final int read(final byte[] bytes, final int offset, final int length) {
+      if (length == 0) {
+        return 0;
+      }
+      final int remaining = this.buffer.remaining();
+      if (remaining <= 0) {
+        return -1;
+      }
+      final int count = Math.min(length, remaining);
+      this.buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public final int available() {
+      return this.buffer.remaining();
+    }
+
+  }
+
+  private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+    private final ClassLoader loader;
+
+    private final Set<? extends String> allowedNames;
+
+    private ClassLoaderObjectInputStream(final InputStream inputStream,
+                                         final ClassLoader loader,
+                                         final Set<? extends String> allowedNames)
+      throws IOException {
+      super(inputStream);
+      this.loader = loader;
+      this.allowedNames = allowedNames;
+    }
+
+    @Override
+    protected final Class<?> resolveClass(final ObjectStreamClass description) throws IOException, ClassNotFoundException {
+      final String name = description.getName();
+      if (!isAllowed(name, this.allowedNames)) {
+        throw new InvalidClassException(name, "Not permitted in a cached project");
+      }
+      if (this.loader != null) {
+        try {
+          return Class.forName(name, false, this.loader);
+        } catch (final ClassNotFoundException classNotFoundException) {
+          // Fall through to the default behavior, which handles
+          // primitive types.
+        }
+      }
+      return super.resolveClass(description);
+    }
+
+    @Override
+    protected final Class<?> resolveProxyClass(final String[] interfaceNames) throws IOException {
+      throw new InvalidClassException(String.join(",", interfaceNames), "Proxy classes are not permitted in a cached project");
+    }
+
+  }
+
+}
@@ -0,0 +1,438 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+
+/**
+ * A build-time index of the {@link PersistenceContext}- and {@link
+ * PersistenceUnit}-annotated injection points in a class path
+ * root, as written by the {@link PersistenceInjectionPointProcessor}
+ * and read at container startup by the {@link
+ * JpaInjectionServicesExtension}.
+ *
+ * <p>An index is stored as a UTF-8 encoded {@linkplain
+ * ClassLoader#getResources(String) class path resource} named
+ * {@value #RESOURCE_NAME}.  Each line that is neither empty nor
+ * begins with {@code #} describes one injection point as a series of
+ * tab-separated fields:</p>
+ *
+ * <ol>
+ *
+ * <li>{@code PersistenceContext} or {@code PersistenceUnit}</li>
+ *
+ * <li>The binary name of the declaring class</li>
+ *
+ * <li>The name of the annotated field or method</li>
+ *
+ * <li>The name of the persistence unit, after the same defaulting
+ * {@link JpaInjectionServices} applies at runtime</li>
+ *
+ * <li>The {@link javax.persistence.SynchronizationType} name, or
+ * {@code -} for a {@link PersistenceUnit}</li>
+ *
+ * <li>The {@link javax.persistence.PersistenceContextType} name, or
+ * {@code -} for a {@link PersistenceUnit}</li>
+ *
+ * <li>Zero or more <code><em>name</em>=<em>value</em></code> fields,
+ * one per {@linkplain PersistenceContext#properties() persistence
+ * property}</li>
+ *
+ * </ol>
+ *
+ * <p>Backslashes, tabs, line terminators and, in property names,
+ * {@code =} characters are escaped with a backslash.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceInjectionPointProcessor
+ *
+ * @see JpaInjectionServicesExtension
+ */
+final class PersistenceInjectionPointIndex {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the class path resource in which an index is stored.
+   */
+  static final String RESOURCE_NAME = "META-INF/org.microbean.jpa.weld/persistence-injection-points";
+
+  private static final String NONE = "-";
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private PersistenceInjectionPointIndex() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Reads every index visible to the supplied {@link ClassLoader}
+   * and returns the {@link Entry} instances they contain.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param classLoader the {@link ClassLoader} to use; may be {@code
+   * null} in which case the system class loader will be used
+   *
+   * @return a non-{@code null}, unmodifiable {@link List} of {@link
+   * Entry} instances
+   *
+   * @exception IOException if an index could not be read
+   *
+   * @exception IllegalArgumentException if an index is malformed
+   */
+  static final List<Entry> read(final ClassLoader classLoader) throws IOException {
+    final Enumeration<URL> urls;
+    if (classLoader == null) {
+      urls = ClassLoader.getSystemResources(RESOURCE_NAME);
+    } else {
+      urls = classLoader.getResources(RESOURCE_NAME);
+    }
+    final List<Entry> returnValue = new ArrayList<>();
+    if (urls != null) {
+      while (urls.hasMoreElements()) {
+        final URL url = urls.nextElement();
+        assert url != null;
+        try (final InputStream inputStream = url.openStream();
+             final Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
+          returnValue.addAll(read(reader));
+        }
+      }
+    }
+    return Collections.unmodifiableList(returnValue);
+  }
+
+  /**
+   * Reads a single index from the supplied {@link Reader}, which is
+   * not closed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param reader the {@link Reader} to read from; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link List} of {@link Entry}
+   * instances
+   *
+   * @exception NullPointerException if {@code reader} is {@code
+   * null}
+   *
+   * @exception IOException if the index could not be read
+   *
+   * @exception IllegalArgumentException if the index is malformed
+   */
+  static final List<Entry> read(final Reader reader) throws IOException {
+    final BufferedReader bufferedReader = new BufferedReader(Objects.requireNonNull(reader));
+    final List<Entry> returnValue = new ArrayList<>();
+    String line;
+    while ((line = bufferedReader.readLine()) != null) {
+      if (!line.isEmpty() && line.charAt(0) != '#') {
+        returnValue.add(Entry.parse(line));
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Writes the supplied {@link Entry} instances as an index to the
+   * supplied {@link Writer}, which is not closed.
+   *
+   * @param entries the {@link Entry} instances to write; must not be
+   * {@code null}
+   *
+   * @param writer the {@link Writer} to write to; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IOException if the index could not be written
+   */
+  static final void write(final Collection<? extends Entry> entries, final Writer writer) throws IOException {
+    Objects.requireNonNull(writer);
+    writer.write("# Generated by " + PersistenceInjectionPointProcessor.class.getName() + "; do not edit.\n");
+    for (final Entry entry : entries) {
+      writer.write(entry.toString());
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  private static final String escape(final String s, final boolean escapeEquals) {
+    final StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '=':
+        if (escapeEquals) {
+          sb.append("\\=");
+        } else {
+          sb.append(c);
+        }
+        break;
+      default:
+        sb.append(c);
+        break;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static final String unescape(final String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    final StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        c = s.charAt(++i);
+        switch (c) {
+        case 't':
+          c = '\t';
+          break;
+        case 'n':
+          c = '\n';
+          break;
+        case 'r':
+          c = '\r';
+          break;
+        default:
+          break;
+        }
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static final int indexOfUnescapedEquals(final String s) {
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '=') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A description of a single {@link PersistenceContext}- or {@link
+   * PersistenceUnit}-annotated injection point.
+   *
+   * @see PersistenceInjectionPointIndex
+   */
+  static final class Entry {
+
+    private final String annotationName;
+
+    private final String declaringClassName;
+
+    private final String memberName;
+
+    private final String unitName;
+
+    private final String synchronizationType;
+
+    private final String persistenceContextType;
+
+    private final Map<String, String> properties;
+
+    /**
+     * Creates a new {@link Entry}.
+     *
+     * @param annotationName the {@linkplain Class#getSimpleName()
+     * simple name} of the annotation type, either {@code
+     * PersistenceContext} or {@code PersistenceUnit}; must not be
+     * {@code null}
+     *
+     * @param declaringClassName the binary name of the class
+     * declaring the injection point; must not be {@code null}
+     *
+     * @param memberName the name of the annotated field or method;
+     * must not be {@code null}
+     *
+     * @param unitName the name of the persistence unit; must not be
+     * {@code null}
+     *
+     * @param synchronizationType the name of the {@link
+     * javax.persistence.SynchronizationType}; may be {@code null}
+     *
+     * @param persistenceContextType the name of the {@link
+     * javax.persistence.PersistenceContextType}; may be {@code null}
+     *
+     * @param properties the persistence properties; may be {@code
+     * null}
+     *
+     * @exception NullPointerException if a parameter that must not
+     * be {@code null} is {@code null}
+     */
+    Entry(final String annotationName,
+          final String declaringClassName,
+          final String memberName,
+          final String unitName,
+          final String synchronizationType,
+          final String persistenceContextType,
+          final Map<? extends String, ? extends String> properties) {
+      super();
+      this.annotationName = Objects.requireNonNull(annotationName);
+      this.declaringClassName = Objects.requireNonNull(declaringClassName);
+      this.memberName = Objects.requireNonNull(memberName);
+      this.unitName = Objects.requireNonNull(unitName);
+      this.synchronizationType = synchronizationType;
+      this.persistenceContextType = persistenceContextType;
+      if (properties == null || properties.isEmpty()) {
+        this.properties = Collections.emptyMap();
+      } else {
+        this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+      }
+    }
+
+    final String getAnnotationName() {
+      return this.annotationName;
+    }
+
+    final String getDeclaringClassName() {
+      return this.declaringClassName;
+    }
+
+    final String getMemberName() {
+      return this.memberName;
+    }
+
+    final String getUnitName() {
+      return this.unitName;
+    }
+
+    final String getSynchronizationType() {
+      return this.synchronizationType;
+    }
+
+    final String getPersistenceContextType() {
+      return this.persistenceContextType;
+    }
+
+    final Map<String, String> getProperties() {
+      return this.properties;
+    }
+
+    /**
+     * Returns this {@link Entry} in the form in which it appears in
+     * an index.
+     *
+     * @return a non-{@code null} {@link String}
+     */
+    @Override
+    public final String toString() {
+      final StringBuilder sb = new StringBuilder()
+        .append(escape(this.annotationName, false)).append('\t')
+        .append(escape(this.declaringClassName, false)).append('\t')
+        .append(escape(this.memberName, false)).append('\t')
+        .append(escape(this.unitName, false)).append('\t')
+        .append(this.synchronizationType == null ? NONE : escape(this.synchronizationType, false)).append('\t')
+        .append(this.persistenceContextType == null ? NONE : escape(this.persistenceContextType, false));
+      for (final Map.Entry<String, String> property : this.properties.entrySet()) {
+        sb.append('\t')
+          .append(escape(property.getKey(), true))
+          .append('=')
+          .append(escape(property.getValue(), false));
+      }
+      return sb.toString();
+    }
+
+    private static final Entry parse(final String line) {
+      final String[] fields = line.split("\t", -1);
+      if (fields.length < 6) {
+        throw new IllegalArgumentException("Malformed " + RESOURCE_NAME + " line: " + line);
+      }
+      final Map<String, String> properties = new LinkedHashMap<>();
+      for (int i = 6; i < fields.length; i++) {
+        final int equalsIndex = indexOfUnescapedEquals(fields[i]);
+        if (equalsIndex < 0) {
+          throw new IllegalArgumentException("Malformed " + RESOURCE_NAME + " line: " + line);
+        }
+        properties.put(unescape(fields[i].substring(0, equalsIndex)), unescape(fields[i].substring(equalsIndex + 1)));
+      }
+      return new Entry(unescape(fields[0]),
+                       unescape(fields[1]),
+                       unescape(fields[2]),
+                       unescape(fields[3]),
+                       NONE.equals(fields[4]) ? null : unescape(fields[4]),
+                       NONE.equals(fields[5]) ? null : unescape(fields[5]),
+                       properties);
+    }
+
+  }
+
+}
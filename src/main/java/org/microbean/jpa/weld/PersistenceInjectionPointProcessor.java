@@ -0,0 +1,230 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+
+import javax.lang.model.SourceVersion;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceProperty;
+import javax.persistence.PersistenceUnit;
+
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * An annotation processor that writes a {@link
+ * PersistenceInjectionPointIndex} describing every field and method
+ * annotated with {@link PersistenceContext} or {@link
+ * PersistenceUnit} in the sources being compiled.
+ *
+ * <p>The {@link JpaInjectionServicesExtension} reads such indices at
+ * container startup so that it can validate persistence unit names,
+ * and begin creating exactly the {@link
+ * javax.persistence.EntityManagerFactory} instances that will be
+ * needed, before Weld reaches the injection points themselves.</p>
+ *
+ * <p>This processor is not registered as a {@linkplain
+ * java.util.ServiceLoader service}, so merely having this project's
+ * jar file on the class path does not cause {@code javac} to run it.
+ * Applications opt in by naming this project's jar file on the
+ * annotation processor path, either with {@code javac}'s {@code
+ * -processorpath} option together with {@code -processor
+ * org.microbean.jpa.weld.PersistenceInjectionPointProcessor}, or
+ * with the {@code annotationProcessorPaths} element of the {@code
+ * maven-compiler-plugin}'s configuration together with its {@code
+ * annotationProcessors} element.</p>
+ *
+ * <p>Because the index is
+ * written in its entirety at the end of each compilation, an
+ * incremental compilation that does not include every source file
+ * declaring a persistence injection point will produce an incomplete
+ * index; the consequence is only that the missing persistence units
+ * are neither validated nor created ahead of time.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceInjectionPointIndex
+ *
+ * @see JpaInjectionServicesExtension
+ */
+@SupportedAnnotationTypes({
+    "javax.persistence.PersistenceContext",
+    "javax.persistence.PersistenceUnit"
+  })
+public final class PersistenceInjectionPointProcessor extends AbstractProcessor {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final List<PersistenceInjectionPointIndex.Entry> entries;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link PersistenceInjectionPointProcessor}.
+   */
+  public PersistenceInjectionPointProcessor() {
+    super();
+    this.entries = new ArrayList<>();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@link SourceVersion#latestSupported()}.
+   *
+   * @return {@link SourceVersion#latestSupported()}
+   */
+  @Override
+  public final SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  /**
+   * Records the injection points found in the current round and, in
+   * the last round, writes the {@link PersistenceInjectionPointIndex}.
+   *
+   * @param annotations the annotation types requested to be
+   * processed; ignored
+   *
+   * @param roundEnvironment the {@link RoundEnvironment} for the
+   * current round; must not be {@code null}
+   *
+   * @return {@code false} so that other processors may also process
+   * {@link PersistenceContext} and {@link PersistenceUnit}
+   * annotations
+   */
+  @Override
+  public final boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnvironment) {
+    if (roundEnvironment.processingOver()) {
+      if (!this.entries.isEmpty()) {
+        this.writeIndex();
+      }
+    } else {
+      for (final Element element : roundEnvironment.getElementsAnnotatedWith(PersistenceContext.class)) {
+        final PersistenceContext persistenceContext = element.getAnnotation(PersistenceContext.class);
+        if (persistenceContext != null && isInjectionPoint(element)) {
+          final Map<String, String> properties = new LinkedHashMap<>();
+          for (final PersistenceProperty property : persistenceContext.properties()) {
+            properties.put(property.name(), property.value());
+          }
+          this.entries.add(new PersistenceInjectionPointIndex.Entry(PersistenceContext.class.getSimpleName(),
+                                                                    this.getDeclaringClassName(element),
+                                                                    element.getSimpleName().toString(),
+                                                                    getUnitName(element, persistenceContext.unitName()),
+                                                                    persistenceContext.synchronization().name(),
+                                                                    persistenceContext.type().name(),
+                                                                    properties));
+        }
+      }
+      for (final Element element : roundEnvironment.getElementsAnnotatedWith(PersistenceUnit.class)) {
+        final PersistenceUnit persistenceUnit = element.getAnnotation(PersistenceUnit.class);
+        if (persistenceUnit != null && isInjectionPoint(element)) {
+          this.entries.add(new PersistenceInjectionPointIndex.Entry(PersistenceUnit.class.getSimpleName(),
+                                                                    this.getDeclaringClassName(element),
+                                                                    element.getSimpleName().toString(),
+                                                                    getUnitName(element, persistenceUnit.unitName()),
+                                                                    null,
+                                                                    null,
+                                                                    Collections.emptyMap()));
+        }
+      }
+    }
+    return false;
+  }
+
+  private final String getDeclaringClassName(final Element element) {
+    return this.processingEnv.getElementUtils().getBinaryName((TypeElement)element.getEnclosingElement()).toString();
+  }
+
+  private final void writeIndex() {
+    try {
+      final FileObject index =
+        this.processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                                                     "",
+                                                     PersistenceInjectionPointIndex.RESOURCE_NAME);
+      try (final Writer writer = new OutputStreamWriter(index.openOutputStream(), StandardCharsets.UTF_8)) {
+        PersistenceInjectionPointIndex.write(this.entries, writer);
+      }
+    } catch (final IOException ioException) {
+      this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                    "Could not write " + PersistenceInjectionPointIndex.RESOURCE_NAME +
+                                                    ": " + ioException.getMessage());
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final boolean isInjectionPoint(final Element element) {
+    // Type-level @PersistenceContext and @PersistenceUnit annotations
+    // declare JNDI environment entries, not injection points.
+    final ElementKind kind = element.getKind();
+    return ElementKind.FIELD.equals(kind) || ElementKind.METHOD.equals(kind);
+  }
+
+  /*
+   * Mirrors the defaulting performed by
+   * JpaInjectionServices#registerPersistenceContextInjectionPoint(InjectionPoint)
+   * and
+   * JpaInjectionServices#registerPersistenceUnitInjectionPoint(InjectionPoint).
+   */
+  private static final String getUnitName(final Element element, final String unitName) {
+    if (unitName.isEmpty() && ElementKind.FIELD.equals(element.getKind())) {
+      return element.getSimpleName().toString();
+    }
+    return unitName;
+  }
+
+}
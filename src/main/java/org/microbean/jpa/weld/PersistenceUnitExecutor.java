@@ -0,0 +1,146 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Objects;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.function.Function;
+
+import javax.inject.Singleton;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * A bean, in {@link Singleton} scope, that runs units of work
+ * asynchronously, each in its own transaction and with its own
+ * {@link EntityManager}, on a bounded pool of threads.
+ *
+ * <p>Inject an instance of this class to use it.  Instances are
+ * created only by the {@link JpaInjectionServicesExtension}, which
+ * ties each to the {@link JpaInjectionServices} the container
+ * actually uses.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #executeAsync(String, Function)
+ *
+ * @see JpaInjectionServices#ASYNC_THREADS_PROPERTY_NAME
+ *
+ * @see JpaInjectionServices#ASYNC_QUEUE_SIZE_PROPERTY_NAME
+ */
+public final class PersistenceUnitExecutor {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final JpaInjectionServices services;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link PersistenceUnitExecutor}.
+   *
+   * @param services the {@link JpaInjectionServices} that will run
+   * units of work; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code services} is {@code
+   * null}
+   */
+  PersistenceUnitExecutor(final JpaInjectionServices services) {
+    super();
+    this.services = Objects.requireNonNull(services);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Runs the supplied unit of work asynchronously, in a new
+   * transaction, with a new {@link EntityManager} for the named
+   * persistence unit, and returns a {@link CompletionStage}
+   * representing its result.
+   *
+   * <p>The unit of work runs on a thread belonging to a pool of
+   * bounded size, configured by the {@value
+   * JpaInjectionServices#ASYNC_THREADS_PROPERTY_NAME} and {@value
+   * JpaInjectionServices#ASYNC_QUEUE_SIZE_PROPERTY_NAME} system
+   * properties.  If the pool is saturated, the unit of work is not
+   * run and the returned {@link CompletionStage} completes
+   * exceptionally, at once, with a {@link
+   * RejectedExecutionException}, so that callers can shed load
+   * rather than queue it without bound.</p>
+   *
+   * <p>For a JTA persistence unit, a JTA transaction is begun on the
+   * worker thread using the container's {@link TransactionManager},
+   * and the {@link EntityManager} is created and joined to it there.
+   * For a {@code RESOURCE_LOCAL} persistence unit, an {@link
+   * EntityTransaction} is begun instead.  The transaction is
+   * committed if the unit of work returns normally, and rolled back
+   * otherwise.  A JTA transaction cannot be associated with more than
+   * one thread at a time, so the unit of work never takes part in any
+   * transaction active on the calling thread; it behaves as though
+   * the caller's transaction, if any, had been suspended.</p>
+   *
+   * <p>The {@link EntityManager} supplied to the unit of work is
+   * closed once the transaction has completed, and so must not
+   * escape it.  Entities returned by the unit of work are
+   * detached.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the unit of work's result
+   *
+   * @param persistenceUnitName the name of the persistence unit; must
+   * not be {@code null}
+   *
+   * @param work the unit of work; must not be {@code null}; may
+   * return {@code null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that completes
+   * with the unit of work's result once its transaction has
+   * committed, or exceptionally if it could not be run, threw an
+   * exception or its transaction could not be committed
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalStateException if the container is shutting
+   * down
+   */
+  public final <T> CompletionStage<T> executeAsync(final String persistenceUnitName,
+                                                   final Function<? super EntityManager, ? extends T> work) {
+    return this.services.executeAsync(persistenceUnitName, work);
+  }
+
+}
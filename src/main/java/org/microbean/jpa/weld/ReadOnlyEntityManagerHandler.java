@@ -0,0 +1,206 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+/**
+ * An {@link InvocationHandler} for {@link EntityManager} proxies
+ * that represent read-only persistence contexts.
+ *
+ * <p>Such a proxy rejects every operation that could cause changes to
+ * be written to the database ({@link EntityManager#persist(Object)},
+ * {@link EntityManager#merge(Object)}, {@link
+ * EntityManager#remove(Object)}, {@link EntityManager#flush()},
+ * {@link EntityManager#joinTransaction()}, {@link
+ * EntityManager#getTransaction()} and pessimistic or optimistic
+ * locking) with an {@link IllegalStateException}.  Entities it
+ * {@linkplain EntityManager#find(Class, Object) finds}, and the
+ * results of JPQL queries it creates, are requested with the
+ * read-only query hints of EclipseLink and Hibernate, so that
+ * providers that understand them do not track changes to the
+ * entities involved.  Providers ignore hints they do not
+ * understand.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#READ_ONLY_PROPERTY_NAME
+ */
+final class ReadOnlyEntityManagerHandler implements InvocationHandler {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final Map<String, Object> READ_ONLY_HINTS;
+
+  static {
+    final Map<String, Object> hints = new HashMap<>();
+    hints.put("eclipselink.read-only", "true");
+    hints.put("org.hibernate.readOnly", Boolean.TRUE);
+    READ_ONLY_HINTS = Collections.unmodifiableMap(hints);
+  }
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManager delegate;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private ReadOnlyEntityManagerHandler(final EntityManager delegate) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+    final Object returnValue;
+    switch (method.getName()) {
+    case "equals":
+      returnValue = proxy == arguments[0];
+      break;
+    case "hashCode":
+      returnValue = System.identityHashCode(proxy);
+      break;
+    case "toString":
+      returnValue = "Read-only EntityManager proxy for " + this.delegate;
+      break;
+    case "persist":
+    case "merge":
+    case "remove":
+    case "flush":
+    case "joinTransaction":
+    case "getTransaction":
+    case "lock":
+      throw new IllegalStateException(method.getName() + "() called on a read-only EntityManager");
+    case "find":
+      returnValue = this.find(arguments);
+      break;
+    case "createQuery":
+    case "createNamedQuery":
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      if (returnValue instanceof Query) {
+        for (final Map.Entry<String, Object> hint : READ_ONLY_HINTS.entrySet()) {
+          try {
+            ((Query)returnValue).setHint(hint.getKey(), hint.getValue());
+          } catch (final IllegalArgumentException notApplicable) {
+            // The query is not one to which the hint applies, such as
+            // a bulk update; the provider will reject it anyway
+            // because the EntityManager never joins a transaction.
+          }
+        }
+      }
+      break;
+    default:
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      break;
+    }
+    return returnValue;
+  }
+
+  @SuppressWarnings("unchecked")
+  private final Object find(final Object[] arguments) {
+    assert arguments != null;
+    assert arguments.length >= 2;
+    final Class<?> entityClass = (Class<?>)arguments[0];
+    final Object primaryKey = arguments[1];
+    Map<String, Object> properties = READ_ONLY_HINTS;
+    LockModeType lockMode = null;
+    for (int i = 2; i < arguments.length; i++) {
+      if (arguments[i] instanceof LockModeType) {
+        lockMode = (LockModeType)arguments[i];
+      } else if (arguments[i] instanceof Map) {
+        properties = new HashMap<>((Map<String, Object>)arguments[i]);
+        properties.putAll(READ_ONLY_HINTS);
+      }
+    }
+    if (lockMode == null || LockModeType.NONE.equals(lockMode)) {
+      return this.delegate.find(entityClass, primaryKey, properties);
+    }
+    throw new IllegalStateException("find() with lock mode " + lockMode + " called on a read-only EntityManager");
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new read-only {@link EntityManager} proxy for the
+   * supplied {@link EntityManager}, whose {@linkplain
+   * EntityManager#setFlushMode(FlushModeType) flush mode} is set to
+   * {@link FlushModeType#COMMIT} so that queries never trigger
+   * dirty checking.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param delegate the {@link EntityManager} to which the proxy will
+   * delegate; must not be {@code null}; should not be joined to a
+   * transaction
+   *
+   * @return a new, non-{@code null} {@link EntityManager} proxy
+   *
+   * @exception NullPointerException if {@code delegate} is {@code
+   * null}
+   */
+  static final EntityManager newProxy(final EntityManager delegate) {
+    delegate.setFlushMode(FlushModeType.COMMIT);
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 new ReadOnlyEntityManagerHandler(delegate));
+  }
+
+  private static final Object invokeDelegate(final Object target, final Method method, final Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,389 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.function.Supplier;
+
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.metamodel.EntityType;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.eclipse.persistence.queries.Cursor;
+
+/**
+ * An {@link InvocationHandler} for {@link EntityManager} proxies
+ * that represent streaming persistence contexts.
+ *
+ * <p>The {@link Query#getResultStream()} method of every query such a
+ * proxy creates returns a {@link Stream} backed by a database cursor
+ * that fetches rows in batches of the proxy's fetch size, rather than
+ * by a {@link java.util.List} of every result.  With EclipseLink the
+ * cursor is a forward-only {@code ScrollableCursor}; with other
+ * persistence providers it is whatever backs the provider's own
+ * {@link Query#getResultStream()} implementation, and the fetch size
+ * is supplied as a Hibernate query hint.</p>
+ *
+ * <p>As the {@link Stream} advances, each entity it returned
+ * previously, including each entity in a returned {@code Object[]}
+ * row, is {@linkplain EntityManager#detach(Object) detached}, so
+ * that the persistence context does not grow with the number of rows
+ * read.  An entity may therefore be used, and its lazy associations
+ * loaded, only until the next one is requested.</p>
+ *
+ * <p>The {@link Stream} should be {@linkplain Stream#close() closed}
+ * when it is no longer needed.  If it was obtained during an active
+ * JTA transaction, it is also closed when that transaction
+ * completes.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JpaInjectionServices#STREAM_FETCH_SIZE_PROPERTY_NAME
+ */
+final class StreamingEntityManagerHandler implements InvocationHandler {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManager delegate;
+
+  private final int fetchSize;
+
+  private final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier;
+
+  // The Java types of the persistence unit's entities, computed on
+  // first use.
+  private volatile Set<Class<?>> entityClasses;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private StreamingEntityManagerHandler(final EntityManager delegate,
+                                        final int fetchSize,
+                                        final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    if (fetchSize <= 0) {
+      throw new IllegalArgumentException("fetchSize <= 0: " + fetchSize);
+    }
+    this.fetchSize = fetchSize;
+    this.tsrSupplier = Objects.requireNonNull(tsrSupplier);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+    Object returnValue;
+    switch (method.getName()) {
+    case "equals":
+      returnValue = proxy == arguments[0];
+      break;
+    case "hashCode":
+      returnValue = System.identityHashCode(proxy);
+      break;
+    case "toString":
+      returnValue = "Streaming EntityManager proxy for " + this.delegate;
+      break;
+    case "createQuery":
+    case "createNamedQuery":
+    case "createNativeQuery":
+    case "createStoredProcedureQuery":
+    case "createNamedStoredProcedureQuery":
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      if (returnValue instanceof Query) {
+        returnValue = this.newQueryProxy((Query)returnValue);
+      }
+      break;
+    default:
+      returnValue = invokeDelegate(this.delegate, method, arguments);
+      break;
+    }
+    return returnValue;
+  }
+
+  private final Query newQueryProxy(final Query query) {
+    final Class<?> queryInterface;
+    if (query instanceof StoredProcedureQuery) {
+      queryInterface = StoredProcedureQuery.class;
+    } else if (query instanceof TypedQuery) {
+      queryInterface = TypedQuery.class;
+    } else {
+      queryInterface = Query.class;
+    }
+    return (Query)Proxy.newProxyInstance(Query.class.getClassLoader(),
+                                         new Class<?>[] { queryInterface },
+                                         (proxy, method, arguments) -> {
+                                           switch (method.getName()) {
+                                           case "equals":
+                                             return proxy == arguments[0];
+                                           case "hashCode":
+                                             return System.identityHashCode(proxy);
+                                           case "toString":
+                                             return "Streaming query proxy for " + query;
+                                           case "getResultStream":
+                                             return this.getResultStream(query);
+                                           default:
+                                             final Object returnValue = invokeDelegate(query, method, arguments);
+                                             // Keep chained setter calls on the proxy.
+                                             return returnValue == query ? proxy : returnValue;
+                                           }
+                                         });
+  }
+
+  private final Stream<?> getResultStream(final Query query) {
+    final ResultIterator results;
+    if (query.getClass().getName().startsWith("org.eclipse.persistence.")) {
+      results = EclipseLink.openCursor(this, query, this.fetchSize);
+    } else {
+      try {
+        query.setHint("org.hibernate.fetchSize", Integer.valueOf(this.fetchSize));
+      } catch (final IllegalArgumentException notApplicable) {
+
+      }
+      final Stream<?> stream = query.getResultStream();
+      results = new ResultIterator(stream.iterator(), stream::close);
+    }
+    final TransactionSynchronizationRegistry tsr = this.tsrSupplier.get();
+    if (tsr != null) {
+      final int status = tsr.getTransactionStatus();
+      if (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public final void beforeCompletion() {
+
+            }
+
+            @Override
+            public final void afterCompletion(final int status) {
+              results.close();
+            }
+          });
+      }
+    }
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false).onClose(results::close);
+  }
+
+  private final void detach(final Object result) {
+    if (result instanceof Object[]) {
+      for (final Object element : (Object[])result) {
+        this.detach(element);
+      }
+    } else if (result != null && this.isEntity(result.getClass()) && this.delegate.isOpen()) {
+      this.delegate.detach(result);
+    }
+  }
+
+  private final boolean isEntity(final Class<?> c) {
+    Set<Class<?>> entityClasses = this.entityClasses;
+    if (entityClasses == null) {
+      final Set<Class<?>> classes = new HashSet<>();
+      for (final EntityType<?> entityType : this.delegate.getMetamodel().getEntities()) {
+        final Class<?> javaType = entityType.getJavaType();
+        if (javaType != null) {
+          classes.add(javaType);
+        }
+      }
+      entityClasses = Collections.unmodifiableSet(classes);
+      this.entityClasses = entityClasses;
+    }
+    // Providers may return instances of generated subclasses of an
+    // entity class.
+    for (Class<?> type = c; type != null && type != Object.class; type = type.getSuperclass()) {
+      if (entityClasses.contains(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new streaming {@link EntityManager} proxy for the
+   * supplied {@link EntityManager}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param delegate the {@link EntityManager} to which the proxy will
+   * delegate; must not be {@code null}
+   *
+   * @param fetchSize the number of rows to fetch from the database at
+   * a time; must be positive
+   *
+   * @param tsrSupplier a {@link Supplier} of the {@link
+   * TransactionSynchronizationRegistry} in effect, which may return
+   * {@code null}; must not be {@code null}
+   *
+   * @return a new, non-{@code null} {@link EntityManager} proxy
+   *
+   * @exception NullPointerException if {@code delegate} or {@code
+   * tsrSupplier} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code fetchSize} is not
+   * positive
+   */
+  static final EntityManager newProxy(final EntityManager delegate,
+                                      final int fetchSize,
+                                      final Supplier<? extends TransactionSynchronizationRegistry> tsrSupplier) {
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 new StreamingEntityManagerHandler(delegate, fetchSize, tsrSupplier));
+  }
+
+  private static final Object invokeDelegate(final Object target, final Method method, final Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link Iterator} over query results that detaches each result
+   * once the next one is requested, and that may be closed, once, by
+   * any thread.
+   */
+  private final class ResultIterator implements Iterator<Object> {
+
+    private final Iterator<?> source;
+
+    private final Runnable closer;
+
+    private final AtomicBoolean closed;
+
+    private Object previous;
+
+    private ResultIterator(final Iterator<?> source, final Runnable closer) {
+      super();
+      this.source = Objects.requireNonNull(source);
+      this.closer = Objects.requireNonNull(closer);
+      this.closed = new AtomicBoolean();
+    }
+
+    @Override
+    public final boolean hasNext() {
+      if (this.closed.get()) {
+        return false;
+      }
+      final boolean returnValue = this.source.hasNext();
+      if (!returnValue) {
+        this.detachPrevious();
+      }
+      return returnValue;
+    }
+
+    @Override
+    public final Object next() {
+      if (this.closed.get()) {
+        throw new NoSuchElementException("closed");
+      }
+      this.detachPrevious();
+      final Object returnValue = this.source.next();
+      this.previous = returnValue;
+      return returnValue;
+    }
+
+    private final void detachPrevious() {
+      final Object previous = this.previous;
+      if (previous != null) {
+        this.previous = null;
+        detach(previous);
+      }
+    }
+
+    private final void close() {
+      // May be called by a transaction manager thread via
+      // Synchronization#afterCompletion(int), so the previous result
+      // is deliberately not detached here.
+      if (this.closed.compareAndSet(false, true)) {
+        this.closer.run();
+      }
+    }
+
+  }
+
+  /**
+   * Houses the code that refers to EclipseLink classes, so that they
+   * are loaded only if EclipseLink is actually in use.
+   */
+  private static final class EclipseLink {
+
+    private EclipseLink() {
+      super();
+    }
+
+    private static final ResultIterator openCursor(final StreamingEntityManagerHandler handler,
+                                                   final Query query,
+                                                   final int fetchSize) {
+      query.setHint("eclipselink.cursor.scrollable", "true");
+      query.setHint("eclipselink.cursor.scrollable.result-set-type", "ForwardOnly");
+      query.setHint("eclipselink.cursor.scrollable.result-set-concurrency", "ReadOnly");
+      query.setHint("eclipselink.jdbc.fetch-size", Integer.toString(fetchSize));
+      final Cursor cursor = (Cursor)query.getSingleResult();
+      return handler.new ResultIterator(cursor, cursor::close);
+    }
+
+  }
+
+}
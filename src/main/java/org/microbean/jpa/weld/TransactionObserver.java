@@ -27,6 +27,12 @@ import javax.transaction.TransactionScoped;
  * A bean housing an observer method that alerts a {@link
  * JpaInjectionServices} instance when a JTA transaction is available.
  *
+ * <p>The alert is used only to report the transaction to the {@link
+ * JpaInjectionServicesMetrics}, if any.  {@link
+ * javax.persistence.EntityManager}s are not enlisted in the
+ * transaction here; each joins it on first use in it, whichever
+ * thread acquired it.  See {@link EnlistingEntityManagerHandler}.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
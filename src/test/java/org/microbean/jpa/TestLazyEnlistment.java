@@ -0,0 +1,114 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2018 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa;
+
+import javax.enterprise.context.Dependent;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.SynchronizationType;
+
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.microbean.jpa.weld.Person;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLazyEnlistment {
+
+  private SeContainer container;
+
+  private TransactionManager tm;
+
+  public TestLazyEnlistment() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = SeContainerInitializer.newInstance().initialize();
+    this.tm = this.container.select(TransactionManager.class).get();
+  }
+
+  @After
+  public void stopContainer() {
+    if (this.container != null) {
+      this.container.close();
+    }
+  }
+
+  @Test
+  public void testOnlyUsedSynchronizedEntityManagersAreEnlisted() throws Exception {
+    final SynchronizedBean synchronizedBean = this.container.select(SynchronizedBean.class).get();
+    final SynchronizedBean untouchedBean = this.container.select(SynchronizedBean.class).get();
+    final UnsynchronizedBean unsynchronizedBean = this.container.select(UnsynchronizedBean.class).get();
+
+    for (int i = 0; i < 2; i++) {
+      this.tm.begin();
+      try {
+        // Beginning a transaction enlists nothing.
+        assertFalse(synchronizedBean.em.isJoinedToTransaction());
+        assertFalse(untouchedBean.em.isJoinedToTransaction());
+
+        // Using a synchronized EntityManager enlists it...
+        synchronizedBean.em.find(Person.class, 1L);
+        assertTrue(synchronizedBean.em.isJoinedToTransaction());
+
+        // ...but not one the transaction never touches, nor an
+        // unsynchronized one.
+        unsynchronizedBean.em.find(Person.class, 1L);
+        assertFalse(unsynchronizedBean.em.isJoinedToTransaction());
+        assertFalse(untouchedBean.em.isJoinedToTransaction());
+      } finally {
+        this.tm.rollback();
+      }
+    }
+  }
+
+  @Dependent
+  public static class SynchronizedBean {
+
+    @PersistenceContext(unitName = "test")
+    private EntityManager em;
+
+    public SynchronizedBean() {
+      super();
+    }
+
+  }
+
+  @Dependent
+  public static class UnsynchronizedBean {
+
+    @PersistenceContext(unitName = "test", synchronization = SynchronizationType.UNSYNCHRONIZED)
+    private EntityManager em;
+
+    public UnsynchronizedBean() {
+      super();
+    }
+
+  }
+
+}
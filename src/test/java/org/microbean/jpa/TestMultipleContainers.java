@@ -0,0 +1,113 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2018 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa;
+
+import javax.enterprise.context.Dependent;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+
+import javax.transaction.TransactionManager;
+
+import org.eclipse.persistence.sessions.Session;
+
+import org.jboss.weld.environment.se.Weld;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.microbean.jpa.weld.JpaInjectionServices;
+import org.microbean.jpa.weld.Person;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMultipleContainers {
+
+  private SeContainer first;
+
+  private SeContainer second;
+
+  public TestMultipleContainers() {
+    super();
+  }
+
+  @After
+  public void stopContainers() {
+    if (this.first != null && this.first.isRunning()) {
+      this.first.close();
+    }
+    if (this.second != null && this.second.isRunning()) {
+      this.second.close();
+    }
+  }
+
+  @Test
+  public void testClosingOneContainerLeavesTheOtherUsable() throws Exception {
+    this.first = new Weld("first").initialize();
+    this.second = new Weld("second").initialize();
+    assertNotSame(this.first.select(JpaInjectionServices.class).get(),
+                  this.second.select(JpaInjectionServices.class).get());
+
+    final Holder firstHolder = this.first.select(Holder.class).get();
+    final Holder secondHolder = this.second.select(Holder.class).get();
+    assertNotSame(firstHolder.emf, secondHolder.emf);
+    // EclipseLink's session registry is JVM-wide, so the containers'
+    // persistence units must not share a session.
+    assertNotEquals(firstHolder.emf.unwrap(Session.class).getName(),
+                    secondHolder.emf.unwrap(Session.class).getName());
+    assertEquals(1, firstHolder.em.createNativeQuery("SELECT 1").getResultList().size());
+
+    this.first.close();
+    assertFalse(firstHolder.emf.isOpen());
+
+    assertTrue(secondHolder.emf.isOpen());
+    assertTrue(secondHolder.emf.unwrap(Session.class).isConnected());
+    assertEquals(1, secondHolder.em.createNativeQuery("SELECT 1").getResultList().size());
+    final TransactionManager tm = this.second.select(TransactionManager.class).get();
+    tm.begin();
+    try {
+      secondHolder.em.persist(new Person());
+      assertTrue(secondHolder.em.isJoinedToTransaction());
+    } finally {
+      tm.rollback();
+    }
+  }
+
+  @Dependent
+  public static class Holder {
+
+    @PersistenceContext(unitName = "test")
+    private EntityManager em;
+
+    @PersistenceUnit(unitName = "test")
+    private EntityManagerFactory emf;
+
+    public Holder() {
+      super();
+    }
+
+  }
+
+}
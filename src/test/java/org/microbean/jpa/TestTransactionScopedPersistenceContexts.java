@@ -0,0 +1,137 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2018 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa;
+
+import javax.enterprise.context.Dependent;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TransactionRequiredException;
+
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.microbean.jpa.weld.JpaInjectionServices;
+import org.microbean.jpa.weld.Person;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionScopedPersistenceContexts {
+
+  private SeContainer container;
+
+  private TransactionManager tm;
+
+  public TestTransactionScopedPersistenceContexts() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    System.setProperty(JpaInjectionServices.TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME, "true");
+    try {
+      this.container = SeContainerInitializer.newInstance().initialize();
+    } finally {
+      System.clearProperty(JpaInjectionServices.TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME);
+    }
+    this.tm = this.container.select(TransactionManager.class).get();
+  }
+
+  @After
+  public void stopContainer() {
+    if (this.container != null) {
+      this.container.close();
+    }
+  }
+
+  @Test
+  public void testBeansInOneTransactionShareAPersistenceContext() throws Exception {
+    final FirstBean first = this.container.select(FirstBean.class).get();
+    final SecondBean second = this.container.select(SecondBean.class).get();
+
+    this.tm.begin();
+    final EntityManager delegate;
+    try {
+      delegate = first.em.unwrap(EntityManager.class);
+      assertSame(delegate, second.em.unwrap(EntityManager.class));
+      final Person person = new Person();
+      first.em.persist(person);
+      assertTrue(second.em.contains(person));
+    } finally {
+      this.tm.rollback();
+    }
+    // The transaction's EntityManager is closed when it completes.
+    assertFalse(delegate.isOpen());
+
+    // The next transaction gets an EntityManager of its own.
+    this.tm.begin();
+    try {
+      assertNotSame(delegate, first.em.unwrap(EntityManager.class));
+    } finally {
+      this.tm.rollback();
+    }
+  }
+
+  @Test
+  public void testWritesOutsideATransactionAreRejected() {
+    final FirstBean first = this.container.select(FirstBean.class).get();
+    try {
+      first.em.persist(new Person());
+      fail();
+    } catch (final TransactionRequiredException expected) {
+
+    }
+    // Reads work without one.
+    assertEquals(1, first.em.createNativeQuery("SELECT 1").getResultList().size());
+  }
+
+  @Dependent
+  public static class FirstBean {
+
+    @PersistenceContext(unitName = "test")
+    private EntityManager em;
+
+    public FirstBean() {
+      super();
+    }
+
+  }
+
+  @Dependent
+  public static class SecondBean {
+
+    @PersistenceContext(unitName = "test")
+    private EntityManager em;
+
+    public SecondBean() {
+      super();
+    }
+
+  }
+
+}
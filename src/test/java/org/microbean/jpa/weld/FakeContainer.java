@@ -0,0 +1,330 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.annotation.Annotation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.Instance;
+
+import javax.enterprise.inject.spi.AnnotatedField;
+import javax.enterprise.inject.spi.InjectionPoint;
+
+import javax.inject.Named;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.weld.bootstrap.api.ServiceRegistry;
+
+import org.jboss.weld.manager.api.ExecutorServices;
+import org.jboss.weld.manager.api.WeldManager;
+
+/**
+ * Just enough of a CDI container, backed by a {@link
+ * FakeTransactionManager} and a {@link FakePersistence.Provider}, for
+ * a {@link JpaInjectionServices} to resolve the beans it looks up and
+ * to create {@link javax.persistence.EntityManagerFactory} instances
+ * on Weld's task executor, which here runs tasks on the calling
+ * thread.
+ */
+final class FakeContainer {
+
+  final FakeTransactionManager tm;
+
+  final FakePersistence.Provider provider;
+
+  final JpaInjectionServices services;
+
+  private final Map<Class<?>, Object> beans;
+
+  private final Map<String, PersistenceUnitInfo> persistenceUnitInfos;
+
+  private final ExecutorService taskExecutor;
+
+  FakeContainer(final String... persistenceUnitNames) {
+    this(FakePersistence.Provider.class, persistenceUnitNames);
+  }
+
+  /**
+   * Creates a new {@link FakeContainer} whose persistence units name
+   * the supplied class as their provider, and in which that class
+   * resolves to a {@link FakePersistence.Provider}, so that {@link
+   * JpaInjectionServices} may be led to believe it is dealing with
+   * a particular real provider.
+   */
+  FakeContainer(final Class<? extends PersistenceProvider> providerClass, final String... persistenceUnitNames) {
+    super();
+    this.tm = new FakeTransactionManager();
+    this.provider = new FakePersistence.Provider(this.tm);
+    this.beans = new ConcurrentHashMap<>();
+    this.beans.put(TransactionManager.class, this.tm);
+    this.beans.put(TransactionSynchronizationRegistry.class, this.tm);
+    this.beans.put(providerClass, this.provider);
+    this.persistenceUnitInfos = new ConcurrentHashMap<>();
+    for (final String name : persistenceUnitNames) {
+      this.persistenceUnitInfos.put(name, FakePersistence.newPersistenceUnitInfo(name, providerClass.getName(), new Properties()));
+    }
+    this.taskExecutor = new DirectExecutorService();
+    this.services = new JpaInjectionServices();
+    this.services.setBeanManager(this.newBeanManager());
+  }
+
+  /**
+   * Returns the {@link PersistenceUnitInfo} for the named persistence
+   * unit, or {@code null}.
+   */
+  final PersistenceUnitInfo getPersistenceUnitInfo(final String name) {
+    return this.persistenceUnitInfos.get(name);
+  }
+
+  /**
+   * Shuts down the {@link JpaInjectionServices}, as Weld would.
+   */
+  final void close() {
+    this.services.cleanup();
+  }
+
+  private final WeldManager newBeanManager() {
+    final ExecutorServices executorServices =
+      (ExecutorServices)Proxy.newProxyInstance(ExecutorServices.class.getClassLoader(),
+                                               new Class<?>[] { ExecutorServices.class },
+                                               (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "getTaskExecutor":
+          return this.taskExecutor;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+    final ServiceRegistry services =
+      (ServiceRegistry)Proxy.newProxyInstance(ServiceRegistry.class.getClassLoader(),
+                                              new Class<?>[] { ServiceRegistry.class },
+                                              (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "get":
+          return ExecutorServices.class.equals(args[0]) ? executorServices : null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+    return (WeldManager)Proxy.newProxyInstance(WeldManager.class.getClassLoader(),
+                                               new Class<?>[] { WeldManager.class },
+                                               (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "createInstance":
+        case "instance":
+          return this.newInstance(Object.class, null);
+        case "getServices":
+          return services;
+        case "getBeans":
+          return Collections.emptySet();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+  @SuppressWarnings("unchecked")
+  private final <T> Instance<T> newInstance(final Class<T> type, final String name) {
+    return (Instance<T>)Proxy.newProxyInstance(Instance.class.getClassLoader(),
+                                               new Class<?>[] { Instance.class },
+                                               (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "select":
+          final Class<?> selectedType;
+          final Annotation[] qualifiers;
+          if (args[0] instanceof Class) {
+            selectedType = (Class<?>)args[0];
+            qualifiers = (Annotation[])args[1];
+          } else {
+            selectedType = type;
+            qualifiers = (Annotation[])args[0];
+          }
+          String selectedName = name;
+          for (final Annotation qualifier : qualifiers) {
+            if (qualifier instanceof Named) {
+              selectedName = ((Named)qualifier).value();
+            }
+          }
+          return this.newInstance(selectedType, selectedName);
+        case "isResolvable":
+          return this.resolve(type, name) != null;
+        case "isUnsatisfied":
+          return this.resolve(type, name) == null;
+        case "isAmbiguous":
+          return Boolean.FALSE;
+        case "get":
+          final Object returnValue = this.resolve(type, name);
+          if (returnValue == null) {
+            throw new IllegalStateException("Unsatisfied: " + type + " named " + name);
+          }
+          return returnValue;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          throw new UnsupportedOperationException(method.toString());
+        }
+      });
+  }
+
+  private final Object resolve(final Class<?> type, final String name) {
+    if (PersistenceUnitInfo.class.equals(type)) {
+      return name == null ? null : this.persistenceUnitInfos.get(name);
+    }
+    return this.beans.get(type);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns an {@link InjectionPoint} representing the named field
+   * of the supplied class.
+   */
+  @SuppressWarnings("unchecked")
+  static final InjectionPoint newInjectionPoint(final Class<?> declaringClass, final String fieldName) {
+    final Field field;
+    try {
+      field = declaringClass.getDeclaredField(fieldName);
+    } catch (final NoSuchFieldException noSuchFieldException) {
+      throw new IllegalArgumentException(fieldName, noSuchFieldException);
+    }
+    final AnnotatedField<?> annotated =
+      (AnnotatedField<?>)Proxy.newProxyInstance(AnnotatedField.class.getClassLoader(),
+                                                new Class<?>[] { AnnotatedField.class },
+                                                (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "getAnnotation":
+          return field.getAnnotation((Class<? extends Annotation>)args[0]);
+        case "isAnnotationPresent":
+          return field.isAnnotationPresent((Class<? extends Annotation>)args[0]);
+        case "getJavaMember":
+          return field;
+        case "getBaseType":
+          return field.getGenericType();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+    return (InjectionPoint)Proxy.newProxyInstance(InjectionPoint.class.getClassLoader(),
+                                                  new Class<?>[] { InjectionPoint.class },
+                                                  (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "getAnnotated":
+          return annotated;
+        case "getMember":
+          return field;
+        case "getType":
+          return field.getGenericType();
+        case "toString":
+          return field.toString();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class DirectExecutorService extends AbstractExecutorService {
+
+    private volatile boolean shutdown;
+
+    private DirectExecutorService() {
+      super();
+    }
+
+    @Override
+    public final void execute(final Runnable runnable) {
+      Objects.requireNonNull(runnable).run();
+    }
+
+    @Override
+    public final void shutdown() {
+      this.shutdown = true;
+    }
+
+    @Override
+    public final List<Runnable> shutdownNow() {
+      this.shutdown = true;
+      return Collections.emptyList();
+    }
+
+    @Override
+    public final boolean isShutdown() {
+      return this.shutdown;
+    }
+
+    @Override
+    public final boolean isTerminated() {
+      return this.shutdown;
+    }
+
+    @Override
+    public final boolean awaitTermination(final long timeout, final TimeUnit unit) {
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,503 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.TransactionRequiredException;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+import javax.persistence.spi.ProviderUtil;
+
+import javax.transaction.Status;
+
+/**
+ * Minimal, in-memory stand-ins for the JPA objects the tests in this
+ * package need, so that they can exercise {@link
+ * JpaInjectionServices} without a database or a real persistence
+ * provider.
+ *
+ * <p>{@link EntityManager}s created by a {@link Provider} behave,
+ * with respect to JTA transactions, as a real provider's do: they
+ * are joined to the transaction active on the calling thread, and
+ * only for as long as it remains active.  Each {@link EntityManager}
+ * keeps its own persistence context, consisting of whatever it has
+ * {@linkplain EntityManager#find(Class, Object) found} or
+ * {@linkplain EntityManager#persist(Object) persisted}.</p>
+ */
+final class FakePersistence {
+
+  private FakePersistence() {
+    super();
+  }
+
+  /**
+   * Returns a {@link PersistenceUnitInfo} describing a JTA
+   * persistence unit with the supplied name whose provider is {@link
+   * Provider}, or is named after the supplied class name.
+   */
+  static final PersistenceUnitInfo newPersistenceUnitInfo(final String name,
+                                                          final String providerClassName,
+                                                          final Properties properties) {
+    return (PersistenceUnitInfo)Proxy.newProxyInstance(PersistenceUnitInfo.class.getClassLoader(),
+                                                       new Class<?>[] { PersistenceUnitInfo.class },
+                                                       (proxy, method, args) -> {
+        switch (method.getName()) {
+        case "getPersistenceUnitName":
+          return name;
+        case "getPersistenceProviderClassName":
+          return providerClassName;
+        case "getTransactionType":
+          return PersistenceUnitTransactionType.JTA;
+        case "getProperties":
+          return properties;
+        case "getManagedClassNames":
+          return Collections.singletonList(Person.class.getName());
+        case "getClassLoader":
+        case "getNewTempClassLoader":
+          return FakePersistence.class.getClassLoader();
+        case "excludeUnlistedClasses":
+          return Boolean.TRUE;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+        }
+      });
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link PersistenceProvider} whose {@link EntityManagerFactory}
+   * instances create {@link FakeEntityManager}s.
+   *
+   * <p>Every {@link EntityManagerFactory} it creates, and the
+   * properties it was created with, are recorded.  Creating one for a
+   * persistence unit named in {@link #failing} throws a {@link
+   * PersistenceException} instead.  If {@link #beforeCreation} is
+   * set, it is run first, so that creation may be made slow.</p>
+   *
+   * <p>Every {@link EntityManager} created is recorded in {@link
+   * #entityManagers} unless {@link #retainEntityManagers} is {@code
+   * false}, in which case they may be garbage collected.</p>
+   */
+  public static final class Provider implements PersistenceProvider {
+
+    final FakeTransactionManager tm;
+
+    final List<EntityManagerFactory> created;
+
+    final List<Map<?, ?>> properties;
+
+    final List<FakeEntityManager> entityManagers;
+
+    final Set<String> failing;
+
+    volatile boolean retainEntityManagers;
+
+    volatile Runnable beforeCreation;
+
+    public Provider() {
+      this(null);
+    }
+
+    Provider(final FakeTransactionManager tm) {
+      super();
+      this.tm = tm;
+      this.created = new CopyOnWriteArrayList<>();
+      this.properties = new CopyOnWriteArrayList<>();
+      this.entityManagers = new CopyOnWriteArrayList<>();
+      this.failing = ConcurrentHashMap.newKeySet();
+      this.retainEntityManagers = true;
+    }
+
+    @Override
+    public final EntityManagerFactory createEntityManagerFactory(final String name, @SuppressWarnings("rawtypes") final Map map) {
+      return null;
+    }
+
+    @Override
+    public final EntityManagerFactory createContainerEntityManagerFactory(final PersistenceUnitInfo info,
+                                                                          @SuppressWarnings("rawtypes") final Map map) {
+      final Runnable beforeCreation = this.beforeCreation;
+      if (beforeCreation != null) {
+        beforeCreation.run();
+      }
+      if (info != null && this.failing.contains(info.getPersistenceUnitName())) {
+        throw new PersistenceException("Cannot create " + info.getPersistenceUnitName());
+      }
+      final EntityManagerFactory emf = this.newEntityManagerFactory();
+      this.properties.add(map == null ? Collections.emptyMap() : map);
+      this.created.add(emf);
+      return emf;
+    }
+
+    @Override
+    public final void generateSchema(final PersistenceUnitInfo info, @SuppressWarnings("rawtypes") final Map map) {
+
+    }
+
+    @Override
+    public final boolean generateSchema(final String persistenceUnitName, @SuppressWarnings("rawtypes") final Map map) {
+      return false;
+    }
+
+    @Override
+    public final ProviderUtil getProviderUtil() {
+      return null;
+    }
+
+    private final EntityManagerFactory newEntityManagerFactory() {
+      final AtomicBoolean open = new AtomicBoolean(true);
+      return (EntityManagerFactory)Proxy.newProxyInstance(EntityManagerFactory.class.getClassLoader(),
+                                                          new Class<?>[] { EntityManagerFactory.class },
+                                                          (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "isOpen":
+            return open.get();
+          case "close":
+            if (!open.compareAndSet(true, false)) {
+              throw new IllegalStateException("already closed");
+            }
+            return null;
+          case "createEntityManager":
+            if (!open.get()) {
+              throw new IllegalStateException("closed");
+            }
+            final FakeEntityManager handler = new FakeEntityManager(this.tm, (EntityManagerFactory)proxy);
+            if (this.retainEntityManagers) {
+              this.entityManagers.add(handler);
+            }
+            return handler.proxy;
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            return null;
+          }
+        });
+    }
+
+  }
+
+  /**
+   * The {@link InvocationHandler} behind an {@link EntityManager}
+   * created by a {@link Provider}, which records what is done with
+   * it.
+   */
+  static final class FakeEntityManager implements InvocationHandler {
+
+    private final FakeTransactionManager tm;
+
+    private final EntityManagerFactory emf;
+
+    final EntityManager proxy;
+
+    final Set<Object> managed;
+
+    final AtomicInteger joins;
+
+    final AtomicInteger flushes;
+
+    final AtomicInteger clears;
+
+    final AtomicInteger writes;
+
+    final AtomicInteger closedStreams;
+
+    volatile Map<?, ?> findProperties;
+
+    private volatile Object joinedTransaction;
+
+    private volatile boolean resourceLocalTransactionActive;
+
+    private volatile boolean open;
+
+    private volatile FlushModeType flushMode;
+
+    private FakeEntityManager(final FakeTransactionManager tm, final EntityManagerFactory emf) {
+      super();
+      this.tm = tm;
+      this.emf = emf;
+      this.managed = ConcurrentHashMap.newKeySet();
+      this.joins = new AtomicInteger();
+      this.flushes = new AtomicInteger();
+      this.clears = new AtomicInteger();
+      this.writes = new AtomicInteger();
+      this.closedStreams = new AtomicInteger();
+      this.open = true;
+      this.flushMode = FlushModeType.AUTO;
+      this.proxy = (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                         new Class<?>[] { EntityManager.class },
+                                                         this);
+    }
+
+    final boolean isOpen() {
+      return this.open;
+    }
+
+    @Override
+    public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+      switch (method.getName()) {
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "FakeEntityManager@" + Integer.toHexString(System.identityHashCode(proxy));
+      case "isOpen":
+        return this.open;
+      case "close":
+        this.checkOpen();
+        this.open = false;
+        this.managed.clear();
+        return null;
+      case "getDelegate":
+        return this;
+      case "getEntityManagerFactory":
+        return this.emf;
+      case "getProperties":
+        return Collections.emptyMap();
+      case "getFlushMode":
+        return this.flushMode;
+      case "setFlushMode":
+        this.flushMode = (FlushModeType)args[0];
+        return null;
+      case "joinTransaction":
+        this.checkOpen();
+        final Object key = this.tm == null ? null : this.tm.getTransactionKey();
+        if (key == null) {
+          throw new TransactionRequiredException();
+        }
+        this.joinedTransaction = key;
+        this.joins.incrementAndGet();
+        return null;
+      case "isJoinedToTransaction":
+        return this.isJoinedToTransaction();
+      case "find":
+        this.checkOpen();
+        this.findProperties = args.length > 2 && args[2] instanceof Map ? (Map<?, ?>)args[2] : null;
+        final Object entity = ((Class<?>)args[0]).getDeclaredConstructor().newInstance();
+        this.managed.add(entity);
+        return entity;
+      case "contains":
+        return this.managed.contains(args[0]);
+      case "detach":
+        this.checkOpen();
+        this.managed.remove(args[0]);
+        return null;
+      case "getMetamodel":
+        return newMetamodel();
+      case "persist":
+      case "merge":
+      case "remove":
+        this.checkOpen();
+        this.writes.incrementAndGet();
+        if ("persist".equals(method.getName())) {
+          this.managed.add(args[0]);
+        } else if ("remove".equals(method.getName())) {
+          this.managed.remove(args[0]);
+        }
+        return "merge".equals(method.getName()) ? args[0] : null;
+      case "flush":
+        this.checkOpen();
+        if (!this.isJoinedToTransaction()) {
+          throw new TransactionRequiredException();
+        }
+        this.flushes.incrementAndGet();
+        return null;
+      case "clear":
+        this.managed.clear();
+        this.clears.incrementAndGet();
+        return null;
+      case "createQuery":
+      case "createNamedQuery":
+      case "createNativeQuery":
+        this.checkOpen();
+        return this.newQuery();
+      case "getTransaction":
+        this.checkOpen();
+        return this.newEntityTransaction();
+      default:
+        throw new UnsupportedOperationException(method.toString());
+      }
+    }
+
+    /*
+     * Returns a Metamodel describing Person as the only entity.
+     */
+    private static final Metamodel newMetamodel() {
+      final EntityType<?> person =
+        (EntityType<?>)Proxy.newProxyInstance(EntityType.class.getClassLoader(),
+                                              new Class<?>[] { EntityType.class },
+                                              (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "getJavaType":
+            return Person.class;
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            throw new UnsupportedOperationException(method.toString());
+          }
+        });
+      return (Metamodel)Proxy.newProxyInstance(Metamodel.class.getClassLoader(),
+                                               new Class<?>[] { Metamodel.class },
+                                               (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "getEntities":
+            return Collections.singleton(person);
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            throw new UnsupportedOperationException(method.toString());
+          }
+        });
+    }
+
+    private final EntityTransaction newEntityTransaction() {
+      return (EntityTransaction)Proxy.newProxyInstance(EntityTransaction.class.getClassLoader(),
+                                                       new Class<?>[] { EntityTransaction.class },
+                                                       (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "begin":
+            if (this.resourceLocalTransactionActive) {
+              throw new IllegalStateException("active");
+            }
+            this.resourceLocalTransactionActive = true;
+            return null;
+          case "commit":
+          case "rollback":
+            if (!this.resourceLocalTransactionActive) {
+              throw new IllegalStateException("not active");
+            }
+            this.resourceLocalTransactionActive = false;
+            return null;
+          case "isActive":
+            return this.resourceLocalTransactionActive;
+          case "getRollbackOnly":
+            return Boolean.FALSE;
+          case "setRollbackOnly":
+            return null;
+          default:
+            throw new UnsupportedOperationException(method.toString());
+          }
+        });
+    }
+
+    private final TypedQuery<?> newQuery() {
+      final Map<String, Object> hints = new ConcurrentHashMap<>();
+      return (TypedQuery<?>)Proxy.newProxyInstance(TypedQuery.class.getClassLoader(),
+                                                   new Class<?>[] { TypedQuery.class },
+                                                   (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          case "getResultList":
+            this.checkOpen();
+            final Person person = new Person();
+            this.managed.add(person);
+            return Collections.singletonList(person);
+          case "getSingleResult":
+            this.checkOpen();
+            final Person single = new Person();
+            this.managed.add(single);
+            return single;
+          case "getResultStream":
+            this.checkOpen();
+            final Person streamed = new Person();
+            this.managed.add(streamed);
+            return Stream.of(streamed).onClose(this.closedStreams::incrementAndGet);
+          case "executeUpdate":
+            this.checkOpen();
+            return 0;
+          case "setHint":
+            hints.put((String)args[0], args[1]);
+            return proxy;
+          case "getHints":
+            return hints;
+          default:
+            if (method.getName().startsWith("set")) {
+              return proxy;
+            }
+            throw new UnsupportedOperationException(method.toString());
+          }
+        });
+    }
+
+    private final boolean isJoinedToTransaction() {
+      final Object joinedTransaction = this.joinedTransaction;
+      if (joinedTransaction == null || this.tm == null || joinedTransaction != this.tm.getTransactionKey()) {
+        return false;
+      }
+      final int status = this.tm.getStatus();
+      return status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    private final void checkOpen() {
+      if (!this.open) {
+        throw new IllegalStateException("closed");
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,248 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import javax.transaction.xa.XAResource;
+
+/**
+ * A minimal, in-memory {@link TransactionManager} and {@link
+ * TransactionSynchronizationRegistry} whose transactions are bound to
+ * the thread that {@linkplain #begin() begins} them, as they are in a
+ * real JTA implementation, and which enlist no resources.
+ */
+final class FakeTransactionManager implements TransactionManager, TransactionSynchronizationRegistry {
+
+  private final ThreadLocal<FakeTransaction> current;
+
+  final AtomicInteger committed;
+
+  final AtomicInteger rolledBack;
+
+  // If true, the next call to rollback() fails and leaves the
+  // transaction associated with the calling thread.
+  volatile boolean failNextRollback;
+
+  // If true, the next call to registerInterposedSynchronization()
+  // fails, as it does when a transaction is already completing.
+  volatile boolean failNextSynchronizationRegistration;
+
+  FakeTransactionManager() {
+    super();
+    this.current = new ThreadLocal<>();
+    this.committed = new AtomicInteger();
+    this.rolledBack = new AtomicInteger();
+  }
+
+  @Override
+  public final void begin() throws NotSupportedException {
+    if (this.current.get() != null) {
+      throw new NotSupportedException("A transaction is already associated with " + Thread.currentThread());
+    }
+    this.current.set(new FakeTransaction());
+  }
+
+  @Override
+  public final void commit() throws HeuristicMixedException, HeuristicRollbackException, RollbackException, SystemException {
+    final FakeTransaction transaction = this.getActiveTransaction();
+    try {
+      transaction.commit();
+    } finally {
+      this.current.remove();
+    }
+  }
+
+  @Override
+  public final void rollback() throws SystemException {
+    final FakeTransaction transaction = this.getActiveTransaction();
+    if (this.failNextRollback) {
+      this.failNextRollback = false;
+      throw new SystemException("rollback failed");
+    }
+    try {
+      transaction.rollback();
+    } finally {
+      this.current.remove();
+    }
+  }
+
+  @Override
+  public final int getStatus() {
+    final FakeTransaction transaction = this.current.get();
+    return transaction == null ? Status.STATUS_NO_TRANSACTION : transaction.getStatus();
+  }
+
+  @Override
+  public final Transaction getTransaction() {
+    return this.current.get();
+  }
+
+  @Override
+  public final Transaction suspend() {
+    final Transaction returnValue = this.current.get();
+    this.current.remove();
+    return returnValue;
+  }
+
+  @Override
+  public final void resume(final Transaction transaction) throws InvalidTransactionException {
+    if (!(transaction instanceof FakeTransaction)) {
+      throw new InvalidTransactionException(String.valueOf(transaction));
+    }
+    this.current.set((FakeTransaction)transaction);
+  }
+
+  @Override
+  public final void setRollbackOnly() {
+    this.getActiveTransaction().setRollbackOnly();
+  }
+
+  @Override
+  public final void setTransactionTimeout(final int seconds) {
+
+  }
+
+  @Override
+  public final Object getTransactionKey() {
+    return this.current.get();
+  }
+
+  @Override
+  public final void putResource(final Object key, final Object value) {
+    this.getActiveTransaction().resources.put(key, value);
+  }
+
+  @Override
+  public final Object getResource(final Object key) {
+    return this.getActiveTransaction().resources.get(key);
+  }
+
+  @Override
+  public final void registerInterposedSynchronization(final Synchronization synchronization) {
+    final FakeTransaction transaction = this.getActiveTransaction();
+    if (this.failNextSynchronizationRegistration) {
+      this.failNextSynchronizationRegistration = false;
+      throw new IllegalStateException("synchronization registration failed");
+    }
+    transaction.synchronizations.add(synchronization);
+  }
+
+  @Override
+  public final int getTransactionStatus() {
+    return this.getStatus();
+  }
+
+  @Override
+  public final boolean getRollbackOnly() {
+    return this.getActiveTransaction().getStatus() == Status.STATUS_MARKED_ROLLBACK;
+  }
+
+  private final FakeTransaction getActiveTransaction() {
+    final FakeTransaction returnValue = this.current.get();
+    if (returnValue == null) {
+      throw new IllegalStateException("No transaction is associated with " + Thread.currentThread());
+    }
+    return returnValue;
+  }
+
+  private final class FakeTransaction implements Transaction {
+
+    private final Map<Object, Object> resources;
+
+    private final List<Synchronization> synchronizations;
+
+    private int status;
+
+    private FakeTransaction() {
+      super();
+      this.resources = new HashMap<>();
+      this.synchronizations = new ArrayList<>();
+      this.status = Status.STATUS_ACTIVE;
+    }
+
+    @Override
+    public final void commit() throws RollbackException {
+      if (this.status == Status.STATUS_MARKED_ROLLBACK) {
+        this.rollback();
+        throw new RollbackException();
+      }
+      for (final Synchronization synchronization : this.synchronizations) {
+        synchronization.beforeCompletion();
+      }
+      this.complete(Status.STATUS_COMMITTED);
+      committed.incrementAndGet();
+    }
+
+    @Override
+    public final void rollback() {
+      this.complete(Status.STATUS_ROLLEDBACK);
+      rolledBack.incrementAndGet();
+    }
+
+    private final void complete(final int status) {
+      this.status = status;
+      for (final Synchronization synchronization : this.synchronizations) {
+        synchronization.afterCompletion(status);
+      }
+    }
+
+    @Override
+    public final boolean delistResource(final XAResource resource, final int flag) {
+      return true;
+    }
+
+    @Override
+    public final boolean enlistResource(final XAResource resource) {
+      return true;
+    }
+
+    @Override
+    public final int getStatus() {
+      return this.status;
+    }
+
+    @Override
+    public final void registerSynchronization(final Synchronization synchronization) {
+      this.synchronizations.add(synchronization);
+    }
+
+    @Override
+    public final void setRollbackOnly() {
+      this.status = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+  }
+
+}
@@ -0,0 +1,122 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.List;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestBulkEntityManagerHandler {
+
+  private FakeTransactionManager tm;
+
+  private FakePersistence.FakeEntityManager delegate;
+
+  private List<Integer> flushed;
+
+  private EntityManager em;
+
+  public TestBulkEntityManagerHandler() {
+    super();
+  }
+
+  @Before
+  public void createEntityManager() {
+    this.tm = new FakeTransactionManager();
+    final FakePersistence.Provider provider = new FakePersistence.Provider(this.tm);
+    provider.createContainerEntityManagerFactory(null, null).createEntityManager();
+    this.delegate = provider.entityManagers.get(0);
+    this.flushed = new CopyOnWriteArrayList<>();
+    this.em = BulkEntityManagerHandler.newProxy(this.delegate.proxy, 3, "test", new JpaInjectionServicesMetrics() {
+        @Override
+        public final void entitiesFlushed(final String persistenceUnitName, final int count, final long nanos) {
+          flushed.add(count);
+        }
+      });
+  }
+
+  @Test
+  public void testFlushedAndClearedEveryNWrites() throws Exception {
+    this.tm.begin();
+    try {
+      this.delegate.proxy.joinTransaction();
+      for (int i = 0; i < 7; i++) {
+        this.em.persist(new Person());
+      }
+      this.em.merge(new Person());
+      this.em.remove(new Person());
+      // Nine writes in all: three windows of three.
+      assertEquals(3, this.delegate.flushes.get());
+      assertEquals(3, this.delegate.clears.get());
+      assertEquals(3, this.flushed.size());
+      for (final Integer count : this.flushed) {
+        assertEquals(3, count.intValue());
+      }
+      assertEquals(0, this.delegate.managed.size());
+    } finally {
+      this.tm.commit();
+    }
+  }
+
+  @Test
+  public void testExplicitFlushStartsANewWindow() throws Exception {
+    this.tm.begin();
+    try {
+      this.delegate.proxy.joinTransaction();
+      this.em.persist(new Person());
+      this.em.persist(new Person());
+      this.em.flush();
+      assertEquals(1, this.delegate.flushes.get());
+      this.em.persist(new Person());
+      this.em.persist(new Person());
+      assertEquals(1, this.delegate.flushes.get());
+      this.em.clear();
+      this.em.persist(new Person());
+      this.em.persist(new Person());
+      assertEquals(1, this.delegate.flushes.get());
+      this.em.persist(new Person());
+      assertEquals(2, this.delegate.flushes.get());
+      assertEquals(1, this.flushed.size());
+    } finally {
+      this.tm.commit();
+    }
+  }
+
+  @Test
+  public void testNothingIsDiscardedOutsideATransaction() {
+    for (int i = 0; i < 4; i++) {
+      this.em.persist(new Person());
+    }
+    assertEquals(0, this.delegate.flushes.get());
+    assertEquals(0, this.delegate.clears.get());
+    assertEquals(4, this.delegate.managed.size());
+    assertEquals(0, this.flushed.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIntervalMustBePositive() {
+    BulkEntityManagerHandler.newProxy(this.delegate.proxy, 0, "test", null);
+  }
+
+}
@@ -0,0 +1,106 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestContainerIsolation {
+
+  private static final String SESSION_NAME = "eclipselink.session-name";
+
+  @PersistenceContext(unitName = "test")
+  private EntityManager em;
+
+  private FakeContainer first;
+
+  private FakeContainer second;
+
+  public TestContainerIsolation() {
+    super();
+  }
+
+  @Before
+  public void startContainers() {
+    this.first = new FakeContainer(PersistenceProvider.class, "test");
+    this.second = new FakeContainer(PersistenceProvider.class, "test");
+  }
+
+  @After
+  public void stopContainers() {
+    if (this.first != null) {
+      this.first.close();
+    }
+    if (this.second != null) {
+      this.second.close();
+    }
+  }
+
+  @Test
+  public void testClosingOneContainerLeavesTheOtherUsable() throws Exception {
+    final ResourceReference<EntityManager> firstReference = newReference(this.first);
+    final ResourceReference<EntityManager> secondReference = newReference(this.second);
+    final EntityManager firstEm = firstReference.getInstance();
+    final EntityManager secondEm = secondReference.getInstance();
+    final EntityManagerFactory firstEmf = firstEm.getEntityManagerFactory();
+    final EntityManagerFactory secondEmf = secondEm.getEntityManagerFactory();
+
+    // EclipseLink's session registry is JVM-wide, so the two
+    // containers' persistence units must not share a session name.
+    final Object firstSessionName = this.first.provider.properties.get(0).get(SESSION_NAME);
+    final Object secondSessionName = this.second.provider.properties.get(0).get(SESSION_NAME);
+    assertNotNull(firstSessionName);
+    assertNotNull(secondSessionName);
+    assertNotEquals(firstSessionName, secondSessionName);
+
+    firstReference.release();
+    this.first.close();
+    this.first = null;
+    assertFalse(firstEmf.isOpen());
+
+    assertTrue(secondEmf.isOpen());
+    this.second.tm.begin();
+    try {
+      secondEm.persist(new Person());
+      assertTrue(secondEm.isJoinedToTransaction());
+    } finally {
+      this.second.tm.commit();
+    }
+    secondReference.release();
+    assertTrue(secondEmf.isOpen());
+  }
+
+  private static final ResourceReference<EntityManager> newReference(final FakeContainer container) {
+    return container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestContainerIsolation.class, "em"))
+      .createResource();
+  }
+
+}
@@ -0,0 +1,100 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCrossThreadEnlistment {
+
+  @PersistenceContext(unitName = "test")
+  private EntityManager em;
+
+  private FakeContainer container;
+
+  public TestCrossThreadEnlistment() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = new FakeContainer("test");
+  }
+
+  @After
+  public void stopContainer() {
+    this.container.close();
+  }
+
+  @Test
+  public void testEntityManagerAcquiredOnAnotherThreadIsEnlisted() throws Exception {
+    final ResourceReference<EntityManager> reference =
+      this.container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestCrossThreadEnlistment.class,
+                                                                                                      "em"))
+      .createResource();
+
+    // Thread A: acquire the EntityManager, as a bean created at
+    // startup would.
+    final ExecutorService threadA = Executors.newSingleThreadExecutor();
+    final EntityManager em;
+    try {
+      em = threadA.submit(reference::getInstance).get();
+    } finally {
+      threadA.shutdown();
+    }
+    assertEquals(1, this.container.provider.entityManagers.size());
+    final FakePersistence.FakeEntityManager delegate = this.container.provider.entityManagers.get(0);
+
+    // Thread B (this one): use it in two successive transactions.
+    for (int i = 1; i <= 2; i++) {
+      this.container.tm.begin();
+      try {
+        this.container.services.jtaTransactionBegun();
+        assertFalse(delegate.proxy.isJoinedToTransaction());
+        em.persist(new Person());
+        assertTrue(delegate.proxy.isJoinedToTransaction());
+        em.persist(new Person());
+        em.flush();
+        assertEquals(i, delegate.joins.get());
+      } finally {
+        this.container.tm.commit();
+      }
+    }
+
+    // Outside a transaction nothing is joined.
+    em.persist(new Person());
+    assertEquals(2, delegate.joins.get());
+
+    assertEquals(1, this.container.services.getLiveEntityManagerCount());
+    reference.release();
+    assertEquals(0, this.container.services.getLiveEntityManagerCount());
+  }
+
+}
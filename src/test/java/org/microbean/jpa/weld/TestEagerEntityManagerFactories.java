@@ -0,0 +1,94 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestEagerEntityManagerFactories {
+
+  private FakeContainer container;
+
+  public TestEagerEntityManagerFactories() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = new FakeContainer("bad", "good");
+  }
+
+  @After
+  public void stopContainer() {
+    this.container.close();
+  }
+
+  @Test
+  public void testAllCreated() {
+    this.container.services.createEntityManagerFactories(Arrays.asList(this.container.getPersistenceUnitInfo("bad"),
+                                                                       this.container.getPersistenceUnitInfo("good")));
+    assertEquals(2, this.container.provider.created.size());
+    for (final EntityManagerFactory emf : this.container.provider.created) {
+      assertTrue(emf.isOpen());
+    }
+  }
+
+  @Test
+  public void testFailureLeavesNoPendingCreation() {
+    this.container.provider.failing.add("bad");
+    // One thread, so that "good" is still queued, or at most being
+    // created, when "bad" fails.
+    System.setProperty(JpaInjectionServices.EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME, "1");
+    try {
+      this.container.services.createEntityManagerFactories(Arrays.asList(this.container.getPersistenceUnitInfo("bad"),
+                                                                         this.container.getPersistenceUnitInfo("good")));
+      fail();
+    } catch (final PersistenceException expected) {
+      assertEquals("Cannot create bad", expected.getMessage());
+    } finally {
+      System.clearProperty(JpaInjectionServices.EAGER_ENTITY_MANAGER_FACTORIES_PARALLELISM_PROPERTY_NAME);
+    }
+
+    // Whether or not "good" was created before startup gave up on it,
+    // it can be used afterwards, and no other EntityManagerFactory
+    // for it was left open.
+    final ResourceReference<EntityManagerFactory> reference =
+      this.container.services.createEntityManagerFactoryReference(this.container.getPersistenceUnitInfo("good"));
+    final EntityManagerFactory emf = reference.getInstance();
+    assertTrue(emf.isOpen());
+    for (final EntityManagerFactory created : this.container.provider.created) {
+      if (created.isOpen()) {
+        assertSame(emf, created);
+      }
+    }
+    reference.release();
+  }
+
+}
@@ -0,0 +1,109 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestEnlistingEntityManagerHandler {
+
+  private FakeTransactionManager tm;
+
+  private FakePersistence.FakeEntityManager delegate;
+
+  private AtomicInteger enlistments;
+
+  private EntityManager em;
+
+  public TestEnlistingEntityManagerHandler() {
+    super();
+  }
+
+  @Before
+  public void createEntityManager() {
+    this.tm = new FakeTransactionManager();
+    final FakePersistence.Provider provider = new FakePersistence.Provider(this.tm);
+    provider.createContainerEntityManagerFactory(null, null).createEntityManager();
+    this.delegate = provider.entityManagers.get(0);
+    this.enlistments = new AtomicInteger();
+    this.em = EnlistingEntityManagerHandler.newProxy(this.delegate.proxy, "test", () -> this.tm, new JpaInjectionServicesMetrics() {
+        @Override
+        public final void entityManagerEnlisted(final String persistenceUnitName, final long nanos) {
+          enlistments.incrementAndGet();
+        }
+      });
+  }
+
+  @Test
+  public void testEnlistedOncePerTransaction() throws Exception {
+    for (int i = 1; i <= 3; i++) {
+      this.tm.begin();
+      this.em.persist(new Person());
+      this.em.merge(new Person());
+      this.em.flush();
+      this.tm.commit();
+      assertEquals(i, this.delegate.joins.get());
+      assertEquals(i, this.enlistments.get());
+    }
+  }
+
+  @Test
+  public void testIntrospectionDoesNotEnlist() throws Exception {
+    this.tm.begin();
+    try {
+      assertFalse(this.em.isJoinedToTransaction());
+      this.em.getProperties();
+      this.em.getFlushMode();
+      this.em.isOpen();
+      this.em.getEntityManagerFactory();
+      assertEquals(0, this.delegate.joins.get());
+      this.em.find(Person.class, 1L);
+      assertEquals(1, this.delegate.joins.get());
+    } finally {
+      this.tm.rollback();
+    }
+  }
+
+  @Test
+  public void testExplicitJoinIsNotRepeated() throws Exception {
+    this.tm.begin();
+    try {
+      this.em.joinTransaction();
+      this.em.persist(new Person());
+      this.em.flush();
+      assertEquals(1, this.delegate.joins.get());
+      assertEquals(0, this.enlistments.get());
+    } finally {
+      this.tm.commit();
+    }
+  }
+
+  @Test
+  public void testNotEnlistedOutsideATransaction() {
+    this.em.persist(new Person());
+    this.em.find(Person.class, 1L);
+    assertEquals(0, this.delegate.joins.get());
+  }
+
+}
@@ -0,0 +1,176 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Properties;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestEntityManagerFactoryBootstrap {
+
+  private FakeContainer container;
+
+  private Properties properties;
+
+  private AtomicInteger attempts;
+
+  public TestEntityManagerFactoryBootstrap() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = new FakeContainer("test");
+    this.properties = this.container.getPersistenceUnitInfo("test").getProperties();
+    this.attempts = new AtomicInteger();
+    this.container.provider.beforeCreation = this.attempts::incrementAndGet;
+  }
+
+  @After
+  public void stopContainer() {
+    this.container.close();
+  }
+
+  @Test
+  public void testTimedOutBootstrap() throws Exception {
+    this.properties.setProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_TIMEOUT_PROPERTY_NAME, "50");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    this.container.provider.beforeCreation = () -> {
+      this.attempts.incrementAndGet();
+      started.countDown();
+      await(proceed);
+    };
+    final ResourceReference<EntityManagerFactory> slowReference = this.newReference();
+    final ResourceReference<EntityManagerFactory> impatientReference = this.newReference();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<EntityManagerFactory> slow = executor.submit(slowReference::getInstance);
+      assertTrue(started.await(10L, TimeUnit.SECONDS));
+      final EntityManagerFactoryUnavailableException exception = assertUnavailable(impatientReference);
+      assertTrue(exception.getCause() instanceof TimeoutException);
+
+      // The timed-out wait did not cancel creation, which goes on to
+      // succeed for everyone.
+      proceed.countDown();
+      final EntityManagerFactory emf = slow.get(10L, TimeUnit.SECONDS);
+      assertTrue(emf.isOpen());
+      assertSame(emf, impatientReference.getInstance());
+      assertEquals(1, this.attempts.get());
+    } finally {
+      proceed.countDown();
+      executor.shutdown();
+    }
+    impatientReference.release();
+    slowReference.release();
+  }
+
+  @Test
+  public void testFailedBootstrapSetsBackoff() {
+    this.properties.setProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME, "60000");
+    this.container.provider.failing.add("test");
+    final ResourceReference<EntityManagerFactory> reference = this.newReference();
+    final EntityManagerFactoryUnavailableException exception = assertUnavailable(reference);
+    assertEquals("Cannot create test", exception.getCause().getMessage());
+    assertEquals(1, this.attempts.get());
+
+    // Even though creation would now succeed, it is not attempted
+    // again until the backoff has passed.
+    this.container.provider.failing.remove("test");
+    assertUnavailable(reference);
+    assertUnavailable(this.newReference());
+    assertEquals(1, this.attempts.get());
+    assertTrue(this.container.provider.created.isEmpty());
+  }
+
+  @Test
+  public void testBackoffFailsWithTypedException() {
+    this.properties.setProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME, "60000");
+    this.container.provider.failing.add("test");
+    final ResourceReference<EntityManagerFactory> reference = this.newReference();
+    final Throwable originalFailure = assertUnavailable(reference).getCause();
+    final EntityManagerFactoryUnavailableException exception = assertUnavailable(reference);
+    // It carries the original failure, and says when a retry will
+    // happen.
+    assertSame(originalFailure, exception.getCause());
+    assertTrue(exception.getCause() instanceof PersistenceException);
+    assertTrue(exception.getMessage(), exception.getMessage().contains("1 consecutive time(s)"));
+    assertEquals(1, this.attempts.get());
+  }
+
+  @Test
+  public void testRetrySucceedsOnceBackoffHasPassed() throws InterruptedException {
+    this.properties.setProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_RETRY_BACKOFF_PROPERTY_NAME, "50");
+    this.container.provider.failing.add("test");
+    final ResourceReference<EntityManagerFactory> reference = this.newReference();
+    assertUnavailable(reference);
+    this.container.provider.failing.remove("test");
+    assertUnavailable(reference);
+    assertEquals(1, this.attempts.get());
+    Thread.sleep(100L);
+    final EntityManagerFactory emf = reference.getInstance();
+    assertTrue(emf.isOpen());
+    assertEquals(2, this.attempts.get());
+    assertSame(emf, this.container.provider.created.get(0));
+    reference.release();
+  }
+
+  private final ResourceReference<EntityManagerFactory> newReference() {
+    return this.container.services.createEntityManagerFactoryReference(this.container.getPersistenceUnitInfo("test"));
+  }
+
+  private static final EntityManagerFactoryUnavailableException assertUnavailable(final ResourceReference<EntityManagerFactory> reference) {
+    try {
+      reference.getInstance();
+      fail();
+    } catch (final EntityManagerFactoryUnavailableException expected) {
+      assertEquals("test", expected.getPersistenceUnitName());
+      return expected;
+    }
+    throw new AssertionError();
+  }
+
+  private static final void await(final CountDownLatch latch) {
+    try {
+      latch.await(10L, TimeUnit.SECONDS);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,152 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEntityManagerFactoryHandle {
+
+  private EntityManagerFactory emf;
+
+  private EntityManagerFactoryHandle handle;
+
+  public TestEntityManagerFactoryHandle() {
+    super();
+  }
+
+  @Before
+  public void createHandle() {
+    this.emf = new FakePersistence.Provider().createContainerEntityManagerFactory(null, null);
+    this.handle = new EntityManagerFactoryHandle(this.emf);
+  }
+
+  @Test
+  public void testLeaseCounting() {
+    assertSame(this.emf, this.handle.get());
+    assertTrue(this.handle.isIdle());
+    assertFalse(this.handle.hasBeenLeased());
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(this.handle.acquire());
+      assertEquals(i, this.handle.leases());
+      assertFalse(this.handle.isIdle());
+    }
+    for (int i = 2; i >= 0; i--) {
+      assertFalse(this.handle.release());
+      assertEquals(i, this.handle.leases());
+    }
+    assertTrue(this.handle.isIdle());
+    assertTrue(this.handle.hasBeenLeased());
+    assertFalse(this.handle.isRetired());
+  }
+
+  @Test
+  public void testRetireWhileIdle() {
+    assertTrue(this.handle.retire());
+    assertTrue(this.handle.isRetired());
+    assertFalse(this.handle.acquire());
+    // Only the first retirement counts.
+    assertFalse(this.handle.retire());
+    assertEquals(0, this.handle.leases());
+  }
+
+  @Test
+  public void testRetireWhileLeased() {
+    assertTrue(this.handle.acquire());
+    assertTrue(this.handle.acquire());
+    // The caller must not close the EntityManagerFactory yet...
+    assertFalse(this.handle.retire());
+    assertTrue(this.handle.isRetired());
+    assertFalse(this.handle.acquire());
+    assertEquals(2, this.handle.leases());
+    assertFalse(this.handle.release());
+    // ...but whoever releases the last lease must.
+    assertTrue(this.handle.release());
+    assertEquals(0, this.handle.leases());
+    assertTrue(this.emf.isOpen());
+  }
+
+  @Test
+  public void testRetireIfIdle() {
+    final long idleSince = this.handle.getIdleSince();
+    assertFalse(this.handle.retireIfIdle(idleSince + 10L, 100L));
+    assertTrue(this.handle.acquire());
+    assertFalse(this.handle.retireIfIdle(idleSince + 1000L, 100L));
+    assertFalse(this.handle.release());
+    final long releasedAt = this.handle.getIdleSince();
+    assertTrue(releasedAt >= idleSince);
+    assertTrue(this.handle.retireIfIdle(releasedAt + 100L, 100L));
+    assertTrue(this.handle.isRetired());
+    assertFalse(this.handle.acquire());
+  }
+
+  @Test
+  public void testClose() {
+    assertTrue(this.handle.acquire());
+    this.handle.close();
+    assertTrue(this.handle.isRetired());
+    assertFalse(this.emf.isOpen());
+    assertFalse(this.handle.acquire());
+    // Closing again does not close the EntityManagerFactory again.
+    this.handle.close();
+  }
+
+  @Test
+  public void testConcurrentLeases() throws Exception {
+    final int threads = 4;
+    final int iterations = 10000;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final Callable<Boolean> task = () -> {
+        boolean sawLastRelease = false;
+        for (int i = 0; i < iterations; i++) {
+          if (this.handle.acquire()) {
+            sawLastRelease |= this.handle.release();
+          }
+        }
+        return sawLastRelease;
+      };
+      final List<Future<Boolean>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(task));
+      }
+      for (final Future<Boolean> future : futures) {
+        assertFalse(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(0, this.handle.leases());
+    assertTrue(this.handle.retire());
+  }
+
+}
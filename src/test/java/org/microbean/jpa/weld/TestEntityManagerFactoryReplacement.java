@@ -0,0 +1,130 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+import org.jboss.weld.injection.spi.ResourceReferenceFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEntityManagerFactoryReplacement {
+
+  private static final String SESSION_NAME = "eclipselink.session-name";
+
+  @PersistenceContext(unitName = "test")
+  private EntityManager em;
+
+  private FakeContainer container;
+
+  public TestEntityManagerFactoryReplacement() {
+    super();
+  }
+
+  @After
+  public void stopContainer() {
+    if (this.container != null) {
+      this.container.close();
+    }
+  }
+
+  @Test
+  public void testBothGenerationsRemainUsable() throws Exception {
+    this.container = new FakeContainer(PersistenceProvider.class, "test");
+    final ResourceReferenceFactory<EntityManager> factory =
+      this.container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestEntityManagerFactoryReplacement.class,
+                                                                                                      "em"));
+    final ResourceReference<EntityManager> oldReference = factory.createResource();
+    final EntityManager oldEm = oldReference.getInstance();
+
+    this.container.services.replaceEntityManagerFactory("test").toCompletableFuture().get(10L, TimeUnit.SECONDS);
+
+    final ResourceReference<EntityManager> newReference = factory.createResource();
+    final EntityManager newEm = newReference.getInstance();
+
+    final List<EntityManagerFactory> emfs = this.container.provider.created;
+    assertEquals(2, emfs.size());
+    assertSame(emfs.get(0), oldEm.getEntityManagerFactory());
+    assertSame(emfs.get(1), newEm.getEntityManagerFactory());
+
+    // Each generation gets a session of its own.
+    final List<Map<?, ?>> properties = this.container.provider.properties;
+    assertTrue(String.valueOf(properties.get(0).get(SESSION_NAME)).startsWith("test-"));
+    final Object sessionName = properties.get(1).get(SESSION_NAME);
+    assertNotNull(sessionName);
+    assertTrue(String.valueOf(sessionName).startsWith("test-"));
+    assertNotEquals(properties.get(0).get(SESSION_NAME), sessionName);
+
+    // EntityManagers from both generations work side by side.
+    this.container.tm.begin();
+    try {
+      oldEm.persist(new Person());
+      newEm.persist(new Person());
+      assertTrue(oldEm.isJoinedToTransaction());
+      assertTrue(newEm.isJoinedToTransaction());
+    } finally {
+      this.container.tm.commit();
+    }
+
+    // The old EntityManagerFactory is closed only once its last
+    // EntityManager has been released.
+    assertTrue(emfs.get(0).isOpen());
+    oldReference.release();
+    assertFalse(emfs.get(0).isOpen());
+    assertTrue(emfs.get(1).isOpen());
+
+    // A further replacement gets yet another session name.
+    this.container.services.replaceEntityManagerFactory("test").toCompletableFuture().get(10L, TimeUnit.SECONDS);
+    assertEquals(3, emfs.size());
+    assertNotEquals(sessionName, properties.get(2).get(SESSION_NAME));
+    newReference.release();
+    assertFalse(emfs.get(1).isOpen());
+  }
+
+  @Test
+  public void testOtherProvidersKeepTheirConfiguration() throws Exception {
+    this.container = new FakeContainer("test");
+    final ResourceReference<EntityManagerFactory> reference =
+      this.container.services.createEntityManagerFactoryReference(this.container.getPersistenceUnitInfo("test"));
+    assertNotNull(reference.getInstance());
+    this.container.services.replaceEntityManagerFactory("test").toCompletableFuture().get(10L, TimeUnit.SECONDS);
+    final List<Map<?, ?>> properties = this.container.provider.properties;
+    assertEquals(2, properties.size());
+    assertNull(properties.get(1).get(SESSION_NAME));
+    reference.release();
+  }
+
+}
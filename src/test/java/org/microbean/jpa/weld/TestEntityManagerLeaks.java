@@ -0,0 +1,97 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceProperty;
+import javax.persistence.PersistenceUnit;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+import org.jboss.weld.injection.spi.ResourceReferenceFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestEntityManagerLeaks {
+
+  @PersistenceContext(unitName = "test",
+                      properties = @PersistenceProperty(name = JpaInjectionServices.READ_ONLY_PROPERTY_NAME, value = "true"))
+  private EntityManager readOnlyEm;
+
+  @PersistenceContext(unitName = "other")
+  private EntityManager otherEm;
+
+  @PersistenceUnit(unitName = "test")
+  private EntityManagerFactory emf;
+
+  private FakeContainer container;
+
+  public TestEntityManagerLeaks() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = new FakeContainer("test", "other");
+    this.container.provider.retainEntityManagers = false;
+  }
+
+  @After
+  public void stopContainer() {
+    this.container.close();
+  }
+
+  @Test
+  public void testLeakedReadOnlyEntityManagerReleasesItsLease() {
+    final ResourceReference<EntityManagerFactory> emfReference =
+      this.container.services.registerPersistenceUnitInjectionPoint(FakeContainer.newInjectionPoint(TestEntityManagerLeaks.class,
+                                                                                                    "emf"))
+      .createResource();
+    final EntityManagerFactory emf = emfReference.getInstance();
+    acquireAndDrop(this.container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestEntityManagerLeaks.class,
+                                                                                                                     "readOnlyEm")));
+    // Releasing the EntityManagerFactory reference retires the
+    // factory; it is closed once no lease on it remains.
+    emfReference.release();
+    assertTrue(emf.isOpen());
+    final ResourceReferenceFactory<EntityManager> otherFactory =
+      this.container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestEntityManagerLeaks.class,
+                                                                                                      "otherEm"));
+    for (int i = 0; i < 100 && emf.isOpen(); i++) {
+      System.gc();
+      // Any use of the registry notices the leak.
+      final ResourceReference<EntityManager> otherReference = otherFactory.createResource();
+      assertNotNull(otherReference.getInstance());
+      otherReference.release();
+    }
+    assertFalse(emf.isOpen());
+  }
+
+  private static final void acquireAndDrop(final ResourceReferenceFactory<EntityManager> factory) {
+    // Kept in its own frame so that nothing on the caller's stack
+    // refers to the EntityManager once this method returns.
+    assertNotNull(factory.createResource().getInstance());
+  }
+
+}
@@ -0,0 +1,158 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEntityManagerPool {
+
+  private FakePersistence.Provider provider;
+
+  private EntityManagerFactory emf;
+
+  public TestEntityManagerPool() {
+    super();
+  }
+
+  @Before
+  public void createEntityManagerFactory() {
+    this.provider = new FakePersistence.Provider();
+    this.emf = this.provider.createContainerEntityManagerFactory(null, null);
+  }
+
+  @Test
+  public void testHandOut() {
+    final EntityManagerPool pool = new EntityManagerPool(2, 0L, TimeUnit.MILLISECONDS);
+    assertTrue(pool.isEnabled());
+    assertNull(pool.poll(this.emf));
+
+    final EntityManager em = this.emf.createEntityManager();
+    final FakePersistence.FakeEntityManager delegate = this.provider.entityManagers.get(0);
+    em.persist(new Person());
+    em.setFlushMode(FlushModeType.COMMIT);
+    assertTrue(pool.offer(this.emf, em, FlushModeType.AUTO));
+    assertEquals(1, pool.size());
+    // It comes back cleared, with its original flush mode.
+    assertEquals(1, delegate.clears.get());
+    assertTrue(delegate.managed.isEmpty());
+    assertEquals(FlushModeType.AUTO, em.getFlushMode());
+
+    assertSame(em, pool.poll(this.emf));
+    assertEquals(0, pool.size());
+    assertNull(pool.poll(this.emf));
+    assertTrue(em.isOpen());
+  }
+
+  @Test
+  public void testMostRecentlyReturnedFirst() {
+    final EntityManagerPool pool = new EntityManagerPool(2, 0L, TimeUnit.MILLISECONDS);
+    final EntityManager first = this.emf.createEntityManager();
+    final EntityManager second = this.emf.createEntityManager();
+    assertTrue(pool.offer(this.emf, first, null));
+    assertTrue(pool.offer(this.emf, second, null));
+    assertSame(second, pool.poll(this.emf));
+    assertSame(first, pool.poll(this.emf));
+  }
+
+  @Test
+  public void testRefused() {
+    final EntityManagerPool pool = new EntityManagerPool(1, 0L, TimeUnit.MILLISECONDS);
+
+    final EntityManager inTransaction = this.emf.createEntityManager();
+    inTransaction.getTransaction().begin();
+    assertFalse(pool.offer(this.emf, inTransaction, null));
+
+    final EntityManager closed = this.emf.createEntityManager();
+    closed.close();
+    assertFalse(pool.offer(this.emf, closed, null));
+
+    assertTrue(pool.offer(this.emf, this.emf.createEntityManager(), null));
+    // The pool is full.
+    assertFalse(pool.offer(this.emf, this.emf.createEntityManager(), null));
+    assertEquals(1, pool.size());
+
+    final EntityManagerPool disabled = new EntityManagerPool(0, 0L, TimeUnit.MILLISECONDS);
+    assertFalse(disabled.isEnabled());
+    assertFalse(disabled.offer(this.emf, this.emf.createEntityManager(), null));
+    assertNull(disabled.poll(this.emf));
+  }
+
+  @Test
+  public void testOtherEntityManagerFactoriesAreNotServed() {
+    final EntityManagerPool pool = new EntityManagerPool(2, 0L, TimeUnit.MILLISECONDS);
+    final EntityManager em = this.emf.createEntityManager();
+    assertTrue(pool.offer(this.emf, em, null));
+    final EntityManagerFactory other = this.provider.createContainerEntityManagerFactory(null, null);
+    assertNull(pool.poll(other));
+    // An idle EntityManager skipped over this way is discarded.
+    assertFalse(em.isOpen());
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testIdleExpiry() throws InterruptedException {
+    final EntityManagerPool pool = new EntityManagerPool(2, 50L, TimeUnit.MILLISECONDS);
+    final EntityManager stale = this.emf.createEntityManager();
+    assertTrue(pool.offer(this.emf, stale, null));
+    Thread.sleep(200L);
+    final EntityManager fresh = this.emf.createEntityManager();
+    // Offering evicts, before adding, whatever has been idle too long.
+    assertTrue(pool.offer(this.emf, fresh, null));
+    assertFalse(stale.isOpen());
+    assertEquals(1, pool.size());
+    assertSame(fresh, pool.poll(this.emf));
+
+    assertTrue(pool.offer(this.emf, fresh, null));
+    Thread.sleep(200L);
+    assertNull(pool.poll(this.emf));
+    assertFalse(fresh.isOpen());
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testClear() {
+    final EntityManagerPool pool = new EntityManagerPool(3, 0L, TimeUnit.MILLISECONDS);
+    final EntityManagerFactory other = this.provider.createContainerEntityManagerFactory(null, null);
+    final EntityManager mine = this.emf.createEntityManager();
+    final EntityManager theirs = other.createEntityManager();
+    assertTrue(pool.offer(this.emf, mine, null));
+    assertTrue(pool.offer(other, theirs, null));
+
+    pool.clear(this.emf);
+    assertFalse(mine.isOpen());
+    assertTrue(theirs.isOpen());
+    assertEquals(1, pool.size());
+
+    pool.clear();
+    assertFalse(theirs.isOpen());
+    assertEquals(0, pool.size());
+  }
+
+}
@@ -0,0 +1,139 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.lang.reflect.Proxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEntityManagerRegistry {
+
+  private EntityManagerRegistry registry;
+
+  public TestEntityManagerRegistry() {
+    super();
+  }
+
+  @Before
+  public void createRegistry() {
+    this.registry = new EntityManagerRegistry();
+  }
+
+  @Test
+  public void testUnregister() {
+    final AtomicInteger leakActions = new AtomicInteger();
+    final EntityManager em = newEntityManager();
+    final EntityManagerRegistry.Registration registration = this.registry.register(em, "testUnregister", leakActions::incrementAndGet);
+    assertEquals(1, this.registry.size());
+    assertFalse(this.registry.isEmpty());
+    this.registry.unregister(registration);
+    assertTrue(this.registry.isEmpty());
+    // Unregistering twice has no further effect.
+    this.registry.unregister(registration);
+    assertEquals(0, this.registry.size());
+    assertEquals(0L, this.registry.leaked());
+    assertEquals(0, leakActions.get());
+  }
+
+  @Test
+  public void testClearIsNotALeak() {
+    final EntityManager em = newEntityManager();
+    this.registry.register(em);
+    this.registry.register(newEntityManager());
+    assertEquals(2, this.registry.size());
+    this.registry.clear();
+    assertEquals(0, this.registry.size());
+    awaitCollection();
+    assertEquals(0L, this.registry.leaked());
+  }
+
+  @Test
+  public void testLeakDetected() {
+    final AtomicInteger leakActions = new AtomicInteger();
+    final EntityManager kept = newEntityManager();
+    final EntityManagerRegistry.Registration keptRegistration = this.registry.register(kept);
+    registerAndDrop(this.registry, leakActions::incrementAndGet);
+    for (int i = 0; i < 100 && this.registry.leaked() == 0L; i++) {
+      awaitCollection();
+    }
+    assertEquals(1L, this.registry.leaked());
+    assertEquals(1, leakActions.get());
+    assertEquals(1, this.registry.size());
+    // A leak is reported, and its action run, only once.
+    assertEquals(1L, this.registry.leaked());
+    assertEquals(1, leakActions.get());
+    this.registry.unregister(keptRegistration);
+    assertTrue(this.registry.isEmpty());
+  }
+
+  @Test
+  public void testFailingLeakActionDoesNotStopExpunging() {
+    final AtomicInteger leakActions = new AtomicInteger();
+    registerAndDrop(this.registry, () -> {
+        leakActions.incrementAndGet();
+        throw new IllegalStateException();
+      });
+    registerAndDrop(this.registry, () -> {
+        leakActions.incrementAndGet();
+        throw new IllegalStateException();
+      });
+    for (int i = 0; i < 100 && this.registry.leaked() < 2L; i++) {
+      awaitCollection();
+    }
+    assertEquals(2L, this.registry.leaked());
+    assertEquals(2, leakActions.get());
+    assertTrue(this.registry.isEmpty());
+  }
+
+  private static final void registerAndDrop(final EntityManagerRegistry registry, final Runnable leakAction) {
+    // Kept in its own frame so that nothing on the caller's stack
+    // refers to the EntityManager once this method returns.
+    registry.register(newEntityManager(), "registerAndDrop", leakAction);
+  }
+
+  private static final EntityManager newEntityManager() {
+    return (EntityManager)Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                                                 new Class<?>[] { EntityManager.class },
+                                                 (proxy, method, arguments) -> {
+                                                   if (method.getName().equals("hashCode")) {
+                                                     return System.identityHashCode(proxy);
+                                                   } else if (method.getName().equals("equals")) {
+                                                     return proxy == arguments[0];
+                                                   }
+                                                   return null;
+                                                 });
+  }
+
+  private static final void awaitCollection() {
+    System.gc();
+    try {
+      Thread.sleep(10L);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,341 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.Executor;
+
+import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.BeforeBeanDiscovery;
+import javax.enterprise.inject.spi.DeploymentException;
+import javax.enterprise.inject.spi.ProcessManagedBean;
+
+import javax.inject.Named;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestJpaInjectionServicesExtension {
+
+  private Path root;
+
+  private List<Throwable> deploymentProblems;
+
+  private List<Throwable> definitionErrors;
+
+  private AfterDeploymentValidation event;
+
+  private BeanManager beanManager;
+
+  public TestJpaInjectionServicesExtension() {
+    super();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    this.root = Files.createTempDirectory(TestJpaInjectionServicesExtension.class.getSimpleName());
+    this.deploymentProblems = new ArrayList<>();
+    this.definitionErrors = new ArrayList<>();
+    this.event =
+      (AfterDeploymentValidation)Proxy.newProxyInstance(AfterDeploymentValidation.class.getClassLoader(),
+                                                        new Class<?>[] { AfterDeploymentValidation.class },
+                                                        (proxy, method, args) -> {
+        if ("addDeploymentProblem".equals(method.getName())) {
+          this.deploymentProblems.add((Throwable)args[0]);
+        }
+        return null;
+      });
+    // Only the "known" persistence unit has a PersistenceUnitInfo bean.
+    this.beanManager =
+      (BeanManager)Proxy.newProxyInstance(BeanManager.class.getClassLoader(),
+                                          new Class<?>[] { BeanManager.class },
+                                          (proxy, method, args) -> {
+        if ("getBeans".equals(method.getName()) && PersistenceUnitInfo.class.equals(args[0])) {
+          for (final Object qualifier : (Object[])args[1]) {
+            if (qualifier instanceof Named && "known".equals(((Named)qualifier).value())) {
+              return Collections.singleton(proxy);
+            }
+          }
+          return Collections.emptySet();
+        }
+        return null;
+      });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.walk(this.root)
+      .sorted(Collections.reverseOrder())
+      .map(Path::toFile)
+      .forEach(File::delete);
+  }
+
+  @Test
+  public void testUnknownPersistenceUnitsOfNonBeansAreNotDeploymentProblems() throws Exception {
+    this.writeIndex(new PersistenceInjectionPointIndex.Entry("PersistenceContext", "com.example.A", "em", "known",
+                                                             "SYNCHRONIZED", "TRANSACTION", null),
+                    new PersistenceInjectionPointIndex.Entry("PersistenceUnit", "com.example.Stale", "emf", "removed",
+                                                             null, null, null),
+                    new PersistenceInjectionPointIndex.Entry("PersistenceUnit", "com.example.B", "emf", "known",
+                                                             null, null, null));
+    final JpaInjectionServicesExtension extension = this.validate();
+    assertTrue(this.deploymentProblems.isEmpty());
+    assertTrue(this.definitionErrors.isEmpty());
+    assertEquals(Collections.singleton("known"), extension.getIndexedPersistenceUnitNames());
+  }
+
+  @Test
+  public void testUnknownPersistenceUnitsOfBeansAreDeploymentProblems() throws Exception {
+    this.writeIndex(new PersistenceInjectionPointIndex.Entry("PersistenceContext", BaseBean.class.getName(), "em", "removed",
+                                                             "SYNCHRONIZED", "TRANSACTION", null),
+                    new PersistenceInjectionPointIndex.Entry("PersistenceUnit", DerivedBean.class.getName(), "emf", "known",
+                                                             null, null, null),
+                    new PersistenceInjectionPointIndex.Entry("PersistenceUnit", "com.example.Stale", "emf", "missing",
+                                                             null, null, null));
+    // The injection point is inherited by a bean, so it is in use.
+    final JpaInjectionServicesExtension extension = this.validate(DerivedBean.class);
+    assertEquals(1, this.deploymentProblems.size());
+    assertTrue(this.deploymentProblems.get(0) instanceof DeploymentException);
+    assertTrue(this.deploymentProblems.get(0).getMessage().contains(BaseBean.class.getName() + "#em"));
+    assertEquals(Collections.singleton("known"), extension.getIndexedPersistenceUnitNames());
+  }
+
+  @Test
+  public void testMalformedIndexIsADefinitionError() throws Exception {
+    final Path index = this.root.resolve(PersistenceInjectionPointIndex.RESOURCE_NAME);
+    Files.createDirectories(index.getParent());
+    Files.write(index, Collections.singleton("PersistenceUnit\tcom.example.A"), StandardCharsets.UTF_8);
+    final JpaInjectionServicesExtension extension = this.validate();
+    assertEquals(1, this.definitionErrors.size());
+    assertTrue(this.definitionErrors.get(0) instanceof IllegalArgumentException);
+    assertTrue(this.deploymentProblems.isEmpty());
+    assertTrue(extension.getIndexedPersistenceUnitNames().isEmpty());
+  }
+
+  @Test
+  public void testIndexCanBeIgnored() throws Exception {
+    this.writeIndex(new PersistenceInjectionPointIndex.Entry("PersistenceUnit", "com.example.A", "emf", "known",
+                                                             null, null, null));
+    System.setProperty(JpaInjectionServices.PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME, "false");
+    final JpaInjectionServicesExtension extension;
+    try {
+      extension = this.validate();
+    } finally {
+      System.clearProperty(JpaInjectionServices.PERSISTENCE_INJECTION_POINT_INDEX_PROPERTY_NAME);
+    }
+    assertTrue(this.deploymentProblems.isEmpty());
+    assertTrue(this.definitionErrors.isEmpty());
+    assertTrue(extension.getIndexedPersistenceUnitNames().isEmpty());
+  }
+
+  @Test
+  public void testExecutorClassIsValidated() throws Exception {
+    this.validateExecutor(null);
+    assertTrue(this.deploymentProblems.isEmpty());
+    this.validateExecutor("common");
+    assertTrue(this.deploymentProblems.isEmpty());
+    this.validateExecutor(DirectExecutor.class.getName());
+    assertTrue(this.deploymentProblems.isEmpty());
+    assertEquals(0, DirectExecutor.instances);
+
+    this.validateExecutor(String.class.getName());
+    this.validateExecutor("com.example.NoSuchExecutor");
+    this.validateExecutor(ArgumentExecutor.class.getName());
+    assertEquals(3, this.deploymentProblems.size());
+    for (final Throwable problem : this.deploymentProblems) {
+      assertTrue(problem instanceof IllegalStateException);
+    }
+  }
+
+  private final void validateExecutor(final String value) throws Exception {
+    if (value == null) {
+      System.clearProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME);
+    } else {
+      System.setProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME, value);
+    }
+    try {
+      final Constructor<JpaInjectionServicesExtension> constructor = JpaInjectionServicesExtension.class.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      final Method method =
+        JpaInjectionServicesExtension.class.getDeclaredMethod("validateEntityManagerFactoryExecutor",
+                                                              AfterDeploymentValidation.class);
+      method.setAccessible(true);
+      method.invoke(constructor.newInstance(), this.event);
+    } finally {
+      System.clearProperty(JpaInjectionServices.ENTITY_MANAGER_FACTORY_EXECUTOR_PROPERTY_NAME);
+    }
+  }
+
+  private final void writeIndex(final PersistenceInjectionPointIndex.Entry... entries) throws IOException {
+    final Path index = this.root.resolve(PersistenceInjectionPointIndex.RESOURCE_NAME);
+    Files.createDirectories(index.getParent());
+    try (final Writer writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8)) {
+      PersistenceInjectionPointIndex.write(Arrays.asList(entries), writer);
+    }
+  }
+
+  /*
+   * Weld creates the extension and notifies its private observer
+   * methods reflectively, in the order of the container lifecycle;
+   * so does this method, with the index directory visible to the
+   * thread context class loader, and with the supplied classes as
+   * managed beans.
+   */
+  private final JpaInjectionServicesExtension validate(final Class<?>... beanClasses) throws Exception {
+    final Constructor<JpaInjectionServicesExtension> constructor = JpaInjectionServicesExtension.class.getDeclaredConstructor();
+    constructor.setAccessible(true);
+    final JpaInjectionServicesExtension extension = constructor.newInstance();
+    final Thread currentThread = Thread.currentThread();
+    final ClassLoader old = currentThread.getContextClassLoader();
+    try (final URLClassLoader classLoader = new URLClassLoader(new URL[] { this.root.toUri().toURL() }, null)) {
+      currentThread.setContextClassLoader(classLoader);
+      invoke(extension, "readPersistenceInjectionPointIndex", BeforeBeanDiscovery.class, newEvent(BeforeBeanDiscovery.class));
+    } finally {
+      currentThread.setContextClassLoader(old);
+    }
+    for (final Class<?> beanClass : beanClasses) {
+      final AnnotatedType<?> annotatedType =
+        (AnnotatedType<?>)Proxy.newProxyInstance(AnnotatedType.class.getClassLoader(),
+                                                 new Class<?>[] { AnnotatedType.class },
+                                                 (proxy, method, args) -> "getJavaClass".equals(method.getName()) ? beanClass : null);
+      final ProcessManagedBean<?> event =
+        (ProcessManagedBean<?>)Proxy.newProxyInstance(ProcessManagedBean.class.getClassLoader(),
+                                                      new Class<?>[] { ProcessManagedBean.class },
+                                                      (proxy, method, args) -> "getAnnotatedBeanClass".equals(method.getName()) ? annotatedType : null);
+      invoke(extension, "processManagedBean", ProcessManagedBean.class, event);
+    }
+    final AfterBeanDiscovery afterBeanDiscovery =
+      (AfterBeanDiscovery)Proxy.newProxyInstance(AfterBeanDiscovery.class.getClassLoader(),
+                                                 new Class<?>[] { AfterBeanDiscovery.class },
+                                                 (proxy, method, args) -> {
+        if ("addDefinitionError".equals(method.getName())) {
+          this.definitionErrors.add((Throwable)args[0]);
+        }
+        return null;
+      });
+    final Method method =
+      JpaInjectionServicesExtension.class.getDeclaredMethod("afterBeanDiscovery", AfterBeanDiscovery.class, BeanManager.class);
+    method.setAccessible(true);
+    method.invoke(extension, afterBeanDiscovery, this.beanManager);
+    final Method validate =
+      JpaInjectionServicesExtension.class.getDeclaredMethod("validatePersistenceUnitNames",
+                                                            AfterDeploymentValidation.class,
+                                                            BeanManager.class);
+    validate.setAccessible(true);
+    validate.invoke(extension, this.event, this.beanManager);
+    return extension;
+  }
+
+  private static final <T> void invoke(final JpaInjectionServicesExtension extension,
+                                       final String methodName,
+                                       final Class<T> eventClass,
+                                       final T event) throws Exception {
+    final Method method = JpaInjectionServicesExtension.class.getDeclaredMethod(methodName, eventClass);
+    method.setAccessible(true);
+    try {
+      method.invoke(extension, event);
+    } catch (final InvocationTargetException invocationTargetException) {
+      final Throwable cause = invocationTargetException.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception)cause;
+      }
+      throw invocationTargetException;
+    }
+  }
+
+  private static final <T> T newEvent(final Class<T> eventClass) {
+    return eventClass.cast(Proxy.newProxyInstance(eventClass.getClassLoader(),
+                                                  new Class<?>[] { eventClass },
+                                                  (proxy, method, args) -> null));
+  }
+
+  public static class BaseBean {
+
+    public BaseBean() {
+      super();
+    }
+
+  }
+
+  public static final class DerivedBean extends BaseBean {
+
+    public DerivedBean() {
+      super();
+    }
+
+  }
+
+  public static final class DirectExecutor implements Executor {
+
+    private static volatile int instances;
+
+    public DirectExecutor() {
+      super();
+      instances++;
+    }
+
+    @Override
+    public final void execute(final Runnable runnable) {
+      runnable.run();
+    }
+
+  }
+
+  public static final class ArgumentExecutor implements Executor {
+
+    public ArgumentExecutor(final int ignored) {
+      super();
+    }
+
+    @Override
+    public final void execute(final Runnable runnable) {
+      runnable.run();
+    }
+
+  }
+
+}
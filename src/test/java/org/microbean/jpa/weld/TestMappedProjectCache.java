@@ -0,0 +1,167 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+
+import org.eclipse.persistence.sessions.Project;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappedProjectCache {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path file;
+
+  private Map<String, Object> properties;
+
+  public TestMappedProjectCache() {
+    super();
+  }
+
+  @Before
+  public void createProperties() throws IOException {
+    this.file = this.temporaryFolder.getRoot().toPath().resolve("test-0.project");
+    this.properties = new HashMap<>();
+    this.properties.put(MappedProjectCache.FILE_PROPERTY_NAME, this.file.toString());
+    this.properties.put(MappedProjectCache.MANAGED_CLASS_NAMES_PROPERTY_NAME, Person.class.getName());
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    new MappedProjectCache().storeProject(newProject(new Object[] { new int[] { 1 }, int.class, "a" }), this.properties, null);
+    final Project project = retrieve();
+    assertNotNull(project);
+    final Object[] value = (Object[])project.getDescriptor(Person.class).getProperty("value");
+    assertArrayEquals(new int[] { 1 }, (int[])value[0]);
+    assertEquals(int.class, value[1]);
+    assertEquals("a", value[2]);
+  }
+
+  @Test
+  public void testClassesInManagedClassPackagesAreAllowed() throws IOException {
+    write(newProject(new Marker[] { new Marker() }));
+    assertNotNull(retrieve());
+  }
+
+  @Test
+  public void testOtherClassesAreRejected() throws IOException {
+    write(newProject(new Marker()));
+    this.properties.remove(MappedProjectCache.MANAGED_CLASS_NAMES_PROPERTY_NAME);
+    assertNull(retrieve());
+    // Nor may such a class sneak in as an array component type.
+    write(newProject(new Marker[] { new Marker() }));
+    assertNull(retrieve());
+  }
+
+  @Test
+  public void testProxiesAreRejected() throws IOException {
+    write(newProject(Proxy.newProxyInstance(Marker.class.getClassLoader(),
+                                            new Class<?>[] { Serializable.class },
+                                            new Marker())));
+    assertNull(retrieve());
+  }
+
+  @Test
+  public void testConfigureListsManagedClassNames() throws IOException {
+    final PersistenceUnitInfo persistenceUnitInfo =
+      (PersistenceUnitInfo)Proxy.newProxyInstance(PersistenceUnitInfo.class.getClassLoader(),
+                                                  new Class<?>[] { PersistenceUnitInfo.class },
+                                                  (proxy, method, arguments) -> {
+                                                    switch (method.getName()) {
+                                                    case "getPersistenceUnitName":
+                                                      return "test";
+                                                    case "getManagedClassNames":
+                                                      return Arrays.asList(Person.class.getName(), "com.example.Other");
+                                                    case "excludeUnlistedClasses":
+                                                      return true;
+                                                    default:
+                                                      return null;
+                                                    }
+                                                  });
+    final Map<String, Object> properties = new HashMap<>();
+    MappedProjectCache.configure(persistenceUnitInfo, this.temporaryFolder.getRoot().toPath(), "1", properties);
+    assertEquals("com.example.Other," + Person.class.getName(), properties.get(MappedProjectCache.MANAGED_CLASS_NAMES_PROPERTY_NAME));
+    assertTrue(properties.get(MappedProjectCache.FILE_PROPERTY_NAME).toString().endsWith(".project"));
+  }
+
+  private final Project retrieve() {
+    return new MappedProjectCache().retrieveProject(this.properties, Thread.currentThread().getContextClassLoader(), null);
+  }
+
+  private final void write(final Object object) throws IOException {
+    try (final OutputStream outputStream = Files.newOutputStream(this.file);
+         final ObjectOutputStream out = new ObjectOutputStream(outputStream)) {
+      out.writeObject(object);
+    }
+  }
+
+  private static final Project newProject(final Object value) {
+    final ClassDescriptor descriptor = new ClassDescriptor();
+    descriptor.setJavaClass(Person.class);
+    descriptor.setProperty("value", value);
+    final Project project = new Project();
+    project.addDescriptor(descriptor);
+    return project;
+  }
+
+  private static final class Marker implements InvocationHandler, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Marker() {
+      super();
+    }
+
+    @Override
+    public final Object invoke(final Object proxy, final Method method, final Object[] arguments) {
+      return null;
+    }
+
+  }
+
+}
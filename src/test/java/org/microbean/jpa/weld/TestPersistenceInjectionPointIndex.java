@@ -0,0 +1,112 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPersistenceInjectionPointIndex {
+
+  public TestPersistenceInjectionPointIndex() {
+    super();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final Map<String, String> properties = new LinkedHashMap<>();
+    properties.put("plain", "value");
+    properties.put("a=b", "c=d");
+    properties.put("tab\tname", "line\none\r\ntwo");
+    properties.put("back\\slash", "\\t is not a tab");
+    final PersistenceInjectionPointIndex.Entry context =
+      new PersistenceInjectionPointIndex.Entry("PersistenceContext",
+                                               "com.example.Outer$Inner",
+                                               "em",
+                                               "unit\twith\\odd=name",
+                                               "SYNCHRONIZED",
+                                               "TRANSACTION",
+                                               properties);
+    final PersistenceInjectionPointIndex.Entry unit =
+      new PersistenceInjectionPointIndex.Entry("PersistenceUnit",
+                                               "com.example.Outer",
+                                               "setEmf",
+                                               "",
+                                               null,
+                                               null,
+                                               null);
+
+    final StringWriter writer = new StringWriter();
+    PersistenceInjectionPointIndex.write(Arrays.asList(context, unit), writer);
+    final String index = writer.toString();
+    assertTrue(index.startsWith("#"));
+    // One comment line and one line per entry.
+    assertEquals(3, index.split("\n", -1).length - 1);
+
+    final List<PersistenceInjectionPointIndex.Entry> entries = PersistenceInjectionPointIndex.read(new StringReader(index));
+    assertEquals(2, entries.size());
+
+    final PersistenceInjectionPointIndex.Entry readContext = entries.get(0);
+    assertEquals("PersistenceContext", readContext.getAnnotationName());
+    assertEquals("com.example.Outer$Inner", readContext.getDeclaringClassName());
+    assertEquals("em", readContext.getMemberName());
+    assertEquals("unit\twith\\odd=name", readContext.getUnitName());
+    assertEquals("SYNCHRONIZED", readContext.getSynchronizationType());
+    assertEquals("TRANSACTION", readContext.getPersistenceContextType());
+    assertEquals(properties, readContext.getProperties());
+    assertEquals(Arrays.asList(properties.keySet().toArray()), Arrays.asList(readContext.getProperties().keySet().toArray()));
+
+    final PersistenceInjectionPointIndex.Entry readUnit = entries.get(1);
+    assertEquals("PersistenceUnit", readUnit.getAnnotationName());
+    assertEquals("setEmf", readUnit.getMemberName());
+    assertEquals("", readUnit.getUnitName());
+    assertNull(readUnit.getSynchronizationType());
+    assertNull(readUnit.getPersistenceContextType());
+    assertEquals(Collections.emptyMap(), readUnit.getProperties());
+  }
+
+  @Test
+  public void testBlankLinesAndCommentsAreSkipped() throws IOException {
+    final String index = "# comment\n\nPersistenceUnit\tcom.example.A\temf\ttest\t-\t-\n";
+    final List<PersistenceInjectionPointIndex.Entry> entries = PersistenceInjectionPointIndex.read(new StringReader(index));
+    assertEquals(1, entries.size());
+    assertEquals("test", entries.get(0).getUnitName());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooFewFields() throws IOException {
+    PersistenceInjectionPointIndex.read(new StringReader("PersistenceUnit\tcom.example.A\temf\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPropertyWithoutValue() throws IOException {
+    PersistenceInjectionPointIndex.read(new StringReader("PersistenceContext\tcom.example.A\tem\ttest\tSYNCHRONIZED\tTRANSACTION\tname\n"));
+  }
+
+}
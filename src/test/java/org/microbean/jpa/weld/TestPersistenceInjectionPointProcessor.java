@@ -0,0 +1,185 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import java.net.URI;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class TestPersistenceInjectionPointProcessor {
+
+  private static final String SOURCE =
+    "package com.example;\n" +
+    "\n" +
+    "import javax.persistence.*;\n" +
+    "\n" +
+    "@PersistenceContext(name = \"jndi\", unitName = \"ignored\")\n" +
+    "public class Repository {\n" +
+    "\n" +
+    "  @PersistenceContext(unitName = \"orders\", type = PersistenceContextType.EXTENDED,\n" +
+    "                      properties = @PersistenceProperty(name = \"a=b\", value = \"c\\td\"))\n" +
+    "  private EntityManager em;\n" +
+    "\n" +
+    "  @PersistenceContext\n" +
+    "  private EntityManager customers;\n" +
+    "\n" +
+    "  @PersistenceUnit(unitName = \"orders\")\n" +
+    "  public void setEntityManagerFactory(EntityManagerFactory emf) {\n" +
+    "  }\n" +
+    "\n" +
+    "  public static class Nested {\n" +
+    "    @PersistenceUnit\n" +
+    "    private EntityManagerFactory inventory;\n" +
+    "  }\n" +
+    "\n" +
+    "}\n";
+
+  private Path classOutput;
+
+  public TestPersistenceInjectionPointProcessor() {
+    super();
+  }
+
+  @Before
+  public void createClassOutput() throws IOException {
+    this.classOutput = Files.createTempDirectory(TestPersistenceInjectionPointProcessor.class.getSimpleName());
+  }
+
+  @After
+  public void deleteClassOutput() throws IOException {
+    if (this.classOutput != null) {
+      Files.walk(this.classOutput)
+        .sorted(Collections.reverseOrder())
+        .map(Path::toFile)
+        .forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testIndexIsWritten() throws IOException {
+    final List<PersistenceInjectionPointIndex.Entry> entries = this.compile(SOURCE);
+    assertEquals(4, entries.size());
+
+    final PersistenceInjectionPointIndex.Entry em = get(entries, "em");
+    assertEquals("PersistenceContext", em.getAnnotationName());
+    assertEquals("com.example.Repository", em.getDeclaringClassName());
+    assertEquals("em", em.getMemberName());
+    assertEquals("orders", em.getUnitName());
+    assertEquals("SYNCHRONIZED", em.getSynchronizationType());
+    assertEquals("EXTENDED", em.getPersistenceContextType());
+    assertEquals(Collections.singletonMap("a=b", "c\td"), em.getProperties());
+
+    // An unnamed field defaults to the field's name, as at runtime.
+    final PersistenceInjectionPointIndex.Entry customers = get(entries, "customers");
+    assertEquals("customers", customers.getUnitName());
+    assertEquals("TRANSACTION", customers.getPersistenceContextType());
+
+    final PersistenceInjectionPointIndex.Entry emf = get(entries, "setEntityManagerFactory");
+    assertEquals("PersistenceUnit", emf.getAnnotationName());
+    assertEquals("orders", emf.getUnitName());
+    assertNull(emf.getSynchronizationType());
+    assertNull(emf.getPersistenceContextType());
+
+    final PersistenceInjectionPointIndex.Entry inventory = get(entries, "inventory");
+    assertEquals("com.example.Repository$Nested", inventory.getDeclaringClassName());
+    assertEquals("inventory", inventory.getUnitName());
+  }
+
+  @Test
+  public void testNoIndexWithoutInjectionPoints() throws IOException {
+    final List<PersistenceInjectionPointIndex.Entry> entries =
+      this.compile("package com.example;\n\n@javax.persistence.PersistenceUnit(name = \"jndi\")\npublic class Repository {}\n");
+    assertNull(entries);
+  }
+
+  private static final PersistenceInjectionPointIndex.Entry get(final Iterable<? extends PersistenceInjectionPointIndex.Entry> entries,
+                                                                final String memberName) {
+    // The order in which javac hands out annotated elements is
+    // unspecified.
+    for (final PersistenceInjectionPointIndex.Entry entry : entries) {
+      if (entry.getMemberName().equals(memberName)) {
+        return entry;
+      }
+    }
+    throw new AssertionError("No entry for " + memberName);
+  }
+
+  private final List<PersistenceInjectionPointIndex.Entry> compile(final String source) throws IOException {
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assumeNotNull(compiler);
+    final JavaFileObject sourceFile =
+      new SimpleJavaFileObject(URI.create("string:///com/example/Repository.java"), JavaFileObject.Kind.SOURCE) {
+        @Override
+        public final CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+          return source;
+        }
+      };
+    try (final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+      fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(this.classOutput.toFile()));
+      final JavaCompiler.CompilationTask task =
+        compiler.getTask(null,
+                         fileManager,
+                         null,
+                         Arrays.asList("-classpath", System.getProperty("java.class.path")),
+                         null,
+                         Collections.singleton(sourceFile));
+      task.setProcessors(Collections.singleton(new PersistenceInjectionPointProcessor()));
+      assertTrue(task.call());
+    }
+    assertTrue(Files.exists(this.classOutput.resolve("com/example/Repository.class")));
+    final Path index = this.classOutput.resolve(PersistenceInjectionPointIndex.RESOURCE_NAME);
+    if (!Files.exists(index)) {
+      return null;
+    }
+    try (final Reader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+      final List<PersistenceInjectionPointIndex.Entry> returnValue = PersistenceInjectionPointIndex.read(reader);
+      assertNotNull(returnValue);
+      assertFalse(returnValue.isEmpty());
+      return returnValue;
+    }
+  }
+
+}
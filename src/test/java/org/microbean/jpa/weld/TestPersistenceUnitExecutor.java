@@ -0,0 +1,145 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.SystemException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPersistenceUnitExecutor {
+
+  private FakeContainer container;
+
+  private PersistenceUnitExecutor executor;
+
+  public TestPersistenceUnitExecutor() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    this.container = new FakeContainer("test");
+    this.executor = new PersistenceUnitExecutor(this.container.services);
+    // The pool is created, with one thread, on first use.
+    System.setProperty(JpaInjectionServices.ASYNC_THREADS_PROPERTY_NAME, "1");
+  }
+
+  @After
+  public void stopContainer() {
+    System.clearProperty(JpaInjectionServices.ASYNC_THREADS_PROPERTY_NAME);
+    System.clearProperty(JpaInjectionServices.ASYNC_QUEUE_SIZE_PROPERTY_NAME);
+    this.container.close();
+  }
+
+  @Test
+  public void testCommit() throws Exception {
+    final Person person = new Person();
+    final String result = this.executor.executeAsync("test", em -> {
+        assertTrue(em.isJoinedToTransaction());
+        em.persist(person);
+        return "done";
+      }).toCompletableFuture().get(10L, TimeUnit.SECONDS);
+    assertEquals("done", result);
+    assertEquals(1, this.container.tm.committed.get());
+    assertEquals(0, this.container.tm.rolledBack.get());
+    assertEquals(1, this.container.provider.entityManagers.size());
+    final FakePersistence.FakeEntityManager delegate = this.container.provider.entityManagers.get(0);
+    assertEquals(1, delegate.writes.get());
+    assertFalse(delegate.isOpen());
+  }
+
+  @Test
+  public void testRollback() throws Exception {
+    final IllegalStateException failure = new IllegalStateException("work failed");
+    final CompletableFuture<Object> future = this.executor.executeAsync("test", em -> {
+        em.persist(new Person());
+        throw failure;
+      }).toCompletableFuture();
+    try {
+      future.get(10L, TimeUnit.SECONDS);
+      fail();
+    } catch (final ExecutionException expected) {
+      assertEquals(failure, expected.getCause());
+    }
+    assertEquals(0, this.container.tm.committed.get());
+    assertEquals(1, this.container.tm.rolledBack.get());
+    assertFalse(this.container.provider.entityManagers.get(0).isOpen());
+  }
+
+  @Test
+  public void testSaturatedPoolRejectsAtOnce() throws Exception {
+    System.setProperty(JpaInjectionServices.ASYNC_QUEUE_SIZE_PROPERTY_NAME, "0");
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CompletableFuture<Boolean> busy = this.executor.executeAsync("test", em -> {
+        started.countDown();
+        try {
+          return release.await(10L, TimeUnit.SECONDS);
+        } catch (final InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(interruptedException);
+        }
+      }).toCompletableFuture();
+    assertTrue(started.await(10L, TimeUnit.SECONDS));
+
+    final CompletableFuture<Object> rejected = this.executor.executeAsync("test", em -> null).toCompletableFuture();
+    assertTrue(rejected.isCompletedExceptionally());
+    try {
+      rejected.get();
+      fail();
+    } catch (final ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof RejectedExecutionException);
+    }
+
+    release.countDown();
+    assertTrue(busy.get(10L, TimeUnit.SECONDS));
+    assertEquals(1, this.container.tm.committed.get());
+  }
+
+  @Test
+  public void testFailedRollbackDoesNotPoisonTheWorker() throws Exception {
+    this.container.tm.failNextRollback = true;
+    final CompletableFuture<Object> failed = this.executor.executeAsync("test", em -> {
+        throw new IllegalStateException("work failed");
+      }).toCompletableFuture();
+    try {
+      failed.get(10L, TimeUnit.SECONDS);
+      fail();
+    } catch (final ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof SystemException);
+    }
+
+    // The pool has one thread, so this runs on the same worker, which
+    // must not still be associated with the first transaction.
+    assertEquals("ok", this.executor.executeAsync("test", em -> "ok").toCompletableFuture().get(10L, TimeUnit.SECONDS));
+    assertEquals(1, this.container.tm.committed.get());
+  }
+
+}
@@ -0,0 +1,103 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class TestReadOnlyEntityManagerHandler {
+
+  private FakePersistence.FakeEntityManager delegate;
+
+  private EntityManager em;
+
+  public TestReadOnlyEntityManagerHandler() {
+    super();
+  }
+
+  @Before
+  public void createEntityManager() {
+    final FakePersistence.Provider provider = new FakePersistence.Provider();
+    provider.createContainerEntityManagerFactory(null, null).createEntityManager();
+    this.delegate = provider.entityManagers.get(0);
+    this.em = ReadOnlyEntityManagerHandler.newProxy(this.delegate.proxy);
+  }
+
+  @Test
+  public void testWritesAreRejected() {
+    final Person person = new Person();
+    assertRejected(() -> this.em.persist(person));
+    assertRejected(() -> this.em.merge(person));
+    assertRejected(() -> this.em.remove(person));
+    assertRejected(() -> this.em.flush());
+    assertRejected(() -> this.em.joinTransaction());
+    assertRejected(() -> this.em.getTransaction());
+    assertRejected(() -> this.em.lock(person, LockModeType.PESSIMISTIC_WRITE));
+    assertRejected(() -> this.em.find(Person.class, 1L, LockModeType.PESSIMISTIC_WRITE));
+    assertEquals(0, this.delegate.writes.get());
+    assertEquals(0, this.delegate.flushes.get());
+    assertEquals(0, this.delegate.joins.get());
+    assertEquals(0, this.delegate.managed.size());
+  }
+
+  @Test
+  public void testFlushModeIsCommit() {
+    assertEquals(FlushModeType.COMMIT, this.em.getFlushMode());
+  }
+
+  @Test
+  public void testFindCarriesReadOnlyHints() {
+    assertNotNull(this.em.find(Person.class, 1L));
+    assertEquals("true", this.delegate.findProperties.get("eclipselink.read-only"));
+    assertEquals(Boolean.TRUE, this.delegate.findProperties.get("org.hibernate.readOnly"));
+
+    assertNotNull(this.em.find(Person.class, 1L, LockModeType.NONE, Collections.singletonMap("a", "b")));
+    final Map<?, ?> properties = this.delegate.findProperties;
+    assertEquals("b", properties.get("a"));
+    assertEquals("true", properties.get("eclipselink.read-only"));
+  }
+
+  @Test
+  public void testQueriesCarryReadOnlyHints() {
+    final Query query = this.em.createQuery("SELECT p FROM Person p");
+    assertEquals("true", query.getHints().get("eclipselink.read-only"));
+    assertEquals(Boolean.TRUE, query.getHints().get("org.hibernate.readOnly"));
+    assertEquals(1, query.getResultList().size());
+  }
+
+  private static final void assertRejected(final Runnable write) {
+    try {
+      write.run();
+      fail();
+    } catch (final IllegalStateException expected) {
+
+    }
+  }
+
+}
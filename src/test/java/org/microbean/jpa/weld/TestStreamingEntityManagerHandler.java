@@ -0,0 +1,105 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.Iterator;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamingEntityManagerHandler {
+
+  private FakeTransactionManager tm;
+
+  private FakePersistence.FakeEntityManager delegate;
+
+  private EntityManager em;
+
+  public TestStreamingEntityManagerHandler() {
+    super();
+  }
+
+  @Before
+  public void createEntityManager() {
+    this.tm = new FakeTransactionManager();
+    final FakePersistence.Provider provider = new FakePersistence.Provider(this.tm);
+    provider.createContainerEntityManagerFactory(null, null).createEntityManager();
+    this.delegate = provider.entityManagers.get(0);
+    this.em = StreamingEntityManagerHandler.newProxy(this.delegate.proxy, 100, () -> this.tm);
+  }
+
+  @Test
+  public void testCursorClosedOnCommit() throws Exception {
+    this.tm.begin();
+    final Stream<Person> stream;
+    try {
+      stream = this.em.createQuery("SELECT p FROM Person p", Person.class).getResultStream();
+      // Deliberately neither consumed nor closed.
+      assertEquals(0, this.delegate.closedStreams.get());
+    } finally {
+      this.tm.commit();
+    }
+    assertEquals(1, this.delegate.closedStreams.get());
+    // A stream whose cursor has been closed yields nothing more.
+    assertEquals(0L, stream.count());
+    stream.close();
+    assertEquals(1, this.delegate.closedStreams.get());
+  }
+
+  @Test
+  public void testCursorClosedOnRollback() throws Exception {
+    this.tm.begin();
+    final Iterator<Person> iterator;
+    try {
+      iterator = this.em.createQuery("SELECT p FROM Person p", Person.class).getResultStream().iterator();
+    } finally {
+      this.tm.rollback();
+    }
+    assertEquals(1, this.delegate.closedStreams.get());
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void testCursorClosedByCallerOutsideATransaction() {
+    try (final Stream<Person> stream = this.em.createQuery("SELECT p FROM Person p", Person.class).getResultStream()) {
+      assertEquals(1L, stream.count());
+    }
+    assertEquals(1, this.delegate.closedStreams.get());
+  }
+
+  @Test
+  public void testResultsAreDetachedOnceThePullerMovesOn() {
+    final TypedQuery<Person> query = this.em.createQuery("SELECT p FROM Person p", Person.class).setMaxResults(10);
+    try (final Stream<Person> stream = query.getResultStream()) {
+      final Iterator<Person> iterator = stream.iterator();
+      final Person person = iterator.next();
+      assertTrue(this.delegate.managed.contains(person));
+      assertFalse(iterator.hasNext());
+      assertFalse(this.delegate.managed.contains(person));
+    }
+  }
+
+}
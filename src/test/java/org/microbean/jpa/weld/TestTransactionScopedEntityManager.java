@@ -0,0 +1,242 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.weld;
+
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.TransactionRequiredException;
+import javax.persistence.TypedQuery;
+
+import org.jboss.weld.injection.spi.ResourceReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionScopedEntityManager {
+
+  @PersistenceContext(unitName = "test")
+  private EntityManager em;
+
+  @PersistenceUnit(unitName = "test")
+  private EntityManagerFactory emf;
+
+  private FakeContainer container;
+
+  private ResourceReference<EntityManager> reference;
+
+  public TestTransactionScopedEntityManager() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    System.setProperty(JpaInjectionServices.TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME, "true");
+    try {
+      this.container = new FakeContainer("test");
+    } finally {
+      System.clearProperty(JpaInjectionServices.TRANSACTION_SCOPED_PERSISTENCE_CONTEXTS_PROPERTY_NAME);
+    }
+    this.reference =
+      this.container.services.registerPersistenceContextInjectionPoint(FakeContainer.newInjectionPoint(TestTransactionScopedEntityManager.class,
+                                                                                                      "em"))
+      .createResource();
+  }
+
+  @After
+  public void stopContainer() {
+    this.container.close();
+  }
+
+  @Test
+  public void testPersistenceContextsAreNotSharedAcrossThreadsOutsideATransaction() throws Exception {
+    final EntityManager em = this.reference.getInstance();
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final Callable<Person> find = () -> {
+      barrier.await();
+      return em.find(Person.class, 1L);
+    };
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<Person> a = executor.submit(find);
+      final Future<Person> b = executor.submit(find);
+      final Person personA = a.get();
+      final Person personB = b.get();
+      assertNotSame(personA, personB);
+      // Each entity was detached as soon as it was returned, and is
+      // in no other thread's persistence context either.
+      assertFalse(executor.submit(() -> em.contains(personA)).get());
+      assertFalse(em.contains(personB));
+    } finally {
+      executor.shutdown();
+    }
+    final List<FakePersistence.FakeEntityManager> delegates = this.container.provider.entityManagers;
+    assertEquals(4, delegates.size());
+    for (final FakePersistence.FakeEntityManager delegate : delegates) {
+      assertFalse(delegate.isOpen());
+    }
+  }
+
+  @Test
+  public void testQueriesCloseTheirEntityManagerOnceExecuted() {
+    final EntityManager em = this.reference.getInstance();
+    final List<FakePersistence.FakeEntityManager> delegates = this.container.provider.entityManagers;
+
+    final TypedQuery<Person> query = em.createQuery("SELECT p FROM Person p", Person.class).setMaxResults(10);
+    assertTrue(delegates.get(0).isOpen());
+    assertEquals(1, query.getResultList().size());
+    assertFalse(delegates.get(0).isOpen());
+
+    try (final Stream<Person> stream = em.createQuery("SELECT p FROM Person p", Person.class).getResultStream()) {
+      assertEquals(1L, stream.count());
+      assertTrue(delegates.get(1).isOpen());
+    }
+    assertFalse(delegates.get(1).isOpen());
+
+    // A query that is kept but never executed keeps its
+    // EntityManager open until the reference is released.
+    final TypedQuery<Person> unexecuted = em.createQuery("SELECT p FROM Person p", Person.class);
+    assertTrue(delegates.get(2).isOpen());
+    this.reference.release();
+    assertFalse(delegates.get(2).isOpen());
+    assertNotNull(unexecuted);
+  }
+
+  @Test
+  public void testDroppedQueriesDoNotPinTheEntityManagerFactory() {
+    final ResourceReference<EntityManagerFactory> emfReference =
+      this.container.services.registerPersistenceUnitInjectionPoint(FakeContainer.newInjectionPoint(TestTransactionScopedEntityManager.class,
+                                                                                                    "emf"))
+      .createResource();
+    final EntityManagerFactory emf = emfReference.getInstance();
+    final EntityManager em = this.reference.getInstance();
+    this.container.provider.retainEntityManagers = false;
+    createAndDropQuery(em);
+    // Releasing the EntityManagerFactory reference retires the
+    // factory; it is closed once no lease on it remains.
+    emfReference.release();
+    assertTrue(emf.isOpen());
+    for (int i = 0; i < 100 && emf.isOpen(); i++) {
+      System.gc();
+      // Any use of the registry notices the leak.
+      assertEquals(1, em.createQuery("SELECT p FROM Person p", Person.class).getResultList().size());
+    }
+    assertFalse(emf.isOpen());
+  }
+
+  @Test
+  public void testDelegatesRequireATransaction() {
+    final EntityManager em = this.reference.getInstance();
+    assertTransactionRequired(() -> em.getDelegate());
+    assertTransactionRequired(() -> em.unwrap(EntityManager.class));
+    assertTrue(this.container.provider.entityManagers.isEmpty());
+  }
+
+  @Test
+  public void testFailedSynchronizationRegistrationClosesTheEntityManager() throws Exception {
+    final EntityManager em = this.reference.getInstance();
+    final List<FakePersistence.FakeEntityManager> delegates = this.container.provider.entityManagers;
+    this.container.tm.begin();
+    try {
+      this.container.tm.failNextSynchronizationRegistration = true;
+      try {
+        em.find(Person.class, 1L);
+        fail();
+      } catch (final IllegalStateException expected) {
+
+      }
+      assertEquals(1, delegates.size());
+      assertFalse(delegates.get(0).isOpen());
+      // The failed EntityManager was never bound to the transaction.
+      assertNotNull(em.find(Person.class, 1L));
+      assertEquals(2, delegates.size());
+      assertTrue(delegates.get(1).isOpen());
+    } finally {
+      this.container.tm.rollback();
+    }
+    assertFalse(delegates.get(1).isOpen());
+  }
+
+  @Test
+  public void testWritesRequireATransaction() {
+    final EntityManager em = this.reference.getInstance();
+    final Person person = new Person();
+    assertTransactionRequired(() -> em.persist(person));
+    assertTransactionRequired(() -> em.merge(person));
+    assertTransactionRequired(() -> em.remove(person));
+    assertTransactionRequired(() -> em.refresh(person));
+    assertTransactionRequired(() -> em.flush());
+    assertTransactionRequired(() -> em.lock(person, LockModeType.WRITE));
+    assertTransactionRequired(() -> em.joinTransaction());
+    // No EntityManager, and so no EntityManagerFactory, was needed to
+    // find that out.
+    assertTrue(this.container.provider.entityManagers.isEmpty());
+  }
+
+  @Test
+  public void testOneEntityManagerPerTransaction() throws Exception {
+    final EntityManager em = this.reference.getInstance();
+    final Person person = new Person();
+    this.container.tm.begin();
+    try {
+      em.persist(person);
+      assertTrue(em.contains(person));
+      assertTrue(em.isJoinedToTransaction());
+    } finally {
+      this.container.tm.commit();
+    }
+    final List<FakePersistence.FakeEntityManager> delegates = this.container.provider.entityManagers;
+    assertEquals(1, delegates.size());
+    assertFalse(delegates.get(0).isOpen());
+  }
+
+  private static final void createAndDropQuery(final EntityManager em) {
+    // Kept in its own frame so that nothing on the caller's stack
+    // refers to the query once this method returns.
+    em.createQuery("SELECT p FROM Person p", Person.class).setMaxResults(1);
+  }
+
+  private static final void assertTransactionRequired(final Runnable write) {
+    try {
+      write.run();
+      fail();
+    } catch (final TransactionRequiredException expected) {
+
+    }
+  }
+
+}